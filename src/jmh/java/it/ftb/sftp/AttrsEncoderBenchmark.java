@@ -0,0 +1,180 @@
+package it.ftb.sftp;
+
+import it.ftb.sftp.network.Bytes;
+import it.ftb.sftp.network.Encoder;
+import it.ftb.sftp.packet.Attrs;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encodes the attributes of the entries of a directory listing: with the previous {@link Attrs#write(Encoder)},
+ * which called a capturing lambda for each attribute, with the current one, building new {@link Attrs} for each
+ * entry as {@link AttrsReader#read(SftpPath, int, java.nio.file.LinkOption...)} does, and from a reused
+ * {@link Attrs.Builder}, as the READDIR responses encode the records of their handle.
+ * <p>
+ * Run with {@code -prof gc}: encoding existing attributes, or the ones set in the reused builder,
+ * allocates nothing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AttrsEncoderBenchmark {
+
+    private static final int ENTRIES = 1000;
+
+    @Param({"lambdas", "attrs", "built", "record"})
+    public String encoder;
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(0x20000);
+    private final Encoder enc = new AsciiEncoder(buffer);
+    private final Attrs[] attrs = new Attrs[ENTRIES];
+    private final Attrs[] built = new Attrs[ENTRIES];
+    private final Attrs.Builder record = new Attrs.Builder(Attrs.Type.SSH_FILEXFER_TYPE_UNKNOWN, true);
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < ENTRIES; i++) {
+            attrs[i] = fill(new Attrs.Builder(Attrs.Type.SSH_FILEXFER_TYPE_REGULAR, true), i).build();
+        }
+    }
+
+    @Benchmark
+    public int encode() {
+        buffer.clear();
+        switch (encoder) {
+            case "lambdas":
+                for (Attrs a : attrs) {
+                    LambdaAttrsWriter.write(a, enc);
+                }
+                break;
+            case "attrs":
+                for (Attrs a : attrs) {
+                    a.write(enc);
+                }
+                break;
+            case "built":
+                for (int i = 0; i < ENTRIES; i++) {
+                    // Kept as the NAME packets keep them, so they are not scalar replaced
+                    built[i] = fill(new Attrs.Builder(Attrs.Type.SSH_FILEXFER_TYPE_REGULAR, true), i).build();
+                    built[i].write(enc);
+                }
+                break;
+            default:
+                for (int i = 0; i < ENTRIES; i++) {
+                    fill(record.reset(Attrs.Type.SSH_FILEXFER_TYPE_REGULAR, true), i).write(enc);
+                }
+                break;
+        }
+        return buffer.position();
+    }
+
+    private static Attrs.Builder fill(Attrs.Builder builder, int i) {
+        return builder.withSize(i * 1024L)
+                .withMtime(1500000000L + i, i)
+                .withAtime(1500000000L + i, i)
+                .withOwnerGroup("owner", "group")
+                .withPermissions(0644);
+    }
+
+    /**
+     * The previous {@link Attrs#write(Encoder)}.
+     */
+    private static final class LambdaAttrsWriter {
+
+        private static void when(Attrs attrs, Attrs.Validity validity, Runnable runnable) {
+            if (attrs.isValid(validity)) {
+                runnable.run();
+            }
+        }
+
+        private static void whenSub(Attrs attrs, Attrs.Validity validity, Runnable runnable) {
+            if (attrs.isValid(validity) && attrs.isValid(Attrs.Validity.SSH_FILEXFER_ATTR_SUBSECOND_TIMES)) {
+                runnable.run();
+            }
+        }
+
+        static void write(Attrs a, Encoder enc) {
+            enc.write(a.getValidAttributeFlags());
+            enc.write((byte) a.getType().getCode());
+            when(a, Attrs.Validity.SSH_FILEXFER_ATTR_SIZE, () -> enc.write(a.getSize()));
+            when(a, Attrs.Validity.SSH_FILEXFER_ATTR_ALLOCATION_SIZE, () -> enc.write(a.getAllocationSize()));
+            when(a, Attrs.Validity.SSH_FILEXFER_ATTR_OWNERGROUP, () -> enc.write(a.getOwner()));
+            when(a, Attrs.Validity.SSH_FILEXFER_ATTR_OWNERGROUP, () -> enc.write(a.getGroup()));
+            when(a, Attrs.Validity.SSH_FILEXFER_ATTR_PERMISSIONS, () -> enc.write(a.getPermissions()));
+            when(a, Attrs.Validity.SSH_FILEXFER_ATTR_ACCESSTIME, () -> enc.write(a.getAtime()));
+            whenSub(a, Attrs.Validity.SSH_FILEXFER_ATTR_ACCESSTIME, () -> enc.write(a.getAtimeNseconds()));
+            when(a, Attrs.Validity.SSH_FILEXFER_ATTR_CREATETIME, () -> enc.write(a.getCreatetime()));
+            whenSub(a, Attrs.Validity.SSH_FILEXFER_ATTR_CREATETIME, () -> enc.write(a.getCreatetimeNseconds()));
+            when(a, Attrs.Validity.SSH_FILEXFER_ATTR_MODIFYTIME, () -> enc.write(a.getMtime()));
+            whenSub(a, Attrs.Validity.SSH_FILEXFER_ATTR_MODIFYTIME, () -> enc.write(a.getMtimeNseconds()));
+            when(a, Attrs.Validity.SSH_FILEXFER_ATTR_CTIME, () -> enc.write(a.getCtime()));
+            whenSub(a, Attrs.Validity.SSH_FILEXFER_ATTR_CTIME, () -> enc.write(a.getCtimeNseconds()));
+            when(a, Attrs.Validity.SSH_FILEXFER_ATTR_ACL, () -> enc.write(a.getAcl()));
+            when(a, Attrs.Validity.SSH_FILEXFER_ATTR_BITS, () -> enc.write(a.getAttribBits()));
+            when(a, Attrs.Validity.SSH_FILEXFER_ATTR_BITS, () -> enc.write(a.getAttribBitsValid()));
+            when(a, Attrs.Validity.SSH_FILEXFER_ATTR_TEXT_HINT, () -> enc.write(a.getTextHint()));
+            when(a, Attrs.Validity.SSH_FILEXFER_ATTR_MIME_TYPE, () -> enc.write(a.getMimeType()));
+            when(a, Attrs.Validity.SSH_FILEXFER_ATTR_LINK_COUNT, () -> enc.write(a.getLinkCount()));
+            when(a, Attrs.Validity.SSH_FILEXFER_ATTR_UNTRANSLATED_NAME, () -> enc.write(a.getUntranslatedName()));
+            when(a, Attrs.Validity.SSH_FILEXFER_ATTR_EXTENDED, () -> enc.write(a.getExtensions().size()));
+            when(a, Attrs.Validity.SSH_FILEXFER_ATTR_EXTENDED, () -> a.getExtensions().forEach(ep -> ep.write(enc)));
+        }
+    }
+
+    /**
+     * Encodes into a buffer, with the strings limited to ASCII so that only the attributes code is measured.
+     */
+    private static final class AsciiEncoder implements Encoder {
+
+        private final ByteBuffer buffer;
+
+        AsciiEncoder(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public Encoder write(byte b) {
+            buffer.put(b);
+            return this;
+        }
+
+        @Override
+        public Encoder write(int i) {
+            buffer.putInt(i);
+            return this;
+        }
+
+        @Override
+        public Encoder write(String s) {
+            buffer.putInt(s.length());
+            for (int i = 0; i < s.length(); i++) {
+                buffer.put((byte) s.charAt(i));
+            }
+            return this;
+        }
+
+        @Override
+        public Encoder write(Bytes b) {
+            buffer.putInt(b.getLength());
+            b.copyTo(buffer);
+            return this;
+        }
+
+        @Override
+        public Encoder write(long l) {
+            buffer.putLong(l);
+            return this;
+        }
+
+        @Override
+        public Encoder write(boolean b) {
+            buffer.put(b ? (byte) 1 : (byte) 0);
+            return this;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package it.ftb.sftp;
+
+import it.ftb.sftp.packet.Attrs;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads the attributes of a file with {@link AttrsReader}, and with the previous implementation,
+ * which reads each group of attributes separately.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AttrsReaderBenchmark {
+
+    @Param({"probing", "bulk"})
+    public String reader;
+
+    /**
+     * The attributes requested: all of them, or size, permissions and times as sent by most clients.
+     */
+    @Param({"-1", "45"})
+    public int flags;
+
+    private Path root;
+    private Stat<?> stat;
+
+    @Setup
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("attrs");
+        Files.write(root.resolve("file.bin"), new byte[1024]);
+        stat = new Stat<>(SftpFileSystems.rooted(root), "probing".equals(reader));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.delete(root.resolve("file.bin"));
+        Files.delete(root);
+    }
+
+    @Benchmark
+    public Attrs stat() throws IOException {
+        return stat.read(flags);
+    }
+
+    private static final class Stat<P extends SftpPath<P>> {
+        private final SftpFileSystem<P> fs;
+        private final AttrsReader<P> attrsReader;
+        private final P path;
+        private final boolean probing;
+
+        Stat(SftpFileSystem<P> fs, boolean probing) {
+            this.fs = fs;
+            this.attrsReader = new AttrsReader<>(fs);
+            this.path = SftpPath.parse(fs, "file.bin");
+            this.probing = probing;
+        }
+
+        Attrs read(int flags) throws IOException {
+            return probing ? ProbingAttrsReader.createAttrs(fs, path, flags) : attrsReader.read(path, flags);
+        }
+    }
+}
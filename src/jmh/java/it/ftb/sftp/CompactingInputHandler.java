@@ -0,0 +1,224 @@
+package it.ftb.sftp;
+
+import it.ftb.sftp.network.Bytes;
+import it.ftb.sftp.network.MalformedPacketException;
+import it.ftb.sftp.packet.PacketType;
+import it.ftb.sftp.packet.VoidPacketVisitor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The previous implementation of {@link ClientInputHandler}, kept as a baseline for {@link InputHandlerBenchmark}:
+ * the packets not received whole are copied to a single buffer, which is compacted after each call.
+ */
+public class CompactingInputHandler implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CompactingInputHandler.class);
+
+    /**
+     * Maximum length of the packets accepted by default, fitting reads and writes of
+     * {@link DefaultPacketProcessor#MAX_READ_LENGTH} bytes.
+     */
+    public static final int DEFAULT_MAX_PACKET_LENGTH = ClientInputHandler.DEFAULT_MAX_PACKET_LENGTH;
+
+    private final ByteBuffer clientBuffer;
+    private final VoidPacketVisitor processor;
+    private final boolean holdBytes;
+    private final int maxPacketLength;
+    private final StreamingWriteVisitor streamingProcessor;
+
+    /**
+     * The write whose data is being received, or {@code null}.
+     */
+    private StreamingWriteVisitor.WriteStream writeStream;
+    private int writeRemaining;
+    private int skipRemaining;
+
+    /**
+     * Creates a new CompactingInputHandler, splitting packets and sending them to a processor.
+     * @param processor The processor to send packets to
+     */
+    public CompactingInputHandler(VoidPacketVisitor processor) {
+        this(processor, false);
+    }
+
+    /**
+     * Creates a new CompactingInputHandler, splitting packets and sending them to a processor.
+     * @param processor The processor to send packets to
+     * @param holdBytes Whether the {@link it.ftb.sftp.network.Bytes} in the packets, such as the data of the writes,
+     *                  are views of the received data instead of copies. The processor must then copy them
+     *                  if it uses them after the visit returns.
+     */
+    public CompactingInputHandler(VoidPacketVisitor processor, boolean holdBytes) {
+        this(processor, holdBytes, DEFAULT_MAX_PACKET_LENGTH);
+    }
+
+    /**
+     * Creates a new CompactingInputHandler, splitting packets and sending them to a processor.
+     * @param processor The processor to send packets to
+     * @param holdBytes Whether the {@link it.ftb.sftp.network.Bytes} in the packets are views of the received data
+     * @param maxPacketLength The maximum length of the accepted packets, excluding the length field,
+     *                        usually {@link ProcessorConfig#getMaxPacketLength()}
+     */
+    public CompactingInputHandler(VoidPacketVisitor processor, boolean holdBytes, int maxPacketLength) {
+        this.processor = processor;
+        this.holdBytes = holdBytes;
+        this.maxPacketLength = maxPacketLength;
+        this.streamingProcessor = processor instanceof StreamingWriteVisitor ? (StreamingWriteVisitor) processor : null;
+        // Only the packets other than writes need to fit in the buffer when the writes are streamed
+        this.clientBuffer = ByteBuffer.allocate((streamingProcessor != null
+                ? Math.min(maxPacketLength, DEFAULT_MAX_PACKET_LENGTH) : maxPacketLength) + 4);
+    }
+
+    /**
+     * Accepts and processes new data from the client. Upon exiting the method, the <i>data</i> buffer will have
+     * been emptied.
+     * @param data The data received from the client
+     * @throws MalformedPacketException If a packet is longer than the maximum length
+     */
+    public void receive(ByteBuffer data) {
+        LOG.trace("Received {} bytes", data.remaining());
+        while (data.hasRemaining()) {
+            if (clientBuffer.position() == 0) {
+                process(data);
+                if (!data.hasRemaining()) {
+                    break;
+                }
+            }
+            // The buffer always has room for a whole packet or a write header: fill it a bit at a time
+            int length = Math.min(data.remaining(), clientBuffer.remaining());
+            ByteBuffer part = data.duplicate();
+            part.limit(part.position() + length);
+            clientBuffer.put(part);
+            data.position(data.position() + length);
+            clientBuffer.flip();
+            process(clientBuffer);
+            clientBuffer.compact();
+        }
+    }
+
+    /**
+     * Signals the client has closed its side of the connection
+     */
+    @Override
+    public void close() {
+        LOG.trace("Closed");
+        // TODO?
+    }
+
+    /**
+     * Reads and processes all the complete packets in <i>data</i>, and the data of the streamed writes.
+     * When returning, the buffer will have its position set at the first unprocessed packet.
+     *
+     * @param data The data to be processed
+     */
+    private void process(ByteBuffer data) {
+        while (true) {
+            if (writeStream != null || skipRemaining > 0) {
+                if (!stream(data)) {
+                    break;
+                }
+                continue;
+            }
+            if (data.remaining() < 4) {
+                break;
+            }
+            int length = data.getInt(data.position());
+            if (length < 0 || length > maxPacketLength) {
+                throw new MalformedPacketException("Packet too long: " + Integer.toUnsignedString(length));
+            }
+            if (data.remaining() < length + 4) {
+                if (!startWrite(data, length)) {
+                    break;
+                }
+                continue;
+            }
+            processPacket(data);
+        }
+    }
+
+    /**
+     * Starts streaming the write at the position of <i>data</i>, if its header has been received.
+     *
+     * @param data The data to be processed
+     * @param length The length of the incomplete packet
+     * @return Whether the write was started
+     */
+    private boolean startWrite(ByteBuffer data, int length) {
+        int start = data.position();
+        boolean mayBeWrite = streamingProcessor != null
+                && (data.remaining() < 5 || (data.get(start + 4) & 0xff) == PacketType.SSH_FXP_WRITE.getCode());
+        if (!mayBeWrite && length + 4 > clientBuffer.capacity()) {
+            throw new MalformedPacketException("Packet too long: " + length);
+        }
+        if (!mayBeWrite || data.remaining() < 13) {
+            return false;
+        }
+        int handleLength = data.getInt(start + 9);
+        if (handleLength < 0 || 25 + handleLength > Math.min(length + 4, clientBuffer.capacity())) {
+            throw new MalformedPacketException("Invalid write handle length: " + Integer.toUnsignedString(handleLength));
+        }
+        if (data.remaining() < 25 + handleLength) {
+            return false;
+        }
+        data.position(start + 5);
+        BufferDecoder decoder = new BufferDecoder(data, holdBytes);
+        int requestId = decoder.readInt();
+        Bytes handle = decoder.readBytes();
+        long offset = decoder.readLong();
+        int dataLength = decoder.readInt();
+        if (dataLength < 0 || dataLength > length - 21 - handleLength) {
+            throw new MalformedPacketException("Invalid write length: " + Integer.toUnsignedString(dataLength));
+        }
+        LOG.debug("Streaming write of {} bytes", dataLength);
+        writeStream = streamingProcessor.visitWriteStart(requestId, handle, offset, dataLength);
+        writeRemaining = dataLength;
+        skipRemaining = length - 21 - handleLength - dataLength;
+        return true;
+    }
+
+    /**
+     * Passes the data of the streamed write to its stream, then skips the rest of its packet.
+     *
+     * @param data The data to be processed
+     * @return Whether the whole packet has been processed
+     */
+    private boolean stream(ByteBuffer data) {
+        if (writeStream != null) {
+            int length = Math.min(data.remaining(), writeRemaining);
+            ByteBuffer part = data.duplicate();
+            part.limit(part.position() + length);
+            writeStream.write(part);
+            data.position(data.position() + length);
+            writeRemaining -= length;
+            if (writeRemaining > 0) {
+                return false;
+            }
+            StreamingWriteVisitor.WriteStream ended = writeStream;
+            writeStream = null;
+            ended.end();
+        }
+        int skipped = Math.min(data.remaining(), skipRemaining);
+        data.position(data.position() + skipped);
+        skipRemaining -= skipped;
+        return skipRemaining == 0;
+    }
+
+    private void processPacket(ByteBuffer data) {
+        int length = data.getInt();
+        int end = data.position() + length;
+        PacketDecoder packetDecoder = new PacketDecoder(new BufferDecoder(data, holdBytes), length);
+        int packetCode = packetDecoder.readByte() & 0xff;
+        PacketType packetType = PacketType.fromCode(packetCode);
+        if (packetType == null || packetType.getPacketFactory() == null) {
+            LOG.warn("Ignoring unsupported packet type " + packetCode);
+        } else {
+            LOG.debug("Received packet {}", packetCode);
+            packetType.getPacketFactory().read(packetDecoder, processor);
+        }
+        // Skips the fields not read, such as the ones of unsupported packets and extended requests
+        data.position(end);
+    }
+}
@@ -0,0 +1,77 @@
+package it.ftb.sftp;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Answers the STAT of an unchanged file, sending the response with {@link DefaultPacketWriter}: reading and encoding
+ * its attributes each time, or copying them from an {@link EncodedAttrsCache}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncodedAttrsBenchmark {
+
+    @Param({"reader", "cached"})
+    public String attrs;
+
+    /**
+     * The attributes requested: all of them, or size, permissions and times as sent by most clients.
+     */
+    @Param({"-1", "45"})
+    public int flags;
+
+    private Path root;
+    private Stat<?> stat;
+
+    @Setup
+    public void setUp(Blackhole blackhole) throws IOException {
+        root = Files.createTempDirectory("attrs");
+        Files.write(root.resolve("file.bin"), new byte[1024]);
+        DefaultPacketWriter writer = new DefaultPacketWriter(buffer -> {
+            blackhole.consume(buffer.remaining());
+            buffer.position(buffer.limit());
+        });
+        EncodedAttrsCache cache = "cached".equals(attrs) ? new EncodedAttrsCache(16, 1, TimeUnit.HOURS) : null;
+        stat = new Stat<>(SftpFileSystems.rooted(root), writer, cache);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.delete(root.resolve("file.bin"));
+        Files.delete(root);
+    }
+
+    @Benchmark
+    public void stat() throws IOException {
+        stat.send(flags);
+    }
+
+    private static final class Stat<P extends SftpPath<P>> {
+        private final SftpFileSystem<P> fs;
+        private final AttrsReader<P> attrsReader;
+        private final DefaultPacketWriter writer;
+        private final EncodedAttrsCache cache;
+        private final P path;
+
+        Stat(SftpFileSystem<P> fs, DefaultPacketWriter writer, EncodedAttrsCache cache) {
+            this.fs = fs;
+            this.attrsReader = new AttrsReader<>(fs);
+            this.writer = writer;
+            this.cache = cache;
+            this.path = SftpPath.parse(fs, "file.bin");
+        }
+
+        void send(int flags) throws IOException {
+            writer.visitAttrs(1, cache != null ? cache.read(fs, attrsReader, path, flags) : attrsReader.read(path, flags));
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package it.ftb.sftp;
+
+import it.ftb.sftp.network.BufferPool;
+import it.ftb.sftp.network.Bytes;
+import it.ftb.sftp.packet.VoidPacketVisitor;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splits the packets sent by a client in the fragments returned by the reads from a TCP connection, multiples
+ * of a 1448 bytes segment up to 64 KiB, and decodes them with {@link ClientInputHandler} reading in place into its
+ * segments, and with the previous implementation compacting its buffers, as ThreadedServer used it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InputHandlerBenchmark {
+
+    private static final int TCP_SEGMENT = 1448;
+
+    @Param({"compacting", "segmented"})
+    public String handler;
+
+    /**
+     * The packets sent: 64 writes of 32 KiB, or 4096 reads of 32 KiB.
+     */
+    @Param({"upload", "download"})
+    public String workload;
+
+    private final List<ByteBuffer> fragments = new ArrayList<>();
+    private CompactingInputHandler compacting;
+    private ByteBuffer compactingBuffer;
+    private ClientInputHandler segmented;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        DefaultPacketWriter client = new DefaultPacketWriter(b -> {
+            byte[] bytes = new byte[b.remaining()];
+            b.get(bytes);
+            encoded.write(bytes, 0, bytes.length);
+        });
+        if ("upload".equals(workload)) {
+            byte[] data = new byte[0x8000];
+            for (int i = 0; i < 64; i++) {
+                client.visitWrite(i, Bytes.from(1), i * (long) data.length, Bytes.copy(ByteBuffer.wrap(data), data.length));
+            }
+        } else {
+            for (int i = 0; i < 4096; i++) {
+                client.visitRead(i, Bytes.from(1), i * 0x8000L, 0x8000);
+            }
+        }
+        ByteBuffer stream = ByteBuffer.wrap(encoded.toByteArray());
+        Random random = new Random(42);
+        while (stream.hasRemaining()) {
+            ByteBuffer fragment = stream.duplicate();
+            fragment.limit(Math.min(stream.limit(), stream.position() + TCP_SEGMENT * (1 + random.nextInt(45))));
+            stream.position(fragment.limit());
+            fragments.add(fragment);
+        }
+
+        // Streams the writes as DefaultPacketProcessor does
+        StreamingWriteVisitor.WriteStream writeStream = new StreamingWriteVisitor.WriteStream() {
+            @Override
+            public void write(ByteBuffer data) {
+                blackhole.consume(data.get(data.position()));
+            }
+
+            @Override
+            public void end() {
+            }
+        };
+        class Processor implements VoidPacketVisitor, StreamingWriteVisitor {
+            @Override
+            public void visit() {
+            }
+
+            @Override
+            public void visitRead(int uRequestId, Bytes handle, long uOffset, int uLength) {
+                blackhole.consume(uOffset);
+            }
+
+            @Override
+            public void visitWrite(int uRequestId, Bytes handle, long uOffset, Bytes data) {
+                blackhole.consume(data.asBuffer().get(0));
+            }
+
+            @Override
+            public WriteStream visitWriteStart(int uRequestId, Bytes handle, long uOffset, int uLength) {
+                return writeStream;
+            }
+        }
+        Processor processor = new Processor();
+        compacting = new CompactingInputHandler(processor, true);
+        compactingBuffer = ByteBuffer.allocate(0x10000);
+        segmented = new ClientInputHandler(processor, true, ClientInputHandler.DEFAULT_MAX_PACKET_LENGTH,
+                new BufferPool(ClientInputHandler.SEGMENT_SIZE, 4));
+    }
+
+    @Benchmark
+    public void receive() {
+        if ("compacting".equals(handler)) {
+            for (ByteBuffer fragment : fragments) {
+                compactingBuffer.put(fragment.duplicate());
+                compactingBuffer.flip();
+                compacting.receive(compactingBuffer);
+                compactingBuffer.compact();
+            }
+        } else {
+            for (ByteBuffer fragment : fragments) {
+                ByteBuffer received = fragment.duplicate();
+                while (received.hasRemaining()) {
+                    // A read returns at most the space left in the buffer
+                    ByteBuffer target = segmented.readBuffer();
+                    ByteBuffer part = received.duplicate();
+                    part.limit(Math.min(part.limit(), part.position() + target.remaining()));
+                    target.put(part);
+                    received.position(part.limit());
+                    segmented.received();
+                }
+            }
+        }
+    }
+}
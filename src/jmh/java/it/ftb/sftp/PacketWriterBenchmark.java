@@ -0,0 +1,72 @@
+package it.ftb.sftp;
+
+import com.google.common.collect.ImmutableList;
+import it.ftb.sftp.packet.Attrs;
+import it.ftb.sftp.packet.SshFxpRealpath;
+import it.ftb.sftp.packet.VoidPacketVisitor;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Encodes NAME and REALPATH packets with {@link DefaultPacketWriter}, and with the previous two-pass
+ * implementation, which encodes a second time the packets larger than its buffer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketWriterBenchmark {
+
+    @Param({"twoPass", "singlePass"})
+    public String writer;
+
+    /**
+     * Number of entries of the packets; 16 is the size of the NAME packets sent by READDIR.
+     */
+    @Param({"16", "10000"})
+    public int entries;
+
+    private VoidPacketVisitor packetWriter;
+    private ImmutableList<String> names;
+    private ImmutableList<Attrs> attributes;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        ImmutableList.Builder<String> n = ImmutableList.builder();
+        ImmutableList.Builder<Attrs> a = ImmutableList.builder();
+        for (int i = 0; i < entries; i++) {
+            n.add("file-name-" + i + ".txt");
+            a.add(new Attrs.Builder(Attrs.Type.SSH_FILEXFER_TYPE_REGULAR, true)
+                    .withSize(i * 1024L)
+                    .withMtime(1500000000L + i, 0)
+                    .withAtime(1500000000L + i, 0)
+                    .withOwnerGroup("owner", "group")
+                    .withPermissions(0644)
+                    .build());
+        }
+        names = n.build();
+        attributes = a.build();
+        Consumer<ByteBuffer> network = buffer -> {
+            blackhole.consume(buffer.remaining());
+            buffer.position(buffer.limit());
+        };
+        packetWriter = "twoPass".equals(writer) ? new TwoPassPacketWriter(network) : new DefaultPacketWriter(network);
+    }
+
+    @Benchmark
+    public void name() {
+        packetWriter.visitName(1, names, attributes, Optional.of(true));
+    }
+
+    @Benchmark
+    public void realpath() {
+        packetWriter.visitRealpath(1, "/", SshFxpRealpath.ControlByte.SSH_FXP_REALPATH_NO_CHECK, names);
+    }
+}
@@ -0,0 +1,97 @@
+package it.ftb.sftp;
+
+import com.google.common.collect.ImmutableMap;
+import it.ftb.sftp.packet.Attrs;
+
+import java.io.IOException;
+import java.nio.file.LinkOption;
+import java.nio.file.attribute.*;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * The previous implementation of {@link AttrsReader}, kept as a baseline for {@link AttrsReaderBenchmark}:
+ * each read tries the {@link Attrs} type first, then reads the basic, POSIX and DOS attributes separately.
+ */
+final class ProbingAttrsReader {
+
+    @SuppressWarnings("OctalInteger")
+    private static final Map<PosixFilePermission, Integer> POSIX_FILE_PERMISSION_MASK =
+            ImmutableMap.<PosixFilePermission, Integer>builder()
+                    .put(PosixFilePermission.OWNER_READ, 0000400)
+                    .put(PosixFilePermission.OWNER_WRITE, 0000200)
+                    .put(PosixFilePermission.OWNER_EXECUTE, 0000100)
+                    .put(PosixFilePermission.GROUP_READ, 0000040)
+                    .put(PosixFilePermission.GROUP_WRITE, 0000020)
+                    .put(PosixFilePermission.GROUP_EXECUTE, 0000010)
+                    .put(PosixFilePermission.OTHERS_READ, 0000004)
+                    .put(PosixFilePermission.OTHERS_WRITE, 0000002)
+                    .put(PosixFilePermission.OTHERS_EXECUTE, 0000001)
+                    .build();
+
+    static <P extends SftpPath<P>> Attrs createAttrs(SftpFileSystem<P> fileSystem, P path, int uInterestedInFlags, LinkOption... linkOptions) throws IOException {
+        try {
+            return fileSystem.readAttributes(path, Attrs.class, linkOptions);
+        } catch (UnsupportedOperationException ignored) {
+            // I gave it a try, never mind
+        }
+
+        Attrs.Type type;
+        BasicFileAttributes attributes;
+        if (fileSystem.isSymbolicLink(path)) {
+            type = Attrs.Type.SSH_FILEXFER_TYPE_SYMLINK;
+            attributes = fileSystem.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } else {
+            attributes = fileSystem.readAttributes(path, BasicFileAttributes.class, linkOptions);
+            if (attributes.isDirectory()) {
+                type = Attrs.Type.SSH_FILEXFER_TYPE_DIRECTORY;
+            } else if (attributes.isRegularFile()) {
+                type = Attrs.Type.SSH_FILEXFER_TYPE_REGULAR;
+            } else if (attributes.isOther()) {
+                type = Attrs.Type.SSH_FILEXFER_TYPE_SPECIAL;
+            } else {
+                type = Attrs.Type.SSH_FILEXFER_TYPE_UNKNOWN;
+            }
+        }
+        Attrs.Builder builder = new Attrs.Builder(type, true);
+        if (type == Attrs.Type.SSH_FILEXFER_TYPE_REGULAR) {
+            builder.withSize(attributes.size());
+        }
+        setTime(attributes.lastModifiedTime(), builder::withMtime);
+        setTime(attributes.lastAccessTime(), builder::withAtime);
+        builder.withAttribute(Attrs.Attribute.SSH_FILEXFER_ATTR_FLAGS_HIDDEN, fileSystem.isHidden(path));
+        if (Attrs.Validity.SSH_FILEXFER_ATTR_OWNERGROUP.isSet(uInterestedInFlags)
+                || Attrs.Validity.SSH_FILEXFER_ATTR_PERMISSIONS.isSet(uInterestedInFlags)) {
+            try {
+                PosixFileAttributes pfa = fileSystem.readAttributes(path, PosixFileAttributes.class, linkOptions);
+                builder.withOwnerGroup(pfa.owner().getName(), pfa.group().getName());
+                int permissions = 0;
+                for (PosixFilePermission p : pfa.permissions()) {
+                    permissions |= POSIX_FILE_PERMISSION_MASK.get(p);
+                }
+                builder.withPermissions(permissions);
+            } catch (UnsupportedOperationException ignored) {
+                // Launched by Files.readAttributes, never mind
+            }
+        }
+        if (Attrs.Validity.SSH_FILEXFER_ATTR_BITS.isSet(uInterestedInFlags)) {
+            try {
+                DosFileAttributes dfa = fileSystem.readAttributes(path, DosFileAttributes.class, linkOptions);
+                builder.withAttribute(Attrs.Attribute.SSH_FILEXFER_ATTR_FLAGS_ARCHIVE, dfa.isArchive());
+                builder.withAttribute(Attrs.Attribute.SSH_FILEXFER_ATTR_FLAGS_READONLY, dfa.isReadOnly());
+                builder.withAttribute(Attrs.Attribute.SSH_FILEXFER_ATTR_FLAGS_SYSTEM, dfa.isSystem());
+            } catch (UnsupportedOperationException ignored) {
+                // Launched by Files.readAttributes, never mind
+            }
+        }
+        return builder.build();
+    }
+
+    private static void setTime(FileTime fileTime, BiConsumer<Long, Integer> setter) {
+        long epochSec = fileTime.toInstant().getEpochSecond();
+        int epochNanosec = fileTime.toInstant().getNano();
+        if (epochSec != 0) {
+            setter.accept(epochSec, epochNanosec);
+        }
+    }
+}
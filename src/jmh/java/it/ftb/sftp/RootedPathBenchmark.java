@@ -0,0 +1,80 @@
+package it.ftb.sftp;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Navigates and converts to string deep paths of a rooted file system, as done to build REALPATH replies.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RootedPathBenchmark {
+
+    @Param({"2", "8", "32"})
+    public int depth;
+
+    private Path root;
+    private Paths<?> paths;
+
+    @Setup
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("paths");
+        StringBuilder path = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            path.append("/directory-").append(i);
+        }
+        Files.createDirectories(root.resolve(path.substring(1)));
+        paths = new Paths<>(SftpFileSystems.rooted(root), path.toString());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        for (int i = depth; i >= 0; i--) {
+            Path dir = root;
+            for (int j = 0; j < i; j++) {
+                dir = dir.resolve("directory-" + j);
+            }
+            Files.delete(dir);
+        }
+    }
+
+    @Benchmark
+    public int parentWalk() {
+        return paths.parentWalk();
+    }
+
+    @Benchmark
+    public String sftpString() {
+        return paths.sftpString();
+    }
+
+    private static final class Paths<P extends SftpPath<P>> {
+        private final SftpFileSystem<P> fs;
+        private final P path;
+
+        Paths(SftpFileSystem<P> fs, String path) {
+            this.fs = fs;
+            this.path = fs.parse(path);
+        }
+
+        int parentWalk() {
+            int n = 0;
+            for (P p = path; p != null; p = p.getParent()) {
+                n += p.getFileName().length();
+            }
+            return n;
+        }
+
+        String sftpString() {
+            return fs.toSftpString(path);
+        }
+    }
+}
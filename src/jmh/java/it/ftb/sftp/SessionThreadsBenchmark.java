@@ -0,0 +1,165 @@
+package it.ftb.sftp;
+
+import it.ftb.sftp.packet.PacketType;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs many concurrent blocking sessions, as {@link ThreadedServer} does, on platform or virtual threads.
+ * All the sessions are started and left idle, then each one receives an INIT and a STAT request and is closed.
+ * The virtual variant requires a Java 21 JVM.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "-XX:MaxDirectMemorySize=4g", "-Dorg.slf4j.simpleLogger.log.it.ftb=warn"})
+public class SessionThreadsBenchmark {
+
+    private static final ByteBuffer INIT = packet(PacketType.SSH_FXP_INIT, ByteBuffer.allocate(4).putInt(6));
+    private static final ByteBuffer STAT = packet(PacketType.SSH_FXP_STAT, stat(1, "/file.txt"));
+
+    @Param({"platform", "virtual"})
+    public String threads;
+
+    @Param({"10000"})
+    public int sessions;
+
+    private ThreadFactory threadFactory;
+    private Path root;
+
+    @Setup
+    public void setUp() throws IOException {
+        if ("virtual".equals(threads)) {
+            if (!VirtualThreads.isSupported()) {
+                throw new IllegalStateException("Virtual threads require Java 21");
+            }
+            threadFactory = VirtualThreads.threadFactory();
+        } else {
+            threadFactory = Thread::new;
+        }
+        root = Files.createTempDirectory("sftp-benchmark");
+        Files.write(root.resolve("file.txt"), new byte[1024]);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.delete(root.resolve("file.txt"));
+        Files.delete(root);
+    }
+
+    @Benchmark
+    public long concurrentSessions() throws InterruptedException {
+        SftpFileSystem<? extends SftpPath> fs = SftpFileSystems.rooted(root);
+        AtomicLong sentBytes = new AtomicLong();
+        QueueChannel[] inputs = new QueueChannel[sessions];
+        Thread[] sessionThreads = new Thread[sessions];
+        for (int i = 0; i < sessions; i++) {
+            QueueChannel input = new QueueChannel();
+            inputs[i] = input;
+            sessionThreads[i] = threadFactory.newThread(() -> runSession(fs, input, sentBytes));
+            sessionThreads[i].start();
+        }
+        for (QueueChannel input : inputs) {
+            input.add(INIT.duplicate());
+            input.add(STAT.duplicate());
+            input.close();
+        }
+        for (Thread t : sessionThreads) {
+            t.join();
+        }
+        return sentBytes.get();
+    }
+
+    private static <P extends SftpPath<P>> void runSession(SftpFileSystem<P> fs, ReadableByteChannel in, AtomicLong sentBytes) {
+        DefaultPacketWriter packetEncoder = new DefaultPacketWriter(bb -> {
+            sentBytes.addAndGet(bb.remaining());
+            bb.position(bb.limit());
+        });
+        try (ClientInputHandler handler = new ClientInputHandler(new DefaultPacketProcessor<>(fs, packetEncoder))) {
+            ByteBuffer buf = ByteBuffer.allocate(0x10000);
+            while (-1 != in.read(buf)) {
+                buf.flip();
+                handler.receive(buf);
+                buf.compact();
+            }
+        } catch (IOException e) {
+            throw new RuntimeIOException(e);
+        }
+    }
+
+    private static ByteBuffer stat(int uRequestId, String path) {
+        byte[] bPath = path.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(12 + bPath.length)
+                .putInt(uRequestId)
+                .putInt(bPath.length)
+                .put(bPath)
+                .putInt(0);
+    }
+
+    private static ByteBuffer packet(PacketType type, ByteBuffer body) {
+        body.flip();
+        ByteBuffer ret = ByteBuffer.allocate(5 + body.remaining());
+        ret.putInt(1 + body.remaining()).put(type.getCodeAsByte()).put(body);
+        ret.flip();
+        return ret;
+    }
+
+    /**
+     * A blocking channel returning the buffers added to it.
+     */
+    private static final class QueueChannel implements ReadableByteChannel {
+
+        private static final ByteBuffer EOF = ByteBuffer.allocate(0);
+
+        private final BlockingQueue<ByteBuffer> queue = new LinkedBlockingQueue<>();
+        private ByteBuffer current = null;
+
+        void add(ByteBuffer data) {
+            queue.add(data);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            try {
+                if (current == null || !current.hasRemaining()) {
+                    current = queue.take();
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            if (current == EOF) {
+                return -1;
+            }
+            int count = Math.min(dst.remaining(), current.remaining());
+            ByteBuffer src = current.duplicate();
+            src.limit(src.position() + count);
+            dst.put(src);
+            current.position(current.position() + count);
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+            queue.add(EOF);
+        }
+    }
+}
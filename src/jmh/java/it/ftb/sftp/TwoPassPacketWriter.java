@@ -0,0 +1,157 @@
+package it.ftb.sftp;
+
+import com.google.common.collect.ImmutableList;
+import it.ftb.sftp.network.Bytes;
+import it.ftb.sftp.network.Encoder;
+import it.ftb.sftp.packet.Attrs;
+import it.ftb.sftp.packet.SshFxpRealpath;
+import it.ftb.sftp.packet.VoidPacketVisitor;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+/**
+ * The previous implementation of {@link DefaultPacketWriter}, kept as a baseline for {@link PacketWriterBenchmark}:
+ * a first pass encodes the packet in the buffer, and if it does not fit, a second pass encodes it again
+ * after the length has been computed.
+ */
+final class TwoPassPacketWriter implements VoidPacketVisitor {
+
+    private final DefaultPacketWriter.NoLengthPacketWriter dumpingEncoder = new DefaultPacketWriter.NoLengthPacketWriter(new DumpingEncoder());
+    private final DefaultPacketWriter.NoLengthPacketWriter writingEncoder = new DefaultPacketWriter.NoLengthPacketWriter(new WritingEncoder());
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(0x10000);
+    private final Consumer<ByteBuffer> networkSend;
+    private int flushedBytes = 0;
+
+    TwoPassPacketWriter(Consumer<ByteBuffer> networkSend) {
+        this.networkSend = networkSend;
+    }
+
+    @Override
+    public void visit() {
+        throw new UnsupportedOperationException("Unsupported packet type");
+    }
+
+    @Override
+    public void visitName(int uRequestId, ImmutableList<String> names, ImmutableList<Attrs> attributes, Optional<Boolean> endOfList) {
+        write(visitor -> visitor.visitName(uRequestId, names, attributes, endOfList));
+    }
+
+    @Override
+    public void visitRealpath(int uRequestId, String originalPath, SshFxpRealpath.ControlByte controlByte, ImmutableList<String> composePath) {
+        write(visitor -> visitor.visitRealpath(uRequestId, originalPath, controlByte, composePath));
+    }
+
+    private synchronized void write(Consumer<VoidPacketVisitor> writer) {
+        buffer.position(4);
+        flushedBytes = 0;
+        writer.accept(dumpingEncoder);
+        if (flushedBytes == 0) {
+            buffer.putInt(0, buffer.position() - 4);
+        } else {
+            int actualLength = flushedBytes - 4 + buffer.position();
+            buffer.clear();
+            buffer.putInt(actualLength);
+            writer.accept(writingEncoder);
+        }
+        flushBuffer();
+    }
+
+    private void flushBuffer() {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            networkSend.accept(buffer);
+        }
+        buffer.clear();
+    }
+
+    private abstract class BufferingEncoder implements Encoder {
+
+        protected abstract void ensureSpace(int bytes);
+
+        @Override
+        public Encoder write(byte b) {
+            ensureSpace(1);
+            buffer.put(b);
+            return this;
+        }
+
+        @Override
+        public Encoder write(int i) {
+            ensureSpace(4);
+            buffer.putInt(i);
+            return this;
+        }
+
+        @Override
+        public Encoder write(long l) {
+            ensureSpace(8);
+            buffer.putLong(l);
+            return this;
+        }
+
+        @Override
+        public Encoder write(boolean b) {
+            ensureSpace(1);
+            buffer.put(b ? (byte) 1 : (byte) 0);
+            return this;
+        }
+
+        @Override
+        public Encoder write(Bytes b) {
+            ensureSpace(4 + b.getLength());
+            buffer.putInt(b.getLength());
+            b.copyTo(buffer);
+            return this;
+        }
+
+        @Override
+        public Encoder write(String s) {
+            if (s == null) {
+                ensureSpace(4);
+                buffer.putInt(0);
+                return this;
+            }
+            CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+            ensureSpace(4 + (int) (s.length() * encoder.maxBytesPerChar()));
+            int p = buffer.position();
+            buffer.position(p + 4);
+            CharBuffer cb = CharBuffer.wrap(s);
+            CoderResult result = encoder.encode(cb, buffer, true);
+            if (result.isError() | result.isOverflow()) {
+                try {
+                    result.throwException();
+                } catch (CharacterCodingException e) {
+                    throw new RuntimeIOException(e);
+                }
+            }
+            buffer.putInt(p, buffer.position() - p - 4);
+            return this;
+        }
+    }
+
+    private final class DumpingEncoder extends BufferingEncoder {
+
+        protected void ensureSpace(int bytes) {
+            if (buffer.remaining() < bytes) {
+                flushedBytes += buffer.position();
+                buffer.clear();
+            }
+        }
+    }
+
+    private final class WritingEncoder extends BufferingEncoder {
+
+        protected void ensureSpace(int bytes) {
+            if (buffer.remaining() < bytes) {
+                flushBuffer();
+            }
+        }
+    }
+}
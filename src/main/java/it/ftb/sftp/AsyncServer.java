@@ -0,0 +1,232 @@
+package it.ftb.sftp;
+
+import com.google.common.collect.ImmutableList;
+import it.ftb.sftp.network.BatchingOutput;
+import org.apache.sshd.common.NamedFactory;
+import org.apache.sshd.common.channel.BufferedIoOutputStream;
+import org.apache.sshd.common.io.IoInputStream;
+import org.apache.sshd.common.io.IoOutputStream;
+import org.apache.sshd.common.io.IoReadFuture;
+import org.apache.sshd.common.io.IoWriteFuture;
+import org.apache.sshd.common.util.buffer.Buffer;
+import org.apache.sshd.common.util.buffer.ByteArrayBuffer;
+import org.apache.sshd.server.AsyncCommand;
+import org.apache.sshd.server.Command;
+import org.apache.sshd.server.Environment;
+import org.apache.sshd.server.ExitCallback;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.auth.password.StaticPasswordAuthenticator;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.FileSystems;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * SFTP server which does not dedicate a thread to each session. The data received from the clients
+ * is processed by a small pool of threads shared by all the sessions.
+ * <p>
+ * A session does not ask for more data until the previous data has been processed and the responses
+ * have been sent; until then, the SSH channel window is not enlarged, and the client stops sending.
+ */
+public class AsyncServer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AsyncServer.class);
+
+    private static final int PROCESSING_THREADS = Integer.getInteger("sftp.processingThreads",
+            Runtime.getRuntime().availableProcessors());
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        ExecutorService processors = Executors.newFixedThreadPool(PROCESSING_THREADS);
+        ProcessorConfig config = new ProcessorConfig.Builder()
+                .withConcurrency(PROCESSING_THREADS)
+                .build();
+        SshServer sshd = SshServer.setUpDefaultServer();
+        sshd.setHost("127.0.0.1");
+        sshd.setPort(22);
+        sshd.setKeyPairProvider(new SimpleGeneratorHostKeyProvider(new File("hostkey.ser")));
+        sshd.setPasswordAuthenticator(new StaticPasswordAuthenticator(true));
+        sshd.setSubsystemFactories(ImmutableList.of(new NamedFactory<Command>() {
+            @Override
+            public Command create() {
+                return new AsyncSftpCommand(processors, config);
+            }
+
+            @Override
+            public String getName() {
+                return "sftp";
+            }
+        }));
+        sshd.start();
+        TimeUnit.MINUTES.sleep(10);
+        processors.shutdown();
+    }
+
+    private static class AsyncSftpCommand implements AsyncCommand {
+        private final ExecutorService processors;
+        private final ProcessorConfig config;
+        private final Buffer inputBuffer = new ByteArrayBuffer(0x10000, false);
+        private IoInputStream in;
+        private IoOutputStream out;
+        private String user;
+        private ExitCallback callback;
+        private DefaultPacketProcessor<?> processor;
+        private ClientInputHandler handler;
+        private BatchingOutput batchingOutput;
+        private volatile IoWriteFuture lastWrite;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        /**
+         * Held while the received data is processed, and while the session is closed.
+         */
+        private final Object processing = new Object();
+
+        AsyncSftpCommand(ExecutorService processors, ProcessorConfig config) {
+            this.processors = processors;
+            this.config = config;
+        }
+
+        @Override
+        public void setIoInputStream(IoInputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public void setIoOutputStream(IoOutputStream out) {
+            // Queues the packets, as the channel accepts a single pending write
+            this.out = new BufferedIoOutputStream(out);
+        }
+
+        @Override
+        public void setIoErrorStream(IoOutputStream err) {
+        }
+
+        @Override
+        public void setInputStream(InputStream in) {
+        }
+
+        @Override
+        public void setOutputStream(OutputStream out) {
+        }
+
+        @Override
+        public void setErrorStream(OutputStream err) {
+        }
+
+        @Override
+        public void setExitCallback(ExitCallback callback) {
+            this.callback = callback;
+        }
+
+        @Override
+        public void start(Environment env) {
+            user = env.getEnv().get(Environment.ENV_USER);
+            LOG.info("Starting SFTP for user {}", user);
+            start(SftpFileSystems.rooted(FileSystems.getDefault().getPath(".")));
+        }
+
+        private <P extends SftpPath<P>> void start(SftpFileSystem<P> fs) {
+            // The responses to the received data are sent together once it has been processed
+            batchingOutput = new BatchingOutput(this::send, 0x10000, 0x4000, null, 0);
+            DefaultPacketWriter packetEncoder = new DefaultPacketWriter(batchingOutput);
+            DefaultPacketProcessor<P> processor = new DefaultPacketProcessor<>(fs, packetEncoder, config);
+            this.processor = processor;
+            handler = new ClientInputHandler(processor, true, config.getMaxPacketLength());
+            readNext();
+        }
+
+        @Override
+        public void destroy() {
+            LOG.info("Closing SFTP for user {}", user);
+            close();
+            in.close(false);
+            out.close(false);
+        }
+
+        private void send(ByteBuffer bb) {
+            byte[] packet = new byte[bb.remaining()];
+            bb.get(packet);
+            lastWrite = out.write(new ByteArrayBuffer(packet));
+        }
+
+        private void readNext() {
+            if (closed.get()) {
+                return;
+            }
+            in.read(inputBuffer).addListener(this::received);
+        }
+
+        private void received(IoReadFuture future) {
+            Throwable ex = future.getException();
+            if (ex instanceof EOFException) {
+                exit(0, null);
+            } else if (ex != null) {
+                LOG.warn("I/O exception reading from client stream", ex);
+                exit(-2, ex.toString());
+            } else {
+                processors.execute(this::process);
+            }
+        }
+
+        private void process() {
+            MDC.put("user", user);
+            try {
+                synchronized (processing) {
+                    if (closed.get()) {
+                        return;
+                    }
+                    handler.receive(ByteBuffer.wrap(inputBuffer.array(), inputBuffer.rpos(), inputBuffer.available()));
+                    inputBuffer.clear();
+                    batchingOutput.flush();
+                }
+            } catch (RuntimeException ex) {
+                LOG.error("Error handling client stream", ex);
+                exit(-3, ex.toString());
+                return;
+            } finally {
+                MDC.remove("user");
+            }
+            // Do not read more until the responses have been sent
+            IoWriteFuture write = lastWrite;
+            if (write == null || write.isDone()) {
+                readNext();
+            } else {
+                write.addListener(f -> readNext());
+            }
+        }
+
+        private void exit(int exitValue, String message) {
+            if (close()) {
+                callback.onExit(exitValue, message);
+            }
+        }
+
+        /**
+         * Closes the handles left open and releases the received data, once, after the data being processed.
+         *
+         * @return Whether the session was closed by this call
+         */
+        private boolean close() {
+            if (!closed.compareAndSet(false, true)) {
+                return false;
+            }
+            synchronized (processing) {
+                if (handler != null) {
+                    processor.closeHandles();
+                    handler.close();
+                }
+            }
+            return true;
+        }
+    }
+}
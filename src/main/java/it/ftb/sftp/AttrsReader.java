@@ -0,0 +1,358 @@
+package it.ftb.sftp;
+
+import com.google.common.collect.ImmutableMap;
+import it.ftb.sftp.packet.Attrs;
+
+import java.io.IOException;
+import java.nio.file.LinkOption;
+import java.nio.file.attribute.*;
+import java.security.Principal;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reads the attributes of the files of a file system. The capabilities of the file system are probed once:
+ * when it supports the unix, posix, dos or basic attribute views, the attributes requested by a client
+ * are read with a single call; otherwise, each group of attributes is read separately.
+ *
+ * @param <P> The SftpPath instances of the file system
+ */
+public final class AttrsReader<P extends SftpPath<P>> {
+
+    /**
+     * Attributes which change the attribute names read from the views.
+     */
+    private static final int VIEW_FLAGS = Attrs.Validity.SSH_FILEXFER_ATTR_SIZE.getMask()
+            | Attrs.Validity.SSH_FILEXFER_ATTR_PERMISSIONS.getMask()
+            | Attrs.Validity.SSH_FILEXFER_ATTR_ACCESSTIME.getMask()
+            | Attrs.Validity.SSH_FILEXFER_ATTR_MODIFYTIME.getMask()
+            | Attrs.Validity.SSH_FILEXFER_ATTR_OWNERGROUP.getMask()
+            | Attrs.Validity.SSH_FILEXFER_ATTR_BITS.getMask()
+            | Attrs.Validity.SSH_FILEXFER_ATTR_LINK_COUNT.getMask()
+            | Attrs.Validity.SSH_FILEXFER_ATTR_CTIME.getMask();
+
+    @SuppressWarnings("OctalInteger")
+    private static final int S_IFMT = 0170000;
+    @SuppressWarnings("OctalInteger")
+    private static final int PERMISSION_BITS = 07777;
+
+    @SuppressWarnings("OctalInteger")
+    private static final Map<Integer, Attrs.Type> FILE_TYPES = ImmutableMap.<Integer, Attrs.Type>builder()
+            .put(0140000, Attrs.Type.SSH_FILEXFER_TYPE_SOCKET)
+            .put(0120000, Attrs.Type.SSH_FILEXFER_TYPE_SYMLINK)
+            .put(0100000, Attrs.Type.SSH_FILEXFER_TYPE_REGULAR)
+            .put(0060000, Attrs.Type.SSH_FILEXFER_TYPE_BLOCK_DEVICE)
+            .put(0040000, Attrs.Type.SSH_FILEXFER_TYPE_DIRECTORY)
+            .put(0020000, Attrs.Type.SSH_FILEXFER_TYPE_CHAR_DEVICE)
+            .put(0010000, Attrs.Type.SSH_FILEXFER_TYPE_FIFO)
+            .build();
+
+    @SuppressWarnings("OctalInteger")
+    private static final Map<PosixFilePermission, Integer> POSIX_FILE_PERMISSION_MASK =
+            ImmutableMap.<PosixFilePermission, Integer>builder()
+                    .put(PosixFilePermission.OWNER_READ, 0000400)
+                    .put(PosixFilePermission.OWNER_WRITE, 0000200)
+                    .put(PosixFilePermission.OWNER_EXECUTE, 0000100)
+                    .put(PosixFilePermission.GROUP_READ, 0000040)
+                    .put(PosixFilePermission.GROUP_WRITE, 0000020)
+                    .put(PosixFilePermission.GROUP_EXECUTE, 0000010)
+                    .put(PosixFilePermission.OTHERS_READ, 0000004)
+                    .put(PosixFilePermission.OTHERS_WRITE, 0000002)
+                    .put(PosixFilePermission.OTHERS_EXECUTE, 0000001)
+                    .build();
+
+    private final SftpFileSystem<P> fileSystem;
+    private final PrincipalNameCache principalNames;
+    /**
+     * The attribute view read, or {@code null} if the file system does not support reading views.
+     */
+    private final String view;
+    private final Map<Integer, String> viewAttributes = new ConcurrentHashMap<>();
+    private volatile boolean attrsSupported = true;
+
+    public AttrsReader(SftpFileSystem<P> fileSystem) {
+        this(fileSystem, null);
+    }
+
+    /**
+     * Creates a new reader, probing the attribute views supported by the file system.
+     *
+     * @param fileSystem The file system
+     * @param principalNames The cache of the owner and group names, used with the unix view; can be {@code null}
+     */
+    public AttrsReader(SftpFileSystem<P> fileSystem, PrincipalNameCache principalNames) {
+        this.fileSystem = fileSystem;
+        this.principalNames = principalNames;
+        Set<String> views = fileSystem.supportedFileAttributeViews();
+        if (views.contains("unix")) {
+            view = "unix";
+        } else if (views.contains("posix")) {
+            view = "posix";
+        } else if (views.contains("dos")) {
+            view = "dos";
+        } else if (views.contains("basic")) {
+            view = "basic";
+        } else {
+            view = null;
+        }
+    }
+
+    public Attrs read(P path) throws IOException {
+        return read(path, 0xffffffff);
+    }
+
+    /**
+     * Reads the attributes of a file.
+     *
+     * @param path The file
+     * @param uInterestedInFlags The attributes requested by the client, as {@link Attrs.Validity} flags
+     * @param linkOptions Whether symbolic links are followed
+     * @return The attributes; they can include more attributes than requested
+     * @throws IOException If an I/O error occurs
+     */
+    public Attrs read(P path, int uInterestedInFlags, LinkOption... linkOptions) throws IOException {
+        Attrs.Builder builder = new Attrs.Builder(Attrs.Type.SSH_FILEXFER_TYPE_UNKNOWN, true);
+        Attrs attrs = read(path, uInterestedInFlags, builder, linkOptions);
+        return attrs != null ? attrs : builder.build();
+    }
+
+    /**
+     * Reads the attributes of a file into a reusable record, so that they can be encoded by
+     * {@link Attrs.Builder#write} without building {@link Attrs} for each file.
+     *
+     * @param path The file
+     * @param uInterestedInFlags The attributes requested by the client, as {@link Attrs.Validity} flags
+     * @param record The record, reset before being filled
+     * @param linkOptions Whether symbolic links are followed
+     * @return The attributes, if the file system reads them as {@link Attrs}; otherwise {@code null},
+     *         and the record holds them
+     * @throws IOException If an I/O error occurs
+     */
+    public Attrs read(P path, int uInterestedInFlags, Attrs.Builder record, LinkOption... linkOptions)
+            throws IOException {
+        if (attrsSupported) {
+            try {
+                return fileSystem.readAttributes(path, Attrs.class, linkOptions);
+            } catch (UnsupportedOperationException ignored) {
+                // Not supported by this file system, no need to try again
+                attrsSupported = false;
+            }
+        }
+        if (view != null) {
+            readView(path, uInterestedInFlags, record, linkOptions);
+        } else {
+            readClasses(path, uInterestedInFlags, record, linkOptions);
+        }
+        return null;
+    }
+
+    private void readView(P path, int uInterestedInFlags, Attrs.Builder builder, LinkOption... linkOptions)
+            throws IOException {
+        Map<String, Object> attributes = fileSystem.readAttributes(path,
+                viewAttributes.computeIfAbsent(uInterestedInFlags & VIEW_FLAGS, this::viewAttributes), linkOptions);
+        boolean unix = "unix".equals(view);
+        int mode = unix ? (Integer) attributes.get("mode") : 0;
+        Attrs.Type type;
+        if (unix) {
+            type = FILE_TYPES.getOrDefault(mode & S_IFMT, Attrs.Type.SSH_FILEXFER_TYPE_UNKNOWN);
+        } else if ((Boolean) attributes.get("isSymbolicLink")) {
+            type = Attrs.Type.SSH_FILEXFER_TYPE_SYMLINK;
+        } else if ((Boolean) attributes.get("isDirectory")) {
+            type = Attrs.Type.SSH_FILEXFER_TYPE_DIRECTORY;
+        } else if ((Boolean) attributes.get("isRegularFile")) {
+            type = Attrs.Type.SSH_FILEXFER_TYPE_REGULAR;
+        } else if ((Boolean) attributes.get("isOther")) {
+            type = Attrs.Type.SSH_FILEXFER_TYPE_SPECIAL;
+        } else {
+            type = Attrs.Type.SSH_FILEXFER_TYPE_UNKNOWN;
+        }
+        builder.reset(type, true);
+        if (type == Attrs.Type.SSH_FILEXFER_TYPE_REGULAR && attributes.containsKey("size")) {
+            builder.withSize((Long) attributes.get("size"));
+        }
+        FileTime mtime = (FileTime) attributes.get("lastModifiedTime");
+        if (isSet(mtime)) {
+            builder.withMtime(seconds(mtime), nanoseconds(mtime));
+        }
+        FileTime atime = (FileTime) attributes.get("lastAccessTime");
+        if (isSet(atime)) {
+            builder.withAtime(seconds(atime), nanoseconds(atime));
+        }
+        FileTime ctime = (FileTime) attributes.get("ctime");
+        if (isSet(ctime)) {
+            builder.withCtime(seconds(ctime), nanoseconds(ctime));
+        }
+        if (attributes.containsKey("nlink")) {
+            builder.withLinkCount((Integer) attributes.get("nlink"));
+        }
+        if (attributes.containsKey("uid")) {
+            int uid = (Integer) attributes.get("uid");
+            int gid = (Integer) attributes.get("gid");
+            builder.withOwnerGroup(
+                    principalNames.getUserName(uid, () -> lookupName(path, "unix:owner", linkOptions)),
+                    principalNames.getGroupName(gid, () -> lookupName(path, "unix:group", linkOptions)));
+        } else if (attributes.containsKey("owner")) {
+            builder.withOwnerGroup(((UserPrincipal) attributes.get("owner")).getName(),
+                    ((GroupPrincipal) attributes.get("group")).getName());
+        }
+        if (unix && Attrs.Validity.SSH_FILEXFER_ATTR_PERMISSIONS.isSet(uInterestedInFlags)) {
+            builder.withPermissions(mode & PERMISSION_BITS);
+        } else if (attributes.containsKey("permissions")) {
+            @SuppressWarnings("unchecked")
+            Set<PosixFilePermission> permissions = (Set<PosixFilePermission>) attributes.get("permissions");
+            builder.withPermissions(toMask(permissions));
+        }
+        if (attributes.containsKey("hidden")) {
+            builder.withAttribute(Attrs.Attribute.SSH_FILEXFER_ATTR_FLAGS_HIDDEN, (Boolean) attributes.get("hidden"));
+        } else {
+            builder.withAttribute(Attrs.Attribute.SSH_FILEXFER_ATTR_FLAGS_HIDDEN, fileSystem.isHidden(path));
+        }
+        if (attributes.containsKey("archive")) {
+            builder.withAttribute(Attrs.Attribute.SSH_FILEXFER_ATTR_FLAGS_ARCHIVE, (Boolean) attributes.get("archive"));
+            builder.withAttribute(Attrs.Attribute.SSH_FILEXFER_ATTR_FLAGS_READONLY, (Boolean) attributes.get("readonly"));
+            builder.withAttribute(Attrs.Attribute.SSH_FILEXFER_ATTR_FLAGS_SYSTEM, (Boolean) attributes.get("system"));
+        }
+    }
+
+    /**
+     * Returns the names of the attributes of the view read for a request, like "unix:mode,size".
+     */
+    private String viewAttributes(int uInterestedInFlags) {
+        StringJoiner names = new StringJoiner(",", view + ":", "");
+        if ("unix".equals(view)) {
+            names.add("mode");
+        } else {
+            names.add("isSymbolicLink").add("isDirectory").add("isRegularFile").add("isOther");
+        }
+        if (Attrs.Validity.SSH_FILEXFER_ATTR_SIZE.isSet(uInterestedInFlags)) {
+            names.add("size");
+        }
+        if (Attrs.Validity.SSH_FILEXFER_ATTR_MODIFYTIME.isSet(uInterestedInFlags)) {
+            names.add("lastModifiedTime");
+        }
+        if (Attrs.Validity.SSH_FILEXFER_ATTR_ACCESSTIME.isSet(uInterestedInFlags)) {
+            names.add("lastAccessTime");
+        }
+        switch (view) {
+            case "unix":
+                if (Attrs.Validity.SSH_FILEXFER_ATTR_CTIME.isSet(uInterestedInFlags)) {
+                    names.add("ctime");
+                }
+                if (Attrs.Validity.SSH_FILEXFER_ATTR_LINK_COUNT.isSet(uInterestedInFlags)) {
+                    names.add("nlink");
+                }
+                addOwnerGroup(names, uInterestedInFlags);
+                break;
+            case "posix":
+                addOwnerGroup(names, uInterestedInFlags);
+                if (Attrs.Validity.SSH_FILEXFER_ATTR_PERMISSIONS.isSet(uInterestedInFlags)) {
+                    names.add("permissions");
+                }
+                break;
+            case "dos":
+                names.add("hidden");
+                if (Attrs.Validity.SSH_FILEXFER_ATTR_BITS.isSet(uInterestedInFlags)) {
+                    names.add("archive").add("readonly").add("system");
+                }
+                break;
+            default:
+                break;
+        }
+        return names.toString();
+    }
+
+    private void addOwnerGroup(StringJoiner names, int uInterestedInFlags) {
+        if (Attrs.Validity.SSH_FILEXFER_ATTR_OWNERGROUP.isSet(uInterestedInFlags)) {
+            if (principalNames != null && "unix".equals(view)) {
+                // The names are resolved from the ids only when not cached
+                names.add("uid").add("gid");
+            } else {
+                names.add("owner").add("group");
+            }
+        }
+    }
+
+    private String lookupName(P path, String attribute, LinkOption... linkOptions) throws IOException {
+        return ((Principal) fileSystem.readAttributes(path, attribute, linkOptions).values().iterator().next()).getName();
+    }
+
+    private void readClasses(P path, int uInterestedInFlags, Attrs.Builder builder, LinkOption... linkOptions)
+            throws IOException {
+        Attrs.Type type;
+        BasicFileAttributes attributes;
+        if (fileSystem.isSymbolicLink(path)) {
+            type = Attrs.Type.SSH_FILEXFER_TYPE_SYMLINK;
+            attributes = fileSystem.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } else {
+            attributes = fileSystem.readAttributes(path, BasicFileAttributes.class, linkOptions);
+            if (attributes.isDirectory()) {
+                type = Attrs.Type.SSH_FILEXFER_TYPE_DIRECTORY;
+            } else if (attributes.isRegularFile()) {
+                type = Attrs.Type.SSH_FILEXFER_TYPE_REGULAR;
+            } else if (attributes.isOther()) {
+                type = Attrs.Type.SSH_FILEXFER_TYPE_SPECIAL;
+            } else {
+                type = Attrs.Type.SSH_FILEXFER_TYPE_UNKNOWN;
+            }
+        }
+        builder.reset(type, true);
+        if (type == Attrs.Type.SSH_FILEXFER_TYPE_REGULAR) {
+            builder.withSize(attributes.size());
+        }
+        FileTime mtime = attributes.lastModifiedTime();
+        if (isSet(mtime)) {
+            builder.withMtime(seconds(mtime), nanoseconds(mtime));
+        }
+        FileTime atime = attributes.lastAccessTime();
+        if (isSet(atime)) {
+            builder.withAtime(seconds(atime), nanoseconds(atime));
+        }
+        builder.withAttribute(Attrs.Attribute.SSH_FILEXFER_ATTR_FLAGS_HIDDEN, fileSystem.isHidden(path));
+        if (Attrs.Validity.SSH_FILEXFER_ATTR_OWNERGROUP.isSet(uInterestedInFlags)
+                || Attrs.Validity.SSH_FILEXFER_ATTR_PERMISSIONS.isSet(uInterestedInFlags)) {
+            try {
+                PosixFileAttributes pfa = fileSystem.readAttributes(path, PosixFileAttributes.class, linkOptions);
+                builder.withOwnerGroup(pfa.owner().getName(), pfa.group().getName());
+                builder.withPermissions(toMask(pfa.permissions()));
+            } catch (UnsupportedOperationException ignored) {
+                // Launched by Files.readAttributes, never mind
+            }
+        }
+        if (Attrs.Validity.SSH_FILEXFER_ATTR_BITS.isSet(uInterestedInFlags)) {
+            try {
+                DosFileAttributes dfa = fileSystem.readAttributes(path, DosFileAttributes.class, linkOptions);
+                builder.withAttribute(Attrs.Attribute.SSH_FILEXFER_ATTR_FLAGS_ARCHIVE, dfa.isArchive());
+                builder.withAttribute(Attrs.Attribute.SSH_FILEXFER_ATTR_FLAGS_READONLY, dfa.isReadOnly());
+                builder.withAttribute(Attrs.Attribute.SSH_FILEXFER_ATTR_FLAGS_SYSTEM, dfa.isSystem());
+            } catch (UnsupportedOperationException ignored) {
+                // Launched by Files.readAttributes, never mind
+            }
+        }
+    }
+
+    private static int toMask(Set<PosixFilePermission> permissions) {
+        int mask = 0;
+        for (PosixFilePermission p : permissions) {
+            mask |= POSIX_FILE_PERMISSION_MASK.get(p);
+        }
+        return mask;
+    }
+
+    /**
+     * Returns whether a time is set; the times are passed to the builder directly, as method references
+     * to its setters would be allocated, and their arguments boxed, for each file.
+     */
+    private static boolean isSet(FileTime fileTime) {
+        return fileTime != null && seconds(fileTime) != 0;
+    }
+
+    private static long seconds(FileTime fileTime) {
+        return fileTime.toInstant().getEpochSecond();
+    }
+
+    private static int nanoseconds(FileTime fileTime) {
+        return fileTime.toInstant().getNano();
+    }
+}
@@ -6,7 +6,6 @@ import it.ftb.sftp.network.StringWithLength;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.charset.StandardCharsets;
 import java.util.Optional;
 import java.util.OptionalInt;
 import java.util.OptionalLong;
@@ -19,8 +18,32 @@ public class BufferDecoder implements Decoder {
     private static final Optional<Boolean> OPT_FALSE = Optional.of(false);
 
     private ByteBuffer buffer;
+    private final boolean holdBytes;
+    private final byte[] scratch = new byte[256];
 
     public BufferDecoder(ByteBuffer buffer) {
+        this(buffer, false);
+    }
+
+    /**
+     * Creates a new decoder.
+     *
+     * @param buffer The buffer to decode
+     * @param holdBytes Whether {@link #readBytes()} returns a read-only view of the buffer instead of a copy.
+     *                  The view is only valid until the buffer content is changed.
+     */
+    public BufferDecoder(ByteBuffer buffer, boolean holdBytes) {
+        this.buffer = buffer;
+        this.buffer.order(ByteOrder.BIG_ENDIAN);
+        this.holdBytes = holdBytes;
+    }
+
+    /**
+     * Starts decoding another buffer, so that a single decoder can be reused for all the packets of a session.
+     *
+     * @param buffer The buffer to decode
+     */
+    public void reset(ByteBuffer buffer) {
         this.buffer = buffer;
         this.buffer.order(ByteOrder.BIG_ENDIAN);
     }
@@ -65,7 +88,7 @@ public class BufferDecoder implements Decoder {
             return Optional.empty();
         }
         int len = buffer.getInt();
-        return Optional.of(new StringWithLength(len, StandardCharsets.UTF_8.decode(readBytes(len)).toString()));
+        return Optional.of(new StringWithLength(len, readStringValue(len)));
     }
 
     @Override
@@ -76,18 +99,44 @@ public class BufferDecoder implements Decoder {
         return (buffer.get() == 0 ? OPT_FALSE : OPT_TRUE);
     }
 
+    @Override
+    public boolean hasMore() {
+        return buffer.hasRemaining();
+    }
+
     @Override
     public StringWithLength readString() {
         gather(4, false);
         int len = buffer.getInt();
-        return new StringWithLength(len, StandardCharsets.UTF_8.decode(readBytes(len)).toString());
+        return new StringWithLength(len, readStringValue(len));
+    }
+
+    @Override
+    public String readStringValue(int length) {
+        gather(length, false);
+        return StringDecoding.decode(buffer, length, scratch);
     }
 
     @Override
     public Bytes readBytes() {
         gather(4, false);
-        int len = buffer.getInt();
-        return Bytes.copy(readBytes(len), len);
+        return readBytesValue(buffer.getInt());
+    }
+
+    @Override
+    public Bytes readBytesValue(int len) {
+        if (len == 4) {
+            // Handles, the most common bytes, need no view of the buffer
+            return Bytes.from(readInt());
+        }
+        if (!holdBytes) {
+            return Bytes.copy(readBytes(len), len);
+        }
+        gather(len, false);
+        ByteBuffer bytes = buffer.asReadOnlyBuffer();
+        bytes.limit(bytes.position() + len);
+        buffer.position(bytes.limit());
+        return Bytes.hold(bytes);
     }
 
     private ByteBuffer readBytes(int len) {
@@ -0,0 +1,212 @@
+package it.ftb.sftp;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import it.ftb.sftp.packet.Attrs;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.LinkOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A file system caching the {@link Attrs} of the files for a limited time. The attributes are computed when
+ * {@link #readAttributes} is called with the {@link Attrs} type, as done for the files listed by READDIR,
+ * and are discarded when {@link #attributesChanged} is called; changes made by others are seen when the
+ * cached attributes expire.
+ *
+ * @param <P> The SftpPath instances this SftpFileSystem returns
+ */
+public final class CachingSftpFileSystem<P extends SftpPath<P>> implements SftpFileSystem<P> {
+
+    private final SftpFileSystem<P> delegate;
+    private final AttrsReader<P> attrsReader;
+    private final Cache<Key<P>, Attrs> attributes;
+
+    /**
+     * Creates a new caching file system.
+     *
+     * @param delegate The file system
+     * @param maxEntries The maximum number of cached attributes
+     * @param ttl How long the attributes are cached
+     * @param unit The unit of the ttl
+     */
+    public CachingSftpFileSystem(SftpFileSystem<P> delegate, long maxEntries, long ttl, TimeUnit unit) {
+        this(delegate, maxEntries, ttl, unit, null);
+    }
+
+    /**
+     * Creates a new caching file system.
+     *
+     * @param delegate The file system
+     * @param maxEntries The maximum number of cached attributes
+     * @param ttl How long the attributes are cached
+     * @param unit The unit of the ttl
+     * @param principalNames The cache of the owner and group names, or {@code null}
+     */
+    public CachingSftpFileSystem(SftpFileSystem<P> delegate, long maxEntries, long ttl, TimeUnit unit,
+                                 PrincipalNameCache principalNames) {
+        this.delegate = delegate;
+        this.attrsReader = new AttrsReader<>(delegate, principalNames);
+        this.attributes = CacheBuilder.newBuilder()
+                .maximumSize(maxEntries)
+                .expireAfterWrite(ttl, unit)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Returns the number of attribute reads served by the cache.
+     *
+     * @return The number of hits
+     */
+    public long getHits() {
+        return attributes.stats().hitCount();
+    }
+
+    /**
+     * Returns the number of attribute reads which went to the file system.
+     *
+     * @return The number of misses
+     */
+    public long getMisses() {
+        return attributes.stats().missCount();
+    }
+
+    @Nonnull
+    @Override
+    public P getRoot() {
+        return delegate.getRoot();
+    }
+
+    @Nonnull
+    @Override
+    public P getHome() {
+        return delegate.getHome();
+    }
+
+    @Override
+    public P parse(String path) {
+        return delegate.parse(path);
+    }
+
+    @Override
+    public String toSftpString(P path) {
+        return delegate.toSftpString(path);
+    }
+
+    @Override
+    public <A extends BasicFileAttributes> A readAttributes(P path, Class<A> type, LinkOption... options) throws IOException {
+        if (type != Attrs.class) {
+            return delegate.readAttributes(path, type, options);
+        }
+        try {
+            return type.cast(attributes.get(new Key<>(path, options),
+                    () -> attrsReader.read(path, 0xffffffff, options)));
+        } catch (ExecutionException e) {
+            throw (IOException) e.getCause();
+        } catch (UncheckedExecutionException e) {
+            throw (RuntimeException) e.getCause();
+        }
+    }
+
+    @Override
+    public Set<String> supportedFileAttributeViews() {
+        return delegate.supportedFileAttributeViews();
+    }
+
+    @Override
+    public Map<String, Object> readAttributes(P path, String attributes, LinkOption... options) throws IOException {
+        return delegate.readAttributes(path, attributes, options);
+    }
+
+    @Override
+    public void setAttribute(P path, String attribute, Object value, LinkOption... options) throws IOException {
+        delegate.setAttribute(path, attribute, value, options);
+    }
+
+    @Override
+    public boolean isSymbolicLink(P path) {
+        return delegate.isSymbolicLink(path);
+    }
+
+    @Override
+    public boolean isHidden(P path) throws IOException {
+        return delegate.isHidden(path);
+    }
+
+    @Override
+    public boolean isDirectory(P path) {
+        return delegate.isDirectory(path);
+    }
+
+    @Override
+    public boolean exists(P path) {
+        return delegate.exists(path);
+    }
+
+    @Override
+    public DirectoryStream<P> newDirectoryStream(P path) throws IOException {
+        return delegate.newDirectoryStream(path);
+    }
+
+    @Override
+    public SeekableByteChannel newByteChannel(P path, ImmutableSet<StandardOpenOption> options) throws IOException {
+        return delegate.newByteChannel(path, options);
+    }
+
+    @Override
+    public boolean isSameFile(P path1, P path2) {
+        return delegate.isSameFile(path1, path2);
+    }
+
+    @Override
+    public Object pathKey(P path) {
+        return delegate.pathKey(path);
+    }
+
+    @Override
+    public void attributesChanged(P path) {
+        attributes.invalidate(new Key<>(path, false));
+        attributes.invalidate(new Key<>(path, true));
+        delegate.attributesChanged(path);
+    }
+
+    private static final class Key<P> {
+        private final P path;
+        private final boolean noFollowLinks;
+
+        Key(P path, LinkOption[] options) {
+            this(path, Arrays.asList(options).contains(LinkOption.NOFOLLOW_LINKS));
+        }
+
+        Key(P path, boolean noFollowLinks) {
+            this.path = path;
+            this.noFollowLinks = noFollowLinks;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key<?> that = (Key<?>) o;
+            return noFollowLinks == that.noFollowLinks && path.equals(that.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * path.hashCode() + (noFollowLinks ? 1 : 0);
+        }
+    }
+}
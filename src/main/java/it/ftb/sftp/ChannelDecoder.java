@@ -8,7 +8,6 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.ReadableByteChannel;
-import java.nio.charset.StandardCharsets;
 import java.util.Optional;
 import java.util.OptionalInt;
 import java.util.OptionalLong;
@@ -22,6 +21,7 @@ final class ChannelDecoder implements Decoder {
 
     private final ReadableByteChannel channel;
     private final ByteBuffer buffer = ByteBuffer.allocateDirect(0x10000).order(ByteOrder.BIG_ENDIAN);
+    private final byte[] scratch = new byte[256];
 
     ChannelDecoder(ReadableByteChannel channel) {
         this.channel = channel;
@@ -83,7 +83,7 @@ final class ChannelDecoder implements Decoder {
             return Optional.empty();
         }
         int len = buffer.getInt();
-        return Optional.of(new StringWithLength(len, StandardCharsets.UTF_8.decode(readBytes(len)).toString()));
+        return Optional.of(new StringWithLength(len, readStringValue(len)));
     }
 
     @Override
@@ -94,18 +94,32 @@ final class ChannelDecoder implements Decoder {
         return (buffer.get() == 0 ? OPT_FALSE : OPT_TRUE);
     }
 
+    @Override
+    public boolean hasMore() {
+        return gather(1, true);
+    }
+
     @Override
     public StringWithLength readString() {
         gather(4, false);
         int len = buffer.getInt();
-        return new StringWithLength(len, StandardCharsets.UTF_8.decode(readBytes(len)).toString());
+        return new StringWithLength(len, readStringValue(len));
+    }
+
+    @Override
+    public String readStringValue(int length) {
+        return StringDecoding.decode(readBytes(length), length, scratch);
     }
 
     @Override
     public Bytes readBytes() {
         gather(4, false);
-        int len = buffer.getInt();
-        return Bytes.copy(readBytes(len), len);
+        return readBytesValue(buffer.getInt());
+    }
+
+    @Override
+    public Bytes readBytesValue(int length) {
+        return Bytes.copy(readBytes(length), length);
     }
 
     private ByteBuffer readBytes(int len) {
@@ -1,5 +1,8 @@
 package it.ftb.sftp;
 
+import it.ftb.sftp.network.BufferPool;
+import it.ftb.sftp.network.Bytes;
+import it.ftb.sftp.network.MalformedPacketException;
 import it.ftb.sftp.packet.PacketType;
 import it.ftb.sftp.packet.VoidPacketVisitor;
 import org.slf4j.Logger;
@@ -10,37 +13,134 @@ import java.nio.ByteBuffer;
 /**
  * Handles incoming from the client. Splits the data in packets, and sends the decoded packets to a processor.
  * This class allows both for thread-style and event-style processing.
+ * <p>
+ * The data is held in a chain of pooled segments, which the caller can read into directly with
+ * {@link #readBuffer()} and {@link #received()}; packets spanning two segments are decoded across them,
+ * so the received data is never compacted.
+ * <p>
+ * When the processor is a {@link StreamingWriteVisitor}, the data of the writes not received whole is passed to it
+ * as it arrives, so the memory held does not depend on the maximum packet length.
  */
 public class ClientInputHandler implements AutoCloseable {
 
     private static final Logger LOG = LoggerFactory.getLogger(ClientInputHandler.class);
 
-    private final ByteBuffer clientBuffer = ByteBuffer.allocate(0x10000);
+    /**
+     * Maximum length of the packets accepted by default, fitting reads and writes of
+     * {@link DefaultPacketProcessor#MAX_READ_LENGTH} bytes.
+     */
+    public static final int DEFAULT_MAX_PACKET_LENGTH = DefaultPacketProcessor.MAX_READ_LENGTH + ProcessorConfig.PACKET_OVERHEAD;
+
+    /**
+     * Size of the segments holding the received data.
+     */
+    public static final int SEGMENT_SIZE = 0x10000;
+
+    private final SegmentChain chain;
+    private final SegmentedDecoder decoder;
+    /**
+     * The decoders of the packets, reused for all of them: the ones held by a segment are decoded in place
+     * by {@link #segmentDecoder}, the others across the segments by {@link #spanningPacketDecoder}.
+     */
+    private final BufferDecoder segmentDecoder;
+    private final PacketDecoder segmentPacketDecoder;
+    private final PacketDecoder spanningPacketDecoder;
     private final VoidPacketVisitor processor;
+    private final int maxPacketLength;
+    private final int maxHeldLength;
+    private final StreamingWriteVisitor streamingProcessor;
+
+    /**
+     * The write whose data is being received, or {@code null}.
+     */
+    private StreamingWriteVisitor.WriteStream writeStream;
+    private int writeRemaining;
+    private int skipRemaining;
 
     /**
      * Creates a new ClientInputHandler, splitting packets and sending them to a processor.
      * @param processor The processor to send packets to
      */
     public ClientInputHandler(VoidPacketVisitor processor) {
+        this(processor, false);
+    }
+
+    /**
+     * Creates a new ClientInputHandler, splitting packets and sending them to a processor.
+     * @param processor The processor to send packets to
+     * @param holdBytes Whether the {@link it.ftb.sftp.network.Bytes} in the packets, such as the data of the writes,
+     *                  are views of the received data instead of copies. The processor must then copy them
+     *                  if it uses them after the visit returns.
+     */
+    public ClientInputHandler(VoidPacketVisitor processor, boolean holdBytes) {
+        this(processor, holdBytes, DEFAULT_MAX_PACKET_LENGTH);
+    }
+
+    /**
+     * Creates a new ClientInputHandler, splitting packets and sending them to a processor.
+     * @param processor The processor to send packets to
+     * @param holdBytes Whether the {@link it.ftb.sftp.network.Bytes} in the packets are views of the received data
+     * @param maxPacketLength The maximum length of the accepted packets, excluding the length field,
+     *                        usually {@link ProcessorConfig#getMaxPacketLength()}
+     */
+    public ClientInputHandler(VoidPacketVisitor processor, boolean holdBytes, int maxPacketLength) {
+        this(processor, holdBytes, maxPacketLength, new BufferPool(SEGMENT_SIZE, 2));
+    }
+
+    /**
+     * Creates a new ClientInputHandler, splitting packets and sending them to a processor.
+     * @param processor The processor to send packets to
+     * @param holdBytes Whether the {@link it.ftb.sftp.network.Bytes} in the packets are views of the received data
+     * @param maxPacketLength The maximum length of the accepted packets, excluding the length field
+     * @param segments The pool of the segments holding the received data, which can be shared by multiple handlers
+     */
+    public ClientInputHandler(VoidPacketVisitor processor, boolean holdBytes, int maxPacketLength, BufferPool segments) {
         this.processor = processor;
+        this.chain = new SegmentChain(segments);
+        this.decoder = new SegmentedDecoder(chain, holdBytes);
+        this.segmentDecoder = new BufferDecoder(ByteBuffer.allocate(0), holdBytes);
+        this.segmentPacketDecoder = new PacketDecoder(segmentDecoder, 0);
+        this.spanningPacketDecoder = new PacketDecoder(decoder, 0);
+        this.maxPacketLength = maxPacketLength;
+        this.streamingProcessor = processor instanceof StreamingWriteVisitor ? (StreamingWriteVisitor) processor : null;
+        // Only the packets other than writes need to be held whole when the writes are streamed
+        this.maxHeldLength = streamingProcessor != null ? Math.min(maxPacketLength, DEFAULT_MAX_PACKET_LENGTH)
+                : maxPacketLength;
+    }
+
+    /**
+     * Returns the buffer the next data from the client must be read into, to be then processed with
+     * {@link #received()}. It must be requested again before each read.
+     *
+     * @return The buffer, with some space remaining
+     */
+    public ByteBuffer readBuffer() {
+        return chain.writable();
+    }
+
+    /**
+     * Processes the data read into the buffer returned by {@link #readBuffer()}.
+     *
+     * @throws MalformedPacketException If a packet is longer than the maximum length
+     */
+    public void received() {
+        chain.written();
+        process();
     }
 
     /**
      * Accepts and processes new data from the client. Upon exiting the method, the <i>data</i> buffer will have
-     * been emptied.
+     * been emptied; only the data of the incomplete packets is copied.
      * @param data The data received from the client
+     * @throws MalformedPacketException If a packet is longer than the maximum length
      */
     public void receive(ByteBuffer data) {
         LOG.trace("Received {} bytes", data.remaining());
-        if (clientBuffer.position() != 0) {
-            clientBuffer.put(data);
-            clientBuffer.flip();
-            process(clientBuffer);
-            clientBuffer.compact();
-        } else {
-            process(data);
-            clientBuffer.put(data);
+        chain.append(data);
+        try {
+            process();
+        } finally {
+            chain.detach();
         }
     }
 
@@ -50,28 +150,172 @@ public class ClientInputHandler implements AutoCloseable {
     @Override
     public void close() {
         LOG.trace("Closed");
-        // TODO?
+        chain.release();
+    }
+
+    /**
+     * Processes all the complete packets in the chain, and the data of the streamed writes.
+     */
+    private void process() {
+        while (true) {
+            if (writeStream != null || skipRemaining > 0) {
+                if (!stream()) {
+                    break;
+                }
+                continue;
+            }
+            if (chain.available() < 4) {
+                break;
+            }
+            processSegment(chain.head());
+            if (chain.available() < 4) {
+                break;
+            }
+            // The next packet is incomplete, or spans two segments
+            int length = checkLength(chain.peekInt(0));
+            if (chain.available() < length + 4 || isStreamedWrite()) {
+                // The data of the writes is streamed instead of being copied to be decoded
+                if (!startWrite(length)) {
+                    break;
+                }
+                continue;
+            }
+            processPacket(length);
+            chain.releaseConsumed();
+        }
     }
 
     /**
-     * Reads and processes all the complete packets in <i>data</i>. When returning, the buffer will have its
-     * position set at the first unprocessed packet.
+     * Processes the packets held whole by the first segment, decoding them in place.
      *
-     * @param data The data to be processed
+     * @param data The view of the segment
      */
-    private void process(ByteBuffer data) {
-        while (data.remaining() > 4) {
-            int length = data.getInt(0);
+    private void processSegment(ByteBuffer data) {
+        int start = data.position();
+        while (data.remaining() >= 4) {
+            int length = checkLength(data.getInt(data.position()));
             if (data.remaining() < length + 4) {
                 break;
             }
-            processPacket(data, processor);
+            processPacket(data);
+        }
+        if (data.position() != start) {
+            chain.consumed(data.position() - start);
+            chain.releaseConsumed();
+        }
+    }
+
+    private int checkLength(int length) {
+        if (length < 0 || length > maxPacketLength) {
+            throw new MalformedPacketException("Packet too long: " + Integer.toUnsignedString(length));
+        }
+        return length;
+    }
+
+    /**
+     * Returns whether the packet at the start of the chain, whose type has been received, is a write to stream.
+     *
+     * @return Whether the packet is a write, and the processor streams them
+     */
+    private boolean isStreamedWrite() {
+        return streamingProcessor != null && (chain.peek(4) & 0xff) == PacketType.SSH_FXP_WRITE.getCode();
+    }
+
+    /**
+     * Starts streaming the write at the start of the chain, if its header has been received.
+     *
+     * @param length The length of the incomplete packet
+     * @return Whether the write was started
+     */
+    private boolean startWrite(int length) {
+        int available = chain.available();
+        boolean mayBeWrite = streamingProcessor != null
+                && (available < 5 || (chain.peek(4) & 0xff) == PacketType.SSH_FXP_WRITE.getCode());
+        if (!mayBeWrite && length > maxHeldLength) {
+            throw new MalformedPacketException("Packet too long: " + length);
+        }
+        if (!mayBeWrite || available < 13) {
+            return false;
+        }
+        int handleLength = chain.peekInt(9);
+        if (handleLength < 0 || 21 + handleLength > Math.min(length, maxHeldLength)) {
+            throw new MalformedPacketException("Invalid write handle length: " + Integer.toUnsignedString(handleLength));
+        }
+        if (available < 25 + handleLength) {
+            return false;
+        }
+        chain.skip(5);
+        int requestId = decoder.readInt();
+        Bytes handle = decoder.readBytes();
+        long offset = decoder.readLong();
+        int dataLength = decoder.readInt();
+        if (dataLength < 0 || dataLength > length - 21 - handleLength) {
+            throw new MalformedPacketException("Invalid write length: " + Integer.toUnsignedString(dataLength));
+        }
+        LOG.debug("Streaming write of {} bytes", dataLength);
+        writeStream = streamingProcessor.visitWriteStart(requestId, handle, offset, dataLength);
+        writeRemaining = dataLength;
+        skipRemaining = length - 21 - handleLength - dataLength;
+        chain.releaseConsumed();
+        return true;
+    }
+
+    /**
+     * Passes the data of the streamed write to its stream, then skips the rest of its packet.
+     *
+     * @return Whether the whole packet has been processed
+     */
+    private boolean stream() {
+        if (writeStream != null) {
+            while (writeRemaining > 0 && chain.available() > 0) {
+                ByteBuffer part = chain.readSome(writeRemaining);
+                writeRemaining -= part.remaining();
+                writeStream.write(part);
+            }
+            chain.releaseConsumed();
+            if (writeRemaining > 0) {
+                return false;
+            }
+            StreamingWriteVisitor.WriteStream ended = writeStream;
+            writeStream = null;
+            ended.end();
         }
+        int skipped = Math.min(chain.available(), skipRemaining);
+        chain.skip(skipped);
+        chain.releaseConsumed();
+        skipRemaining -= skipped;
+        return skipRemaining == 0;
     }
 
-    private static <V> void processPacket(ByteBuffer data, VoidPacketVisitor processor) {
+    /**
+     * Processes a packet held in a single segment, decoding it in place.
+     *
+     * @param data The segment, with its position at the start of the packet
+     */
+    private void processPacket(ByteBuffer data) {
         int length = data.getInt();
-        PacketDecoder packetDecoder = new PacketDecoder(new BufferDecoder(data), length);
+        int end = data.position() + length;
+        segmentDecoder.reset(data);
+        segmentPacketDecoder.reset(length);
+        dispatch(segmentPacketDecoder);
+        // Skips the fields not read, such as the ones of unsupported packets and extended requests
+        data.position(end);
+    }
+
+    /**
+     * Processes a packet spanning multiple segments, decoding it across them.
+     *
+     * @param length The length of the packet
+     */
+    private void processPacket(int length) {
+        chain.skip(4);
+        int end = chain.available() - length;
+        spanningPacketDecoder.reset(length);
+        dispatch(spanningPacketDecoder);
+        chain.skip(chain.available() - end);
+    }
+
+    private void dispatch(PacketDecoder packetDecoder) {
         int packetCode = packetDecoder.readByte() & 0xff;
         PacketType packetType = PacketType.fromCode(packetCode);
         if (packetType == null || packetType.getPacketFactory() == null) {
@@ -0,0 +1,301 @@
+package it.ftb.sftp;
+
+import com.google.common.collect.ImmutableList;
+import it.ftb.sftp.network.Bytes;
+import it.ftb.sftp.network.SlabAllocator;
+import it.ftb.sftp.packet.Attrs;
+import it.ftb.sftp.packet.ErrorCode;
+import it.ftb.sftp.packet.SshFxpRealpath;
+import it.ftb.sftp.packet.VoidPacketVisitor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Implementation of the SFTP protocol which executes the requests on an {@link Executor}.
+ * Each response is sent as soon as its request completes, so responses can be sent in a different order
+ * than the requests were received; the client matches them through their request id.
+ * Requests on the same handle are still executed in the order they were received, one at a time;
+ * the only exception are consecutive reads on a file supporting positional reads, which are executed concurrently.
+ * <p>
+ * The data of the writes is copied to bytes allocated by a {@link SlabAllocator}, which are released
+ * when the write completes; streamed writes are collected there before being executed.
+ * <p>
+ * The writer must accept packets from multiple threads, as {@link DefaultPacketWriter} does.
+ *
+ * @param <P> The actual type of the SftpPath implementation
+ */
+public class ConcurrentPacketProcessor<P extends SftpPath<P>> extends DefaultPacketProcessor<P> implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ConcurrentPacketProcessor.class);
+
+    /**
+     * Size of the chunks holding the data of the writes; larger writes are held by multiple chunks.
+     */
+    public static final int WRITE_CHUNK_SIZE = 0x10000;
+
+    private final SlabAllocator writeBuffers;
+    private final Executor executor;
+    private final Map<Integer, HandleQueue> handleQueues = new HashMap<>();
+    private int pendingRequests = 0;
+
+    public ConcurrentPacketProcessor(SftpFileSystem<P> fileSystem, VoidPacketVisitor writer, Executor executor) {
+        this(fileSystem, writer, new ProcessorConfig.Builder().build(), executor);
+    }
+
+    public ConcurrentPacketProcessor(SftpFileSystem<P> fileSystem, VoidPacketVisitor writer, ProcessorConfig config, Executor executor) {
+        super(fileSystem, writer, config);
+        this.writeBuffers = config.getWriteBuffers();
+        this.executor = executor;
+    }
+
+    @Override
+    public void visitInit(int uVersion) {
+        // Executed inline: the client must wait for the version before sending any other request
+        super.visitInit(uVersion);
+    }
+
+    @Override
+    public void visitLstat(int uRequestId, String sftpPath, int uFlags) {
+        submit(uRequestId, () -> super.visitLstat(uRequestId, sftpPath, uFlags));
+    }
+
+    @Override
+    public void visitStat(int uRequestId, String sftpPath, int uFlags) {
+        submit(uRequestId, () -> super.visitStat(uRequestId, sftpPath, uFlags));
+    }
+
+    @Override
+    public void visitFstat(int uRequestId, Bytes bHandle, int uFlags) {
+        Bytes handle = detach(bHandle);
+        submit(handle, false, uRequestId, () -> super.visitFstat(uRequestId, handle, uFlags));
+    }
+
+    @Override
+    public void visitRealpath(int uRequestId, String originalPath, SshFxpRealpath.ControlByte controlByte, ImmutableList<String> composePath) {
+        submit(uRequestId, () -> super.visitRealpath(uRequestId, originalPath, controlByte, composePath));
+    }
+
+    @Override
+    public void visitOpenDir(int uRequestId, String sftpPath) {
+        submit(uRequestId, () -> super.visitOpenDir(uRequestId, sftpPath));
+    }
+
+    @Override
+    public void visitReadDir(int uRequestId, Bytes bHandle) {
+        Bytes handle = detach(bHandle);
+        submit(handle, false, uRequestId, () -> super.visitReadDir(uRequestId, handle));
+    }
+
+    @Override
+    public void visitOpen(int uRequestId, String filename, int uDesideredAccess, int uFlags, Attrs attrs) {
+        submit(uRequestId, () -> super.visitOpen(uRequestId, filename, uDesideredAccess, uFlags, attrs));
+    }
+
+    @Override
+    public void visitClose(int uRequestId, Bytes bHandle) {
+        Bytes handle = detach(bHandle);
+        submit(handle, false, uRequestId, () -> super.visitClose(uRequestId, handle));
+    }
+
+    @Override
+    public void visitRead(int uRequestId, Bytes bHandle, long uOffset, int uLength) {
+        Bytes handle = detach(bHandle);
+        submit(handle, isPositional(handle), uRequestId, () -> super.visitRead(uRequestId, handle, uOffset, uLength));
+    }
+
+    @Override
+    public void visitWrite(int uRequestId, Bytes bHandle, long uOffset, Bytes bData) {
+        visitCollectedWrite(uRequestId, bHandle, uOffset, writeBuffers.copyOf(bData));
+    }
+
+    @Override
+    public WriteStream visitWriteStart(int uRequestId, Bytes bHandle, long uOffset, int uLength) {
+        // Written in order with the other requests on the handle, once received whole
+        return collectWrite(uRequestId, bHandle, uOffset, uLength);
+    }
+
+    @Override
+    protected void visitCollectedWrite(int uRequestId, Bytes bHandle, long uOffset, Bytes data) {
+        Bytes handle = detach(bHandle);
+        submit(handle, false, uRequestId, data, () -> super.visitWrite(uRequestId, handle, uOffset, data));
+    }
+
+    @Override
+    public void visitSetstat(int uRequestId, String sftpPath, Attrs attrs) {
+        submit(uRequestId, () -> super.visitSetstat(uRequestId, sftpPath, attrs));
+    }
+
+    @Override
+    protected Bytes retainData(Bytes data) {
+        // Already copied to pooled bytes by visitWrite
+        return data.retain();
+    }
+
+    /**
+     * Waits for all the submitted requests to complete.
+     */
+    @Override
+    public void close() {
+        synchronized (handleQueues) {
+            try {
+                while (pendingRequests > 0) {
+                    handleQueues.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeInterruptedException(e);
+            }
+        }
+    }
+
+    private void submit(int uRequestId, Runnable request) {
+        synchronized (handleQueues) {
+            pendingRequests++;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    execute(uRequestId, request);
+                } finally {
+                    completed();
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            rejected(uRequestId, null, ex);
+        }
+    }
+
+    /**
+     * Reads a handle once, and copies it: the received bytes are only valid until the visit returns,
+     * and the decoded copies can be read only once.
+     */
+    private static Bytes detach(Bytes bHandle) {
+        return Bytes.from(bHandle.asInt());
+    }
+
+    private boolean isPositional(Bytes bHandle) {
+        FileData<P> fileData = getFileData(bHandle);
+        return fileData != null && fileData.isPositional();
+    }
+
+    private void submit(Bytes handle, boolean concurrent, int uRequestId, Runnable request) {
+        submit(handle, concurrent, uRequestId, null, request);
+    }
+
+    /**
+     * Queues a request on a handle.
+     *
+     * @param handle The handle, as returned by {@link #detach(Bytes)}
+     * @param concurrent Whether the request can be executed concurrently with the other concurrent ones
+     * @param uRequestId The request id
+     * @param data The data of the write, released once the request completes or is rejected, or {@code null}
+     * @param request The request
+     */
+    private void submit(Bytes handle, boolean concurrent, int uRequestId, Bytes data, Runnable request) {
+        int h = handle.asInt();
+        synchronized (handleQueues) {
+            pendingRequests++;
+            HandleQueue queue = handleQueues.computeIfAbsent(h, k -> new HandleQueue());
+            queue.waiting.add(new QueuedRequest(uRequestId, request, data, concurrent));
+            startWaiting(h, queue);
+            if (queue.running == 0) {
+                handleQueues.remove(h);
+            }
+        }
+    }
+
+    private void startWaiting(int handle, HandleQueue queue) {
+        QueuedRequest next;
+        while (null != (next = queue.waiting.peek())
+                && (queue.running == 0 || (next.concurrent && queue.concurrent))) {
+            queue.waiting.poll();
+            queue.running++;
+            queue.concurrent = next.concurrent;
+            QueuedRequest request = next;
+            try {
+                executor.execute(() -> {
+                    try {
+                        execute(request.uRequestId, request.request);
+                    } finally {
+                        if (request.data != null) {
+                            request.data.release();
+                        }
+                        completed(handle, queue);
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                queue.running--;
+                rejected(request.uRequestId, request.data, ex);
+            }
+        }
+    }
+
+    /**
+     * Fails a request the executor did not accept, for instance because it is shutting down.
+     */
+    private void rejected(int uRequestId, Bytes data, RejectedExecutionException ex) {
+        try {
+            LOG.warn("Request {} rejected", uRequestId, ex);
+            if (data != null) {
+                data.release();
+            }
+            sendFailure(uRequestId, ErrorCode.SSH_FX_FAILURE, "Server shutting down");
+        } finally {
+            completed();
+        }
+    }
+
+    private void completed(int handle, HandleQueue queue) {
+        synchronized (handleQueues) {
+            queue.running--;
+            startWaiting(handle, queue);
+            if (queue.running == 0) {
+                handleQueues.remove(handle);
+            }
+            completed();
+        }
+    }
+
+    private void execute(int uRequestId, Runnable request) {
+        try {
+            request.run();
+        } catch (RuntimeException ex) {
+            LOG.error("Error processing request {}", uRequestId, ex);
+            sendFailure(uRequestId, ErrorCode.SSH_FX_FAILURE, ex);
+        }
+    }
+
+    private void completed() {
+        synchronized (handleQueues) {
+            if (--pendingRequests == 0) {
+                handleQueues.notifyAll();
+            }
+        }
+    }
+
+    private static final class QueuedRequest {
+        final int uRequestId;
+        final Runnable request;
+        final Bytes data;
+        final boolean concurrent;
+
+        QueuedRequest(int uRequestId, Runnable request, Bytes data, boolean concurrent) {
+            this.uRequestId = uRequestId;
+            this.request = request;
+            this.data = data;
+            this.concurrent = concurrent;
+        }
+    }
+
+    private static final class HandleQueue {
+        final ArrayDeque<QueuedRequest> waiting = new ArrayDeque<>();
+        int running = 0;
+        boolean concurrent;
+    }
+}
@@ -1,10 +1,12 @@
 package it.ftb.sftp;
 
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
 import com.google.common.primitives.UnsignedInts;
+import it.ftb.sftp.network.BufferPool;
 import it.ftb.sftp.network.Bytes;
+import it.ftb.sftp.network.Encoder;
 import it.ftb.sftp.packet.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -13,120 +15,69 @@ import java.io.Closeable;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.file.DirectoryStream;
 import java.nio.file.LinkOption;
 import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.*;
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.TimeUnit;
-import java.util.function.BiConsumer;
 
 /**
  * Standard implementation of the SFTP protocol.
+ * The data of the writes received in parts is written to the file as it arrives.
  *
  * @param <P> The actual type of the SftpPath implementation
  */
-public class DefaultPacketProcessor<P extends SftpPath<P>> implements VoidPacketVisitor {
-
-    @SuppressWarnings("OctalInteger")
-    private static final Map<PosixFilePermission, Integer> POSIX_FILE_PERMISSION_MASK =
-            ImmutableMap.<PosixFilePermission, Integer>builder()
-                    .put(PosixFilePermission.OWNER_READ, 0000400)
-                    .put(PosixFilePermission.OWNER_WRITE, 0000200)
-                    .put(PosixFilePermission.OWNER_EXECUTE, 0000100)
-                    .put(PosixFilePermission.GROUP_READ, 0000040)
-                    .put(PosixFilePermission.GROUP_WRITE, 0000020)
-                    .put(PosixFilePermission.GROUP_EXECUTE, 0000010)
-                    .put(PosixFilePermission.OTHERS_READ, 0000004)
-                    .put(PosixFilePermission.OTHERS_WRITE, 0000002)
-                    .put(PosixFilePermission.OTHERS_EXECUTE, 0000001)
-                    .build();
-
-    protected static <P extends SftpPath<P>> Attrs createAttrs(SftpFileSystem<P> fileSystem, P path) throws IOException {
-        return createAttrs(fileSystem, path, 0xffffffff);
-    }
-
-    protected static <P extends SftpPath<P>> Attrs createAttrs(SftpFileSystem<P> fileSystem, P path, int uInterestedInFlags, LinkOption... linkOptions) throws IOException {
-        try {
-            return fileSystem.readAttributes(path, Attrs.class, linkOptions);
-        } catch (UnsupportedOperationException ignored) {
-            // I gave it a try, never mind
-        }
+public class DefaultPacketProcessor<P extends SftpPath<P>> implements VoidPacketVisitor, StreamingWriteVisitor {
 
-        Attrs.Type type;
-        BasicFileAttributes attributes;
-        if (fileSystem.isSymbolicLink(path)) {
-            type = Attrs.Type.SSH_FILEXFER_TYPE_SYMLINK;
-            attributes = fileSystem.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
-        } else {
-            attributes = fileSystem.readAttributes(path, BasicFileAttributes.class, linkOptions);
-            if (attributes.isDirectory()) {
-                type = Attrs.Type.SSH_FILEXFER_TYPE_DIRECTORY;
-            } else if (attributes.isRegularFile()) {
-                type = Attrs.Type.SSH_FILEXFER_TYPE_REGULAR;
-            } else if (attributes.isOther()) {
-                type = Attrs.Type.SSH_FILEXFER_TYPE_SPECIAL;
-            } else {
-                type = Attrs.Type.SSH_FILEXFER_TYPE_UNKNOWN;
-            }
-        }
-        Attrs.Builder builder = new Attrs.Builder(type, true);
-        if (type == Attrs.Type.SSH_FILEXFER_TYPE_REGULAR) {
-            builder.withSize(attributes.size());
-        }
-        setTime(attributes.lastModifiedTime(), builder::withMtime);
-        setTime(attributes.lastAccessTime(), builder::withAtime);
-        builder.withAttribute(Attrs.Attribute.SSH_FILEXFER_ATTR_FLAGS_HIDDEN, fileSystem.isHidden(path));
-        if (Attrs.Validity.SSH_FILEXFER_ATTR_OWNERGROUP.isSet(uInterestedInFlags)
-                || Attrs.Validity.SSH_FILEXFER_ATTR_PERMISSIONS.isSet(uInterestedInFlags)) {
-            try {
-                PosixFileAttributes pfa = fileSystem.readAttributes(path, PosixFileAttributes.class, linkOptions);
-                builder.withOwnerGroup(pfa.owner().getName(), pfa.group().getName());
-                int permissions = 0;
-                for (PosixFilePermission p : pfa.permissions()) {
-                    permissions |= POSIX_FILE_PERMISSION_MASK.get(p);
-                }
-                builder.withPermissions(permissions);
-            } catch (UnsupportedOperationException ignored) {
-                // Launched by Files.readAttributes, never mind
-            }
-        }
-        if (Attrs.Validity.SSH_FILEXFER_ATTR_BITS.isSet(uInterestedInFlags)) {
-            try {
-                DosFileAttributes dfa = fileSystem.readAttributes(path, DosFileAttributes.class, linkOptions);
-                builder.withAttribute(Attrs.Attribute.SSH_FILEXFER_ATTR_FLAGS_ARCHIVE, dfa.isArchive());
-                builder.withAttribute(Attrs.Attribute.SSH_FILEXFER_ATTR_FLAGS_READONLY, dfa.isReadOnly());
-                builder.withAttribute(Attrs.Attribute.SSH_FILEXFER_ATTR_FLAGS_SYSTEM, dfa.isSystem());
-            } catch (UnsupportedOperationException ignored) {
-                // Launched by Files.readAttributes, never mind
-            }
-        }
-        return builder.build();
-    }
+    private static final Logger LOG = LoggerFactory.getLogger(DefaultPacketProcessor.class);
 
-    private static void setTime(FileTime fileTime, BiConsumer<Long, Integer> setter) {
-        long epochSec = fileTime.toInstant().getEpochSecond();
-        int epochNanosec = fileTime.toInstant().getNano();
-        if (epochSec != 0) {
-            setter.accept(epochSec, epochNanosec);
-        }
-    }
+    /**
+     * Default maximum number of bytes returned by a single read, as expected by all clients.
+     */
+    public static final int MAX_READ_LENGTH = 0x10000;
 
-    private static final Logger LOG = LoggerFactory.getLogger(DefaultPacketProcessor.class);
+    /**
+     * Size of the buffers used for reads of {@link #MAX_READ_LENGTH} bytes.
+     */
+    public static final int READ_BUFFER_SIZE = readBufferSize(MAX_READ_LENGTH);
+
+    private static final ImmutableSet<StandardOpenOption> CREATE_OR_TRUNCATE_OPTIONS = ImmutableSet.of(
+            StandardOpenOption.CREATE, StandardOpenOption.CREATE_NEW, StandardOpenOption.TRUNCATE_EXISTING);
 
     protected final SftpFileSystem<P> fileSystem;
     protected final VoidPacketVisitor writer;
-    protected final Map<Integer, FileData<P>> openFiles = new HashMap<>();               // TODO: Limitare il numero di entries
-    protected final Map<Integer, DirectoryData<P>> openDirectories = new HashMap<>();    // TODO: Limitare il numero di entries
-    protected int handlesCount = 0;
+    protected final ProcessorConfig config;
+    protected final BufferPool readBuffers;
+    protected final AttrsReader<P> attrsReader;
+    private final EncodedAttrsCache encodedAttrs;
+    /**
+     * The open files and directories, as {@link FileData} and {@link DirectoryData}.
+     */
+    protected final HandleTable<Closeable> openHandles;
 
     public DefaultPacketProcessor(SftpFileSystem<P> fileSystem, VoidPacketVisitor writer) {
+        this(fileSystem, writer, new ProcessorConfig.Builder().build());
+    }
+
+    /**
+     * Creates a new processor.
+     *
+     * @param fileSystem The file system to serve
+     * @param writer The visitor receiving the responses
+     * @param config The configuration; it can be shared by multiple processors
+     */
+    public DefaultPacketProcessor(SftpFileSystem<P> fileSystem, VoidPacketVisitor writer, ProcessorConfig config) {
         this.fileSystem = fileSystem;
         this.writer = writer;
+        this.config = config;
+        this.readBuffers = config.getReadBuffers();
+        this.attrsReader = new AttrsReader<>(fileSystem, config.getPrincipalNames().orElse(null));
+        this.encodedAttrs = config.getEncodedAttrs().orElse(null);
+        this.openHandles = new HandleTable<>(config.getMaxHandles());
     }
 
     @Override
@@ -140,14 +91,24 @@ public class DefaultPacketProcessor<P extends SftpPath<P>> implements VoidPacket
         if (uVersion < 6) {
             throw new ProtocolException("Unsupported protocol version " + uVersion);
         }
-        writer.visitVersion(6, ImmutableList.of());
+        writer.visitVersion(6, ImmutableList.of(new ExtensionPair(SshFxpExtended.LIMITS, "1")));
+    }
+
+    @Override
+    public void visitExtended(int uRequestId, String extendedRequest) {
+        if (SshFxpExtended.LIMITS.equals(extendedRequest)) {
+            writer.visitLimits(uRequestId, config.getMaxPacketLength(), config.getMaxTransferLength(),
+                    config.getMaxTransferLength(), config.getMaxHandles());
+        } else {
+            sendFailure(uRequestId, ErrorCode.SSH_FX_OP_UNSUPPORTED, "Unsupported request " + extendedRequest);
+        }
     }
 
     @Override
     public void visitLstat(int uRequestId, String sftpPath, int uFlags) {
-        P path = SftpPath.parse(fileSystem, sftpPath);
+        P path = fileSystem.parse(sftpPath);
         try {
-            Attrs attrs = createAttrs(fileSystem, path, uFlags, LinkOption.NOFOLLOW_LINKS);
+            Attrs attrs = readAttrs(path, uFlags, LinkOption.NOFOLLOW_LINKS);
             writer.visitAttrs(uRequestId, attrs);
         } catch (IOException e) {
             sendFailure(uRequestId, ErrorCode.SSH_FX_FAILURE, e);
@@ -156,9 +117,9 @@ public class DefaultPacketProcessor<P extends SftpPath<P>> implements VoidPacket
 
     @Override
     public void visitStat(int uRequestId, String sftpPath, int uFlags) {
-        P path = SftpPath.parse(fileSystem, sftpPath);
+        P path = fileSystem.parse(sftpPath);
         try {
-            Attrs attrs = createAttrs(fileSystem, path, uFlags);
+            Attrs attrs = readAttrs(path, uFlags);
             writer.visitAttrs(uRequestId, attrs);
         } catch (IOException e) {
             sendFailure(uRequestId, ErrorCode.SSH_FX_FAILURE, e);
@@ -167,18 +128,23 @@ public class DefaultPacketProcessor<P extends SftpPath<P>> implements VoidPacket
 
     @Override
     public void visitFstat(int uRequestId, Bytes bHandle, int uFlags) {
-        int handle = bHandle.asInt();
+        Closeable handleData = openHandles.get(bHandle.asInt());
+        FileData<P> fileData = as(handleData, FileData.class);
+        DirectoryData<P> directoryData = as(handleData, DirectoryData.class);
         P path;
-        if (openFiles.containsKey(handle)) {
-            path = openFiles.get(handle).path;
-        } else if (openDirectories.containsKey(handle)) {
-            path = openDirectories.get(handle).path;
+        if (fileData != null) {
+            if (fileData.writeBehind != null) {
+                fileData.writeBehind.flush();
+            }
+            path = fileData.path;
+        } else if (directoryData != null) {
+            path = directoryData.path;
         } else {
             sendFailure(uRequestId, ErrorCode.SSH_FX_INVALID_HANDLE, "Handle not found");
             return;
         }
         try {
-            Attrs attrs = createAttrs(fileSystem, path, uFlags);
+            Attrs attrs = readAttrs(path, uFlags);
             writer.visitAttrs(uRequestId, attrs);
         } catch (IOException e) {
             sendFailure(uRequestId, ErrorCode.SSH_FX_FAILURE, e);
@@ -187,9 +153,9 @@ public class DefaultPacketProcessor<P extends SftpPath<P>> implements VoidPacket
 
     @Override
     public void visitRealpath(int uRequestId, String originalPath, SshFxpRealpath.ControlByte controlByte, ImmutableList<String> composePath) {
-        P path = SftpPath.parse(fileSystem, originalPath);
+        P path = fileSystem.parse(originalPath);
         for (String cp : composePath) {
-            P pComponent = SftpPath.parse(fileSystem, cp);
+            P pComponent = fileSystem.parse(cp);
             if (cp.charAt(0) == '/') {
                 path = pComponent;
             } else {
@@ -200,21 +166,21 @@ public class DefaultPacketProcessor<P extends SftpPath<P>> implements VoidPacket
         switch (controlByte) {
             case SSH_FXP_REALPATH_NO_CHECK:
                 writer.visitName(uRequestId,
-                        ImmutableList.of(SftpPath.toString(fileSystem, path)),
+                        ImmutableList.of(fileSystem.toSftpString(path)),
                         ImmutableList.of(Attrs.EMPTY),
                         Optional.of(true));
                 break;
             case SSH_FXP_REALPATH_STAT_IF:
                 try {
                     path = path.toRealPath();
-                    Attrs attrs = createAttrs(fileSystem, path);
+                    Attrs attrs = attrsReader.read(path);
                     writer.visitName(uRequestId,
-                            ImmutableList.of(SftpPath.toString(fileSystem, path)),
+                            ImmutableList.of(fileSystem.toSftpString(path)),
                             ImmutableList.of(attrs),
                             Optional.of(true));
                 } catch (IOException e) {
                     writer.visitName(uRequestId,
-                            ImmutableList.of(SftpPath.toString(fileSystem, path)),
+                            ImmutableList.of(fileSystem.toSftpString(path)),
                             ImmutableList.of(Attrs.EMPTY),
                             Optional.of(true));
                 }
@@ -223,9 +189,9 @@ public class DefaultPacketProcessor<P extends SftpPath<P>> implements VoidPacket
             case SSH_FXP_REALPATH_STAT_ALWAYS:
                 try {
                     path = path.toRealPath();
-                    Attrs attrs = createAttrs(fileSystem, path);
+                    Attrs attrs = attrsReader.read(path);
                     writer.visitName(uRequestId,
-                            ImmutableList.of(SftpPath.toString(fileSystem, path)),
+                            ImmutableList.of(fileSystem.toSftpString(path)),
                             ImmutableList.of(attrs),
                             Optional.of(true));
                 } catch (IOException e) {
@@ -239,7 +205,7 @@ public class DefaultPacketProcessor<P extends SftpPath<P>> implements VoidPacket
 
     @Override
     public void visitOpenDir(int uRequestId, String sftpPath) {
-        P path = SftpPath.parse(fileSystem, sftpPath);
+        P path = fileSystem.parse(sftpPath);
         if (fileSystem.exists(path) && !fileSystem.isDirectory(path)) {
             writer.visitStatus(uRequestId,
                     ErrorCode.SSH_FX_NOT_A_DIRECTORY,
@@ -247,9 +213,7 @@ public class DefaultPacketProcessor<P extends SftpPath<P>> implements VoidPacket
         } else {
             try {
                 DirectoryStream<P> dirStream = fileSystem.newDirectoryStream(path);
-                int handle = ++handlesCount;
-                openDirectories.put(handle, new DirectoryData<>(path, dirStream));
-                writer.visitHandle(uRequestId, Bytes.from(handle));
+                addHandle(uRequestId, new DirectoryData<>(path, dirStream));
             } catch (FileNotFoundException e) {
                 sendFailure(uRequestId, ErrorCode.SSH_FX_NO_SUCH_FILE, "File not found");
             } catch (IOException e) {
@@ -260,17 +224,27 @@ public class DefaultPacketProcessor<P extends SftpPath<P>> implements VoidPacket
 
     @Override
     public void visitReadDir(int uRequestId, Bytes handle) {
-        DirectoryData<P> dirStream = openDirectories.get(handle.asInt());
+        DirectoryData<P> dirStream = as(openHandles.get(handle.asInt()), DirectoryData.class);
         if (dirStream == null) {
             sendFailure(uRequestId, ErrorCode.SSH_FX_INVALID_HANDLE, "Handle not found");
         } else {
+            if (encodedAttrs == null && writer instanceof NameEntriesVisitor) {
+                // The attributes are encoded from the reused records of the handle
+                int count = 0;
+                for (; count < DirectoryData.MAX_ENTRIES && dirStream.iterator.hasNext(); count++) {
+                    dirStream.read(count, dirStream.iterator.next(), attrsReader);
+                }
+                ((NameEntriesVisitor) writer).visitName(uRequestId, count, dirStream,
+                        Optional.of(!dirStream.iterator.hasNext()));
+                return;
+            }
             ImmutableList.Builder<String> names = new ImmutableList.Builder<>();
             ImmutableList.Builder<Attrs> attributes = new ImmutableList.Builder<>();
-            for (int i = 0; i < 16 && dirStream.iterator.hasNext(); i++) {
+            for (int i = 0; i < DirectoryData.MAX_ENTRIES && dirStream.iterator.hasNext(); i++) {
                 P path = dirStream.iterator.next();
                 names.add(path.getFileName());
                 try {
-                    attributes.add(createAttrs(fileSystem, path));
+                    attributes.add(readAttrs(path, 0xffffffff));
                 } catch (IOException e) {
                     attributes.add(Attrs.EMPTY);
                 }
@@ -281,7 +255,7 @@ public class DefaultPacketProcessor<P extends SftpPath<P>> implements VoidPacket
 
     @Override
     public void visitOpen(int uRequestId, String filename, int uDesideredAccess, int uFlags, Attrs attrs) {
-        P fsPath = SftpPath.parse(fileSystem, filename);
+        P fsPath = fileSystem.parse(filename);
         try {
             boolean appendRequested = false;
             boolean truncateSet = false;
@@ -336,9 +310,23 @@ public class DefaultPacketProcessor<P extends SftpPath<P>> implements VoidPacket
 
             ImmutableSet<StandardOpenOption> bOpenOptions = openOptions.build();
             SeekableByteChannel fileChannel = fileSystem.newByteChannel(fsPath, bOpenOptions);
-            int handle = ++handlesCount;
-            openFiles.put(handle, new FileData<>(fileChannel, fsPath, appendRequested));
-            writer.visitHandle(uRequestId, Bytes.from(handle));
+            FileData<P> fileData;
+            try {
+                fileData = newFileData(fileChannel, fsPath, bOpenOptions, appendRequested);
+            } catch (IOException | RuntimeException e) {
+                try {
+                    fileChannel.close();
+                } catch (IOException closeFailure) {
+                    e.addSuppressed(closeFailure);
+                }
+                throw e;
+            } finally {
+                if (!Sets.intersection(bOpenOptions, CREATE_OR_TRUNCATE_OPTIONS).isEmpty()) {
+                    // The file may have been created or truncated, once opened
+                    attributesChanged(fsPath);
+                }
+            }
+            addHandle(uRequestId, fileData);
         } catch (FileNotFoundException e) {
             sendFailure(uRequestId, ErrorCode.SSH_FX_NO_SUCH_FILE, "File not found");
         } catch (IOException e) {
@@ -346,18 +334,55 @@ public class DefaultPacketProcessor<P extends SftpPath<P>> implements VoidPacket
         }
     }
 
+    /**
+     * Creates the data of a file just opened, choosing how its reads and writes are served.
+     */
+    private FileData<P> newFileData(SeekableByteChannel fileChannel, P fsPath, ImmutableSet<StandardOpenOption> bOpenOptions,
+                                    boolean appendRequested) throws IOException {
+        MappedRegionCache.MappedFile mapped = null;
+        ReadAhead.Tracker readAhead = null;
+        WriteBehind.Buffer writeBehind = null;
+        if (fileChannel instanceof FileChannel && !bOpenOptions.contains(StandardOpenOption.WRITE)) {
+            if (config.getMappedRegions().isPresent()) {
+                mapped = config.getMappedRegions().get().open(fileSystem.pathKey(fsPath), (FileChannel) fileChannel,
+                        fileSystem.readAttributes(fsPath, BasicFileAttributes.class));
+            }
+            if (mapped == null && config.getReadAhead().isPresent()) {
+                readAhead = config.getReadAhead().get().newTracker(fileSystem.pathKey(fsPath), (FileChannel) fileChannel,
+                        readBuffers);
+            }
+        } else if (fileChannel instanceof FileChannel && !appendRequested && config.getWriteBehind().isPresent()) {
+            writeBehind = config.getWriteBehind().get().newBuffer((FileChannel) fileChannel, writer,
+                    () -> attributesChanged(fsPath));
+        }
+        DescriptorBudget.Channel budgeted = null;
+        if (mapped == null && readAhead == null && writeBehind == null && config.getDescriptorBudget().isPresent()
+                && !bOpenOptions.contains(StandardOpenOption.DELETE_ON_CLOSE)) {
+            // Reopened without the options creating or truncating the file
+            ImmutableSet<StandardOpenOption> reopenOptions =
+                    Sets.difference(bOpenOptions, CREATE_OR_TRUNCATE_OPTIONS).immutableCopy();
+            budgeted = config.getDescriptorBudget().get().register(fileChannel,
+                    () -> fileSystem.newByteChannel(fsPath, reopenOptions));
+        }
+        return new FileData<>(fileChannel, fsPath, appendRequested, mapped, readAhead, writeBehind, budgeted);
+    }
+
     @Override
     public void visitClose(int uRequestId, Bytes bHandle) {
-        int handle = bHandle.asInt();
-        Closeable closeable = openFiles.remove(handle);
-        if (closeable == null) {
-            closeable = openDirectories.remove(handle);
-        }
+        Closeable closeable = openHandles.remove(bHandle.asInt());
         if (closeable == null) {
             sendFailure(uRequestId, ErrorCode.SSH_FX_INVALID_HANDLE, "Handle not found");
         } else {
+            FileData<P> fileData = as(closeable, FileData.class);
             try {
-                closeable.close();
+                try {
+                    closeable.close();
+                } finally {
+                    // After the buffered data has been written, and the channel closed
+                    if (fileData != null) {
+                        attributesChanged(fileData.path);
+                    }
+                }
                 writer.visitStatus(uRequestId, ErrorCode.SSH_FX_OK, "", "");
             } catch (IOException e) {
                 sendFailure(uRequestId, ErrorCode.SSH_FX_FAILURE, e);
@@ -367,61 +392,255 @@ public class DefaultPacketProcessor<P extends SftpPath<P>> implements VoidPacket
 
     @Override
     public void visitRead(int uRequestId, Bytes handle, long uOffset, int uLength) {
-        FileData fileData = openFiles.get(handle.asInt());
+        FileData<P> fileData = getFileData(handle);
         if (fileData == null) {
             sendFailure(uRequestId, ErrorCode.SSH_FX_INVALID_HANDLE, "Handle not found");
             return;
         }
+        if (fileData.writeBehind != null) {
+            fileData.writeBehind.flush();
+        }
+        int length = UnsignedInts.min(uLength, config.getMaxTransferLength());
+        if (fileData.readAhead != null) {
+            ReadAhead.Block block = fileData.readAhead.next(uOffset, length);
+            if (block != null) {
+                try {
+                    writer.visitData(uRequestId, Bytes.framed(block.getData()), block.isEndOfFile());
+                } finally {
+                    block.release();
+                }
+                return;
+            }
+        }
+        // The data is read in a pooled buffer, leaving room for the packet header,
+        // so that the writer can send it without copying it
+        ByteBuffer data = readBuffers.acquire();
         try {
-            fileData.channel.position(uOffset);
-            int length = UnsignedInts.min(uLength, 0x10000);
-            ByteBuffer data = ByteBuffer.allocate(length);
+            data.limit(SshFxpData.HEADER_LENGTH + length);
+            data.position(SshFxpData.HEADER_LENGTH);
+            if (fileData.mapped != null) {
+                // Copied from the mapped windows, up to the size the file had when opened
+                while (data.hasRemaining()
+                        && 0 < fileData.mapped.read(data, uOffset + data.position() - SshFxpData.HEADER_LENGTH)) {
+                    // Keep reading
+                }
+            }
             int numRead = 0;
-            while (data.hasRemaining() && -1 != (numRead = fileData.channel.read(data))) {
+            while (data.hasRemaining()
+                    && -1 != (numRead = fileData.read(data, uOffset + data.position() - SshFxpData.HEADER_LENGTH))) {
                 // Keep reading
             }
-            data.flip();
-            writer.visitData(uRequestId, Bytes.hold(data), numRead == -1);
+            data.limit(data.position());
+            data.position(SshFxpData.HEADER_LENGTH);
+            writer.visitData(uRequestId, Bytes.framed(data), numRead == -1);
         } catch (IOException e) {
             sendFailure(uRequestId, ErrorCode.SSH_FX_FAILURE, e);
+        } finally {
+            readBuffers.release(data);
         }
     }
 
     @Override
     public void visitWrite(int uRequestId, Bytes handle, long uOffset, Bytes data) {
-        FileData fileData = openFiles.get(handle.asInt());
+        FileData<P> fileData = getFileData(handle);
         if (fileData == null) {
             sendFailure(uRequestId, ErrorCode.SSH_FX_INVALID_HANDLE, "Handle not found");
             return;
         }
+        if (fileData.writeBehind != null) {
+            // The attributes change when the buffered data is written
+            fileData.writeBehind.write(uRequestId, uOffset, retainData(data));
+            return;
+        }
+        IOException failure = null;
         try {
-            if (!fileData.append) {
-                fileData.channel.position(uOffset);
-            }
-            ByteBuffer toWrite = data.asBuffer();
-            while (toWrite.hasRemaining()) {
-                fileData.channel.write(toWrite);
+            long position = uOffset;
+            for (ByteBuffer toWrite : data.asBuffers()) {
+                while (toWrite.hasRemaining()) {
+                    position += fileData.write(toWrite, position);
+                }
             }
-            writer.visitStatus(uRequestId, ErrorCode.SSH_FX_OK, "", "");
         } catch (IOException e) {
-            sendFailure(uRequestId, ErrorCode.SSH_FX_FAILURE, e);
+            failure = e;
+        }
+        // Once written, so that a stat executed meanwhile does not cache the previous attributes
+        attributesChanged(fileData.path);
+        if (failure != null) {
+            sendFailure(uRequestId, ErrorCode.SSH_FX_FAILURE, failure);
+        } else {
+            writer.visitStatus(uRequestId, ErrorCode.SSH_FX_OK, "", "");
+        }
+    }
+
+    @Override
+    public WriteStream visitWriteStart(int uRequestId, Bytes handle, long uOffset, int uLength) {
+        FileData<P> fileData = getFileData(handle);
+        if (fileData == null || fileData.writeBehind != null) {
+            return collectWrite(uRequestId, handle, uOffset, uLength);
         }
+        return new FileWriteStream(uRequestId, fileData, uOffset);
     }
 
     @Override
     public void visitSetstat(int uRequestId, String sftpPath, Attrs attrs) {
-        P path = SftpPath.parse(fileSystem, sftpPath);
+        P path = fileSystem.parse(sftpPath);
         try {
             if (attrs.isValid(Attrs.Validity.SSH_FILEXFER_ATTR_MODIFYTIME)) {
                 fileSystem.setAttribute(path, "basic:lastModifiedTime", FileTime.from(attrs.getMtime(), TimeUnit.SECONDS));
             }
             // TODO: Support other attributes...
+            attributesChanged(path);
             writer.visitStatus(uRequestId, ErrorCode.SSH_FX_OK, "", "");
         } catch (IOException e) {
             sendFailure(uRequestId, ErrorCode.SSH_FX_FAILURE, e);
         }
     }
 
+    /**
+     * Collects the data of a write in bytes allocated from the write buffers, then processes it
+     * with {@link #visitCollectedWrite(int, Bytes, long, Bytes)}.
+     *
+     * @param uRequestId The request id
+     * @param handle The handle, copied by this method
+     * @param uOffset The file offset of the data
+     * @param uLength The length of the data
+     * @return The stream collecting the data
+     */
+    protected WriteStream collectWrite(int uRequestId, Bytes handle, long uOffset, int uLength) {
+        Bytes handleCopy = Bytes.copy(handle.asBuffer().duplicate(), handle.getLength());
+        Bytes data = config.getWriteBuffers().allocate(uLength);
+        ByteBuffer[] targets = data.asBuffers();
+        return new WriteStream() {
+            @Override
+            public void write(ByteBuffer src) {
+                Bytes.scatter(src, targets);
+            }
+
+            @Override
+            public void end() {
+                visitCollectedWrite(uRequestId, handleCopy, uOffset, data);
+            }
+        };
+    }
+
+    /**
+     * Processes a write whose data has been collected by {@link #collectWrite(int, Bytes, long, int)}.
+     *
+     * @param uRequestId The request id
+     * @param handle The handle
+     * @param uOffset The file offset of the data
+     * @param data The data, released by this method
+     */
+    protected void visitCollectedWrite(int uRequestId, Bytes handle, long uOffset, Bytes data) {
+        try {
+            visitWrite(uRequestId, handle, uOffset, data);
+        } finally {
+            data.release();
+        }
+    }
+
+    /**
+     * Returns the size of the buffers used for reads: they hold the read data, and the data packet header and trailer.
+     *
+     * @param maxReadLength The maximum number of bytes read
+     * @return The buffer size
+     */
+    public static int readBufferSize(int maxReadLength) {
+        return SshFxpData.HEADER_LENGTH + maxReadLength + 1;
+    }
+
+    /**
+     * Closes the handles left open by the client when the session ends: the buffered writes are written,
+     * and the channels closed.
+     */
+    public void closeHandles() {
+        for (Closeable handleData : openHandles.removeAll()) {
+            FileData<P> fileData = as(handleData, FileData.class);
+            try {
+                handleData.close();
+            } catch (IOException | RuntimeException e) {
+                // The client may no longer receive the acknowledgements of the buffered writes
+                LOG.debug("Error closing a handle left open", e);
+            } finally {
+                if (fileData != null) {
+                    attributesChanged(fileData.path);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the data of an open file.
+     *
+     * @param handle The handle received with the request
+     * @return The file data, or {@code null} if the handle is not valid or is a directory handle
+     */
+    protected FileData<P> getFileData(Bytes handle) {
+        return as(openHandles.get(handle.asInt()), FileData.class);
+    }
+
+    /**
+     * Returns the value of a handle as an open file or directory, with the type parameters of this processor.
+     *
+     * @param handleData The value in the handle table, or {@code null}
+     * @param type {@link FileData} or {@link DirectoryData}
+     * @return The value, or {@code null} if it is not of the requested type
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T as(Closeable handleData, Class<?> type) {
+        return type.isInstance(handleData) ? (T) handleData : null;
+    }
+
+    /**
+     * Adds an open file or directory to the handle table, and sends its handle; when the table is full,
+     * it is closed and a failure is sent instead.
+     */
+    private void addHandle(int uRequestId, Closeable handleData) throws IOException {
+        int handle = openHandles.add(handleData);
+        if (handle == -1) {
+            handleData.close();
+            sendFailure(uRequestId, ErrorCode.SSH_FX_FAILURE, "Too many open handles");
+        } else {
+            writer.visitHandle(uRequestId, Bytes.from(handle));
+        }
+    }
+
+    /**
+     * Returns the data of a write, with a reference which keeps it valid after the visit returns.
+     *
+     * @param data The data received with the write request
+     * @return The data, or a copy of it
+     */
+    protected Bytes retainData(Bytes data) {
+        return config.getWriteBuffers().copyOf(data);
+    }
+
+    /**
+     * Reads the attributes of a file, from the cache of the encoded attributes if configured.
+     */
+    protected Attrs readAttrs(P path, int uFlags, LinkOption... linkOptions) throws IOException {
+        return encodedAttrs != null ? encodedAttrs.read(fileSystem, attrsReader, path, uFlags, linkOptions)
+                : attrsReader.read(path, uFlags, linkOptions);
+    }
+
+    /**
+     * Notifies the file system, the cache of the encoded attributes, the read-ahead and the mapped windows
+     * that the attributes of a file, or its content, changed or may have changed.
+     */
+    protected void attributesChanged(P path) {
+        Object pathKey = fileSystem.pathKey(path);
+        if (encodedAttrs != null) {
+            encodedAttrs.invalidate(pathKey);
+        }
+        if (config.getReadAhead().isPresent()) {
+            config.getReadAhead().get().invalidate(pathKey);
+        }
+        if (config.getMappedRegions().isPresent()) {
+            config.getMappedRegions().get().invalidate(pathKey);
+        }
+        fileSystem.attributesChanged(path);
+    }
+
     protected void sendFailure(int uRequestId, ErrorCode errorCode, Exception ex) {
         sendFailure(uRequestId, errorCode, ex.getMessage());
     }
@@ -430,10 +649,23 @@ public class DefaultPacketProcessor<P extends SftpPath<P>> implements VoidPacket
         writer.visitStatus(uRequestId, errorCode, message, "en");
     }
 
-    public static class DirectoryData<P> implements Closeable {
+    public static class DirectoryData<P> implements Closeable, NameEntriesVisitor.NameEntries {
+        /**
+         * The maximum number of entries returned by a READDIR request.
+         */
+        static final int MAX_ENTRIES = 16;
+        private static final LinkOption[] FOLLOW_LINKS = new LinkOption[0];
+
         protected final DirectoryStream<P> stream;
         protected final Iterator<P> iterator;
         protected final P path;
+        /**
+         * The entries of the last response, reused by the next one: the attributes are either read as {@link Attrs}
+         * or held by the records.
+         */
+        private final String[] names = new String[MAX_ENTRIES];
+        private final Attrs[] attrs = new Attrs[MAX_ENTRIES];
+        private final Attrs.Builder[] records = new Attrs.Builder[MAX_ENTRIES];
 
         public DirectoryData(P path, DirectoryStream<P> stream) {
             this.path = path;
@@ -441,26 +673,203 @@ public class DefaultPacketProcessor<P extends SftpPath<P>> implements VoidPacket
             this.iterator = stream.iterator();
         }
 
+        /**
+         * Reads an entry of the next response.
+         */
+        private <Q extends SftpPath<Q>> void read(int index, Q entry, AttrsReader<Q> attrsReader) {
+            if (records[index] == null) {
+                records[index] = new Attrs.Builder(Attrs.Type.SSH_FILEXFER_TYPE_UNKNOWN, true);
+            }
+            names[index] = entry.getFileName();
+            try {
+                attrs[index] = attrsReader.read(entry, 0xffffffff, records[index], FOLLOW_LINKS);
+            } catch (IOException e) {
+                attrs[index] = Attrs.EMPTY;
+            }
+        }
+
+        @Override
+        public void write(int index, Encoder enc) {
+            enc.write(names[index]);
+            if (attrs[index] != null) {
+                attrs[index].write(enc);
+            } else {
+                records[index].write(enc);
+            }
+        }
+
         @Override
         public void close() throws IOException {
             stream.close();
         }
     }
 
+    /**
+     * A write whose data is written to the file as it is received.
+     */
+    private final class FileWriteStream implements WriteStream {
+
+        private final int uRequestId;
+        private final FileData<P> fileData;
+        private long position;
+        private IOException failure;
+
+        FileWriteStream(int uRequestId, FileData<P> fileData, long uOffset) {
+            this.uRequestId = uRequestId;
+            this.fileData = fileData;
+            this.position = uOffset;
+        }
+
+        @Override
+        public void write(ByteBuffer data) {
+            try {
+                while (failure == null && data.hasRemaining()) {
+                    position += fileData.write(data, position);
+                }
+            } catch (IOException e) {
+                // Reported once all the data of the packet has been received
+                failure = e;
+            }
+        }
+
+        @Override
+        public void end() {
+            attributesChanged(fileData.path);
+            if (failure != null) {
+                sendFailure(uRequestId, ErrorCode.SSH_FX_FAILURE, failure);
+            } else {
+                writer.visitStatus(uRequestId, ErrorCode.SSH_FX_OK, "", "");
+            }
+        }
+    }
+
+    /**
+     * An open file. When the channel is a {@link FileChannel}, reads and writes use positional
+     * operations, and can be executed concurrently by multiple threads; otherwise, they are serialized.
+     */
     public static class FileData<P extends SftpPath> implements Closeable {
         protected final SeekableByteChannel channel;
         protected final P path;
         protected final boolean append;
+        protected final MappedRegionCache.MappedFile mapped;
+        protected final ReadAhead.Tracker readAhead;
+        protected final WriteBehind.Buffer writeBehind;
+        protected final DescriptorBudget.Channel budgeted;
 
         public FileData(SeekableByteChannel channel, P path, boolean append) {
+            this(channel, path, append, null, null, null);
+        }
+
+        public FileData(SeekableByteChannel channel, P path, boolean append, MappedRegionCache.MappedFile mapped,
+                        ReadAhead.Tracker readAhead, WriteBehind.Buffer writeBehind) {
+            this(channel, path, append, mapped, readAhead, writeBehind, null);
+        }
+
+        /**
+         * Creates a new open file.
+         *
+         * @param channel The channel
+         * @param path The path of the file
+         * @param append Whether the file is open for appending
+         * @param mapped The memory mapping serving the reads, or {@code null}
+         * @param readAhead The tracker reading in advance, or {@code null}
+         * @param writeBehind The buffer delaying the writes, or {@code null}
+         * @param budgeted The channel closed when idle and reopened on use, or {@code null} to keep it open
+         */
+        public FileData(SeekableByteChannel channel, P path, boolean append, MappedRegionCache.MappedFile mapped,
+                        ReadAhead.Tracker readAhead, WriteBehind.Buffer writeBehind,
+                        DescriptorBudget.Channel budgeted) {
             this.channel = channel;
             this.path = path;
             this.append = append;
+            this.mapped = mapped;
+            this.readAhead = readAhead;
+            this.writeBehind = writeBehind;
+            this.budgeted = budgeted;
+        }
+
+        /**
+         * Tells if reads can be executed concurrently on this file.
+         *
+         * @return true if the reads do not depend on the channel position
+         */
+        public boolean isPositional() {
+            return channel instanceof FileChannel;
+        }
+
+        public int read(ByteBuffer dst, long position) throws IOException {
+            if (budgeted == null) {
+                return read(channel, dst, position);
+            }
+            SeekableByteChannel channel = budgeted.acquire();
+            try {
+                return read(channel, dst, position);
+            } finally {
+                budgeted.release();
+            }
+        }
+
+        private static int read(SeekableByteChannel channel, ByteBuffer dst, long position) throws IOException {
+            if (channel instanceof FileChannel) {
+                return ((FileChannel) channel).read(dst, position);
+            }
+            synchronized (channel) {
+                channel.position(position);
+                return channel.read(dst);
+            }
+        }
+
+        /**
+         * Writes data to the file. The position is ignored when the file is open for appending.
+         *
+         * @param src The data to write
+         * @param position The file position to write at
+         * @return The number of bytes written
+         * @throws IOException If an I/O error occurs
+         */
+        public int write(ByteBuffer src, long position) throws IOException {
+            if (budgeted == null) {
+                return write(channel, src, position);
+            }
+            SeekableByteChannel channel = budgeted.acquire();
+            try {
+                return write(channel, src, position);
+            } finally {
+                budgeted.release();
+            }
+        }
+
+        private int write(SeekableByteChannel channel, ByteBuffer src, long position) throws IOException {
+            if (!append && channel instanceof FileChannel) {
+                return ((FileChannel) channel).write(src, position);
+            }
+            synchronized (channel) {
+                if (!append) {
+                    channel.position(position);
+                }
+                return channel.write(src);
+            }
         }
 
         @Override
         public void close() throws IOException {
-            channel.close();
+            if (readAhead != null) {
+                readAhead.close();
+            }
+            if (mapped != null) {
+                mapped.close();
+            }
+            try {
+                if (writeBehind != null) {
+                    writeBehind.close();
+                }
+            } finally {
+                if (budgeted != null) {
+                    budgeted.close();
+                } else {
+                    channel.close();
+                }
+            }
         }
     }
 }
@@ -1,5 +1,6 @@
 package it.ftb.sftp;
 
+import com.google.common.base.Utf8;
 import com.google.common.collect.ImmutableList;
 import it.ftb.sftp.network.Bytes;
 import it.ftb.sftp.network.Encoder;
@@ -14,13 +15,17 @@ import java.nio.charset.StandardCharsets;
 import java.util.Optional;
 import java.util.function.Consumer;
 
-public final class DefaultPacketWriter implements VoidPacketVisitor {
+/**
+ * Encodes packets and sends them to the network. Each packet is sent as a whole,
+ * so that a single instance can be shared by multiple threads.
+ */
+public final class DefaultPacketWriter implements VoidPacketVisitor, NameEntriesVisitor {
 
-    private final NoLengthPacketWriter dumpingEncoder = new NoLengthPacketWriter(new DumpingEncoder());
+    private final SizingEncoder sizingEncoder = new SizingEncoder();
+    private final NoLengthPacketWriter sizingWriter = new NoLengthPacketWriter(sizingEncoder);
     private final NoLengthPacketWriter writingEncoder = new NoLengthPacketWriter(new WritingEncoder());
     private final ByteBuffer buffer = ByteBuffer.allocateDirect(0x10000);
     private final Consumer<ByteBuffer> networkSend;
-    private int flushedBytes = 0;
 
     public DefaultPacketWriter(Consumer<ByteBuffer> networkSend) {
         this.networkSend = networkSend;
@@ -68,7 +73,26 @@ public final class DefaultPacketWriter implements VoidPacketVisitor {
 
     @Override
     public void visitData(int uRequestId, Bytes data, boolean endOfFile) {
-        write(visitor -> visitor.visitData(uRequestId, data, endOfFile));
+        int dataLength = data.getLength();
+        ByteBuffer framed = data.frame(SshFxpData.HEADER_LENGTH, endOfFile ? 1 : 0);
+        if (framed == null) {
+            write(visitor -> visitor.visitData(uRequestId, data, endOfFile));
+            return;
+        }
+        // The data has room for the packet header: send it without copying it
+        int p = framed.position();
+        framed.putInt(p, framed.remaining() - 4);
+        framed.put(p + 4, PacketType.SSH_FXP_DATA.getCodeAsByte());
+        framed.putInt(p + 5, uRequestId);
+        framed.putInt(p + 9, dataLength);
+        if (endOfFile) {
+            framed.put(framed.limit() - 1, (byte) 1);
+        }
+        synchronized (this) {
+            while (framed.hasRemaining()) {
+                networkSend.accept(framed);
+            }
+        }
     }
 
     @Override
@@ -81,6 +105,11 @@ public final class DefaultPacketWriter implements VoidPacketVisitor {
         write(visitor -> visitor.visitName(uRequestId, names, attributes, endOfList));
     }
 
+    @Override
+    public void visitName(int uRequestId, int count, NameEntries entries, Optional<Boolean> endOfList) {
+        write(visitor -> visitor.visitName(uRequestId, count, entries, endOfList));
+    }
+
     @Override
     public void visitLstat(int uRequestId, String path, int uFlags) {
         write(visitor -> visitor.visitLstat(uRequestId, path, uFlags));
@@ -116,25 +145,26 @@ public final class DefaultPacketWriter implements VoidPacketVisitor {
         write(visitor -> visitor.visitSetstat(uRequestId, path, attrs));
     }
 
-    private void write(Consumer<VoidPacketVisitor> writer) {
-        buffer.position(4);
-        flushedBytes = 0;
-
-        // We need to first write the packet length.
-        // We write the packet to the internal buffer; if it fits, we can roll back to add
-        // the length, and write the whole buffer to the channel.
-        // If it does not fit, we clear the written data and keep track of the number of bytes.
-        // We then know the bytes count, and make a second pass to actually write the data
-        // to the channel while it is produced.
-        writer.accept(dumpingEncoder);
-        if (flushedBytes == 0) {
-            buffer.putInt(0, buffer.position() - 4);
-        } else {
-            int actualLength = flushedBytes - 4 + buffer.position();
-            buffer.clear();
-            buffer.putInt(actualLength);
-            writer.accept(writingEncoder);
-        }
+    @Override
+    public void visitExtended(int uRequestId, String extendedRequest) {
+        write(visitor -> visitor.visitExtended(uRequestId, extendedRequest));
+    }
+
+    @Override
+    public void visitLimits(int uRequestId, long uMaxPacketLength, long uMaxReadLength, long uMaxWriteLength,
+                            long uMaxOpenHandles) {
+        write(visitor -> visitor.visitLimits(uRequestId, uMaxPacketLength, uMaxReadLength, uMaxWriteLength,
+                uMaxOpenHandles));
+    }
+
+    private synchronized void write(Consumer<NoLengthPacketWriter> writer) {
+        // The exact packet length is computed without encoding the packet, which is then
+        // encoded in a single pass, sending the buffer to the network whenever it is full
+        sizingEncoder.length = 0;
+        writer.accept(sizingWriter);
+        buffer.clear();
+        buffer.putInt(sizingEncoder.length);
+        writer.accept(writingEncoder);
         flushBuffer();
     }
 
@@ -146,9 +176,76 @@ public final class DefaultPacketWriter implements VoidPacketVisitor {
         buffer.clear();
     }
 
-    private abstract class BufferingEncoder implements Encoder {
+    /**
+     * Computes the length of the encoded data, without encoding it.
+     */
+    private static final class SizingEncoder implements Encoder {
 
-        protected abstract void ensureSpace(int bytes);
+        int length;
+
+        @Override
+        public Encoder write(byte b) {
+            length += 1;
+            return this;
+        }
+
+        @Override
+        public Encoder write(int i) {
+            length += 4;
+            return this;
+        }
+
+        @Override
+        public Encoder write(long l) {
+            length += 8;
+            return this;
+        }
+
+        @Override
+        public Encoder write(boolean b) {
+            length += 1;
+            return this;
+        }
+
+        @Override
+        public Encoder write(Bytes b) {
+            length += 4 + b.getLength();
+            return this;
+        }
+
+        @Override
+        public Encoder write(String s) {
+            length += 4 + (s == null ? 0 : encodedLength(s));
+            return this;
+        }
+
+        @Override
+        public Encoder writeEncoded(byte[] encoded) {
+            length += encoded.length;
+            return this;
+        }
+    }
+
+    private static int encodedLength(String s) {
+        try {
+            return Utf8.encodedLength(s);
+        } catch (IllegalArgumentException ex) {
+            throw new RuntimeIOException(new CharacterCodingException());
+        }
+    }
+
+    /**
+     * Encodes the data in the buffer, sending it to the network whenever it is full.
+     */
+    private final class WritingEncoder implements Encoder {
+
+        private final CharsetEncoder charsetEncoder = StandardCharsets.UTF_8.newEncoder();
+
+        private void ensureSpace(int bytes) {
+            if (buffer.remaining() < bytes) {
+                flushBuffer();
+            }
+        }
 
         @Override
         public Encoder write(byte b) {
@@ -180,57 +277,72 @@ public final class DefaultPacketWriter implements VoidPacketVisitor {
 
         @Override
         public Encoder write(Bytes b) {
-            ensureSpace(4 + b.getLength());
-            buffer.putInt(b.getLength());
-            b.copyTo(buffer);
+            write(b.getLength());
+            ByteBuffer src = b.asBuffer();
+            while (src.remaining() > buffer.remaining()) {
+                int limit = src.limit();
+                src.limit(src.position() + buffer.remaining());
+                buffer.put(src);
+                src.limit(limit);
+                flushBuffer();
+            }
+            buffer.put(src);
             return this;
         }
 
         @Override
         public Encoder write(String s) {
             if (s == null) {
-                ensureSpace(4);
-                buffer.putInt(0);
-                return this;
+                return write(0);
             }
-            CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
-            ensureSpace(4 + (int) (s.length() * encoder.maxBytesPerChar()));
-            int p = buffer.position();
-            buffer.position(p + 4);
-            CharBuffer cb = CharBuffer.wrap(s);
-            CoderResult result = encoder.encode(cb, buffer, true);
-            if (result.isError() | result.isOverflow()) {
-                try {
-                    result.throwException();
-                } catch (CharacterCodingException e) {
-                    throw new RuntimeIOException(e);
-                }
+            long maxLength = 4 + 3L * s.length();
+            if (maxLength > buffer.remaining() && maxLength <= buffer.capacity()) {
+                flushBuffer();
+            }
+            if (maxLength <= buffer.remaining()) {
+                int p = buffer.position();
+                buffer.position(p + 4);
+                encode(s);
+                buffer.putInt(p, buffer.position() - p - 4);
+            } else {
+                // Longer than the buffer: the length is sent before the end of the string is encoded
+                write(encodedLength(s));
+                encode(s);
             }
-            buffer.putInt(p, buffer.position() - p - 4);
             return this;
         }
-    }
-
-    private final class DumpingEncoder extends BufferingEncoder {
 
-        protected void ensureSpace(int bytes) {
-            if (buffer.remaining() < bytes) {
-                flushedBytes += buffer.position();
-                buffer.clear();
+        @Override
+        public Encoder writeEncoded(byte[] encoded) {
+            int offset = 0;
+            while (encoded.length - offset > buffer.remaining()) {
+                int length = buffer.remaining();
+                buffer.put(encoded, offset, length);
+                offset += length;
+                flushBuffer();
             }
+            buffer.put(encoded, offset, encoded.length - offset);
+            return this;
         }
-    }
-
-    private final class WritingEncoder extends BufferingEncoder {
 
-        protected void ensureSpace(int bytes) {
-            if (buffer.remaining() < bytes) {
+        private void encode(String s) {
+            CharBuffer cb = CharBuffer.wrap(s);
+            charsetEncoder.reset();
+            CoderResult result;
+            while ((result = charsetEncoder.encode(cb, buffer, true)).isOverflow()) {
                 flushBuffer();
             }
+            if (result.isError()) {
+                try {
+                    result.throwException();
+                } catch (CharacterCodingException e) {
+                    throw new RuntimeIOException(e);
+                }
+            }
         }
     }
 
-    public static class NoLengthPacketWriter implements VoidPacketVisitor {
+    public static class NoLengthPacketWriter implements VoidPacketVisitor, NameEntriesVisitor {
 
         protected final Encoder enc;
 
@@ -334,6 +446,17 @@ public final class DefaultPacketWriter implements VoidPacketVisitor {
             endOfList.ifPresent(enc::write);
         }
 
+        @Override
+        public void visitName(int uRequestId, int count, NameEntries entries, Optional<Boolean> endOfList) {
+            enc.write(PacketType.SSH_FXP_NAME.getCodeAsByte());
+            enc.write(uRequestId);
+            enc.write(count);
+            for (int i = 0; i < count; i++) {
+                entries.write(i, enc);
+            }
+            endOfList.ifPresent(enc::write);
+        }
+
         @Override
         public void visitLstat(int uRequestId, String path, int uFlags) {
             enc.write(PacketType.SSH_FXP_LSTAT.getCodeAsByte());
@@ -396,5 +519,23 @@ public final class DefaultPacketWriter implements VoidPacketVisitor {
             enc.write(path);
             attrs.write(enc);
         }
+
+        @Override
+        public void visitExtended(int uRequestId, String extendedRequest) {
+            enc.write(PacketType.SSH_FXP_EXTENDED.getCodeAsByte());
+            enc.write(uRequestId);
+            enc.write(extendedRequest);
+        }
+
+        @Override
+        public void visitLimits(int uRequestId, long uMaxPacketLength, long uMaxReadLength, long uMaxWriteLength,
+                                long uMaxOpenHandles) {
+            enc.write(PacketType.SSH_FXP_EXTENDED_REPLY.getCodeAsByte());
+            enc.write(uRequestId);
+            enc.write(uMaxPacketLength);
+            enc.write(uMaxReadLength);
+            enc.write(uMaxWriteLength);
+            enc.write(uMaxOpenHandles);
+        }
     }
 }
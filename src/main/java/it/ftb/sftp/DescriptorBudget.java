@@ -0,0 +1,217 @@
+package it.ftb.sftp;
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limit on the number of file channels kept open by all the sessions of a server. Each handle has a
+ * {@link Channel}; when the budget is exceeded, the least recently used channels not in use are closed,
+ * and reopened by the next read or write on their handle.
+ */
+public final class DescriptorBudget {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DescriptorBudget.class);
+
+    /**
+     * Opens the channel of a handle again, after it was closed to stay within the budget.
+     */
+    @FunctionalInterface
+    public interface Opener {
+        SeekableByteChannel open() throws IOException;
+    }
+
+    private final int maxOpenChannels;
+    private final LinkedHashMap<Channel, Boolean> openChannels = new LinkedHashMap<>(16, 0.75f, true);
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong reopens = new AtomicLong();
+
+    /**
+     * Creates a new budget.
+     *
+     * @param maxOpenChannels The maximum number of channels kept open; it is exceeded when all of them are in use
+     */
+    public DescriptorBudget(int maxOpenChannels) {
+        Preconditions.checkArgument(maxOpenChannels > 0, "Invalid maximum number of open channels");
+        this.maxOpenChannels = maxOpenChannels;
+    }
+
+    /**
+     * Creates the channel of a handle.
+     *
+     * @param channel The channel, just opened
+     * @param opener Opens the file again, with options which do not create or truncate it
+     * @return The channel of the handle
+     */
+    public Channel register(SeekableByteChannel channel, Opener opener) {
+        Channel ret = new Channel(channel, opener);
+        List<SeekableByteChannel> evicted;
+        synchronized (this) {
+            openChannels.put(ret, Boolean.TRUE);
+            evicted = evict(ret);
+        }
+        closeEvicted(evicted);
+        return ret;
+    }
+
+    /**
+     * Returns the number of channels currently open.
+     *
+     * @return The number of open channels
+     */
+    public synchronized int getOpenChannels() {
+        return openChannels.size();
+    }
+
+    /**
+     * Returns the number of channels closed to stay within the budget.
+     *
+     * @return The number of evictions
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Returns the number of channels opened again after being closed.
+     *
+     * @return The number of reopens
+     */
+    public long getReopens() {
+        return reopens.get();
+    }
+
+    /**
+     * Takes the least recently used channels not in use, until the budget is met or no other channel can be taken.
+     * The channels are closed by the caller, after releasing the lock.
+     *
+     * @return The channels to close
+     */
+    private List<SeekableByteChannel> evict(Channel keep) {
+        List<SeekableByteChannel> evicted = Collections.emptyList();
+        Iterator<Channel> it = openChannels.keySet().iterator();
+        while (openChannels.size() > maxOpenChannels && it.hasNext()) {
+            Channel lru = it.next();
+            if (lru.users == 0 && lru != keep) {
+                it.remove();
+                evictions.incrementAndGet();
+                if (evicted.isEmpty()) {
+                    evicted = new ArrayList<>();
+                }
+                evicted.add(lru.channel);
+                lru.channel = null;
+            }
+        }
+        return evicted;
+    }
+
+    private static void closeEvicted(List<SeekableByteChannel> evicted) {
+        for (SeekableByteChannel channel : evicted) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOG.warn("Error closing idle channel", e);
+            }
+        }
+    }
+
+    /**
+     * The channel of a handle, open while it is in use or while the budget allows it.
+     */
+    public final class Channel implements AutoCloseable {
+        private final Opener opener;
+        private SeekableByteChannel channel;
+        private int users = 0;
+        private boolean closed = false;
+
+        private Channel(SeekableByteChannel channel, Opener opener) {
+            this.channel = channel;
+            this.opener = opener;
+        }
+
+        /**
+         * Returns the open channel, opening it again if needed; it is not closed until {@link #release()}
+         * is called.
+         *
+         * @return The open channel
+         * @throws IOException If the channel can not be opened again
+         */
+        public SeekableByteChannel acquire() throws IOException {
+            synchronized (DescriptorBudget.this) {
+                if (closed) {
+                    throw new IOException("Channel closed");
+                }
+                if (channel != null) {
+                    users++;
+                    openChannels.get(this);
+                    return channel;
+                }
+            }
+            // Reopened outside of the lock; if two threads do it, the loser closes its channel
+            SeekableByteChannel reopened = opener.open();
+            SeekableByteChannel ret = null;
+            List<SeekableByteChannel> evicted = Collections.emptyList();
+            synchronized (DescriptorBudget.this) {
+                if (!closed) {
+                    if (channel == null) {
+                        channel = reopened;
+                        reopened = null;
+                        reopens.incrementAndGet();
+                        openChannels.put(this, Boolean.TRUE);
+                    }
+                    users++;
+                    ret = channel;
+                    evicted = evict(null);
+                }
+            }
+            closeEvicted(evicted);
+            if (reopened != null) {
+                reopened.close();
+            }
+            if (ret == null) {
+                throw new IOException("Channel closed");
+            }
+            return ret;
+        }
+
+        /**
+         * Releases the channel returned by {@link #acquire()}.
+         */
+        public void release() {
+            List<SeekableByteChannel> evicted;
+            synchronized (DescriptorBudget.this) {
+                users--;
+                evicted = evict(null);
+            }
+            closeEvicted(evicted);
+        }
+
+        /**
+         * Closes the channel, if open.
+         *
+         * @throws IOException If an I/O error occurs
+         */
+        @Override
+        public void close() throws IOException {
+            SeekableByteChannel toClose;
+            synchronized (DescriptorBudget.this) {
+                closed = true;
+                openChannels.remove(this);
+                toClose = channel;
+                channel = null;
+            }
+            if (toClose != null) {
+                toClose.close();
+            }
+        }
+    }
+}
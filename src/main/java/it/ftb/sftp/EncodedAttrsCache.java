@@ -0,0 +1,191 @@
+package it.ftb.sftp;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import it.ftb.sftp.packet.Attrs;
+
+import java.io.IOException;
+import java.nio.file.LinkOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The attributes of the files most requested by the clients, kept already encoded and shared by all the sessions
+ * of a server, so that the STAT, FSTAT and READDIR of popular files only read their basic attributes,
+ * and the packet writer copies the cached encoding.
+ * <p>
+ * Cached attributes are used while the file key, modification time and size of the file are unchanged;
+ * the changes made by the clients of this server discard them with {@link #invalidate(Object)}, and the other
+ * changes not affecting the modification time, such as new permissions, are seen when the attributes expire.
+ */
+public final class EncodedAttrsCache {
+
+    /**
+     * Maximum number of sets of requested attributes cached for each file.
+     */
+    private static final int MAX_VARIANTS = 4;
+
+    private final Cache<Key, Entry> entries;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Creates a new cache.
+     *
+     * @param maxEntries The maximum number of files whose attributes are cached
+     * @param ttl How long the attributes are cached
+     * @param unit The unit of the ttl
+     */
+    public EncodedAttrsCache(long maxEntries, long ttl, TimeUnit unit) {
+        this.entries = CacheBuilder.newBuilder()
+                .maximumSize(maxEntries)
+                .expireAfterWrite(ttl, unit)
+                .build();
+    }
+
+    /**
+     * Reads the attributes of a file, from the cache if unchanged.
+     *
+     * @param fileSystem The file system of the file
+     * @param attrsReader The reader of the attributes not cached
+     * @param path The file
+     * @param uInterestedInFlags The attributes requested by the client, as {@link Attrs.Validity} flags
+     * @param linkOptions Whether symbolic links are followed
+     * @param <P> The SftpPath instances of the file system
+     * @return The attributes, with their encoding
+     * @throws IOException If an I/O error occurs
+     */
+    public <P extends SftpPath<P>> Attrs read(SftpFileSystem<P> fileSystem, AttrsReader<P> attrsReader, P path,
+                                              int uInterestedInFlags, LinkOption... linkOptions) throws IOException {
+        BasicFileAttributes basic = fileSystem.readAttributes(path, BasicFileAttributes.class, linkOptions);
+        Key key = new Key(fileSystem.pathKey(path), linkOptions);
+        Entry entry = entries.getIfPresent(key);
+        if (entry != null && !entry.matches(basic)) {
+            entry = null;
+        }
+        Attrs attrs = entry != null ? entry.get(uInterestedInFlags) : null;
+        if (attrs != null) {
+            hits.increment();
+            return attrs;
+        }
+        misses.increment();
+        // Read after the basic attributes: if the file changes meanwhile, the entry is discarded by the next read
+        attrs = attrsReader.read(path, uInterestedInFlags, linkOptions).preEncoded();
+        entries.put(key, entry != null ? entry.with(uInterestedInFlags, attrs)
+                : new Entry(basic, uInterestedInFlags, attrs));
+        return attrs;
+    }
+
+    /**
+     * Discards the attributes of a file, whose attributes changed or may have changed because of a request
+     * of a client of any session.
+     *
+     * @param pathKey The file, as returned by {@link SftpFileSystem#pathKey(SftpPath)}
+     */
+    public void invalidate(Object pathKey) {
+        entries.invalidate(new Key(pathKey, false));
+        entries.invalidate(new Key(pathKey, true));
+    }
+
+    /**
+     * Returns the number of attribute reads served by the cache.
+     *
+     * @return The number of hits
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the number of attribute reads which went to the file system, including those of changed files.
+     *
+     * @return The number of misses
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * The attributes of a file, by the attributes requested, while it is unchanged.
+     */
+    private static final class Entry {
+        private final Object fileKey;
+        private final FileTime lastModifiedTime;
+        private final long size;
+        private final int[] flags;
+        private final Attrs[] attrs;
+
+        Entry(BasicFileAttributes basic, int flags, Attrs attrs) {
+            this(basic.fileKey(), basic.lastModifiedTime(), basic.size(), new int[] { flags }, new Attrs[] { attrs });
+        }
+
+        private Entry(Object fileKey, FileTime lastModifiedTime, long size, int[] flags, Attrs[] attrs) {
+            this.fileKey = fileKey;
+            this.lastModifiedTime = lastModifiedTime;
+            this.size = size;
+            this.flags = flags;
+            this.attrs = attrs;
+        }
+
+        boolean matches(BasicFileAttributes basic) {
+            return size == basic.size() && lastModifiedTime.equals(basic.lastModifiedTime())
+                    && Objects.equals(fileKey, basic.fileKey());
+        }
+
+        Attrs get(int uInterestedInFlags) {
+            for (int i = 0; i < flags.length; i++) {
+                if (flags[i] == uInterestedInFlags) {
+                    return attrs[i];
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Returns a copy of this entry with other attributes of the same file, dropping the oldest ones if full.
+         */
+        Entry with(int uInterestedInFlags, Attrs newAttrs) {
+            int from = flags.length < MAX_VARIANTS ? 0 : 1;
+            int[] newFlags = Arrays.copyOfRange(flags, from, flags.length + 1);
+            Attrs[] newAttrsArray = Arrays.copyOfRange(attrs, from, attrs.length + 1);
+            newFlags[newFlags.length - 1] = uInterestedInFlags;
+            newAttrsArray[newAttrsArray.length - 1] = newAttrs;
+            return new Entry(fileKey, lastModifiedTime, size, newFlags, newAttrsArray);
+        }
+    }
+
+    private static final class Key {
+        /**
+         * The key of the path, equal in all the sessions.
+         */
+        private final Object pathKey;
+        private final boolean noFollowLinks;
+
+        Key(Object pathKey, LinkOption[] options) {
+            this(pathKey, Arrays.asList(options).contains(LinkOption.NOFOLLOW_LINKS));
+        }
+
+        Key(Object pathKey, boolean noFollowLinks) {
+            this.pathKey = pathKey;
+            this.noFollowLinks = noFollowLinks;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key that = (Key) o;
+            return noFollowLinks == that.noFollowLinks && pathKey.equals(that.pathKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * pathKey.hashCode() + (noFollowLinks ? 1 : 0);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package it.ftb.sftp;
+
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The open handles of a session, with a maximum number of entries. A handle value holds the index of its slot
+ * in the lower bits and the generation of the slot in the upper bits: the generation changes each time the slot
+ * is reused, so a stale handle is rejected by comparing it with the handle stored in the slot.
+ * <p>
+ * Lookups do not lock, and can be executed concurrently with additions and removals.
+ *
+ * @param <V> The type of the values
+ */
+public final class HandleTable<V> {
+
+    private static final int SLOT_BITS = 16;
+    private static final int SLOT_MASK = (1 << SLOT_BITS) - 1;
+
+    /**
+     * Maximum number of entries of a table.
+     */
+    public static final int MAX_HANDLES = 1 << SLOT_BITS;
+
+    private final int maxHandles;
+    private volatile AtomicReferenceArray<Entry<V>> slots;
+    private int[] generations;
+    private int[] freeSlots;
+    private int freeCount = 0;
+    private int size = 0;
+
+    /**
+     * Creates a new table.
+     *
+     * @param maxHandles The maximum number of entries, at most {@link #MAX_HANDLES}
+     */
+    public HandleTable(int maxHandles) {
+        Preconditions.checkArgument(maxHandles > 0 && maxHandles <= MAX_HANDLES, "Invalid maximum number of handles");
+        this.maxHandles = maxHandles;
+        int initialSlots = Math.min(16, maxHandles);
+        this.slots = new AtomicReferenceArray<>(initialSlots);
+        this.generations = new int[initialSlots];
+        this.freeSlots = new int[initialSlots];
+        for (int i = initialSlots - 1; i >= 0; i--) {
+            freeSlots[freeCount++] = i;
+        }
+    }
+
+    /**
+     * Adds an entry.
+     *
+     * @param value The value of the entry
+     * @return The handle of the entry, or -1 if the table is full
+     */
+    public synchronized int add(V value) {
+        if (freeCount == 0 && !grow()) {
+            return -1;
+        }
+        int slot = freeSlots[--freeCount];
+        int handle = (generations[slot] << SLOT_BITS) | slot;
+        slots.set(slot, new Entry<>(handle, value));
+        size++;
+        return handle;
+    }
+
+    /**
+     * Returns the value of an entry.
+     *
+     * @param handle The handle of the entry
+     * @return The value, or {@code null} if the handle is not valid
+     */
+    public V get(int handle) {
+        AtomicReferenceArray<Entry<V>> s = slots;
+        int slot = handle & SLOT_MASK;
+        if (slot >= s.length()) {
+            return null;
+        }
+        Entry<V> entry = s.get(slot);
+        return entry != null && entry.handle == handle ? entry.value : null;
+    }
+
+    /**
+     * Removes an entry; its handle is no longer valid.
+     *
+     * @param handle The handle of the entry
+     * @return The value of the removed entry, or {@code null} if the handle is not valid
+     */
+    public synchronized V remove(int handle) {
+        int slot = handle & SLOT_MASK;
+        if (slot >= slots.length()) {
+            return null;
+        }
+        Entry<V> entry = slots.get(slot);
+        if (entry == null || entry.handle != handle) {
+            return null;
+        }
+        slots.set(slot, null);
+        int generation = (generations[slot] + 1) & (0xffffffff >>> SLOT_BITS);
+        if (((generation << SLOT_BITS) | slot) == -1) {
+            // Skipped, as it is the value returned when the table is full
+            generation = 0;
+        }
+        generations[slot] = generation;
+        freeSlots[freeCount++] = slot;
+        size--;
+        return entry.value;
+    }
+
+    /**
+     * Removes all the entries; their handles are no longer valid.
+     *
+     * @return The values of the removed entries
+     */
+    public synchronized List<V> removeAll() {
+        List<V> values = new ArrayList<>(size);
+        for (int slot = 0; slot < slots.length(); slot++) {
+            Entry<V> entry = slots.get(slot);
+            if (entry != null) {
+                remove(entry.handle);
+                values.add(entry.value);
+            }
+        }
+        return values;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    private boolean grow() {
+        int length = slots.length();
+        if (length == maxHandles) {
+            return false;
+        }
+        int newLength = Math.min(length * 2, maxHandles);
+        AtomicReferenceArray<Entry<V>> newSlots = new AtomicReferenceArray<>(newLength);
+        for (int i = 0; i < length; i++) {
+            newSlots.set(i, slots.get(i));
+        }
+        int[] newGenerations = new int[newLength];
+        System.arraycopy(generations, 0, newGenerations, 0, length);
+        freeSlots = new int[newLength];
+        for (int i = newLength - 1; i >= length; i--) {
+            freeSlots[freeCount++] = i;
+        }
+        generations = newGenerations;
+        slots = newSlots;
+        return true;
+    }
+
+    private static final class Entry<V> {
+        final int handle;
+        final V value;
+
+        Entry(int handle, V value) {
+            this.handle = handle;
+            this.value = value;
+        }
+    }
+}
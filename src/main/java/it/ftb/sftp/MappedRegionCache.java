@@ -0,0 +1,330 @@
+package it.ftb.sftp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache of memory mapped windows over files open for reading, shared by all the handles on the same file.
+ * Files are identified by their file key, size and modification time, so that a modified file
+ * does not share the windows mapped before the change. The windows are looked up without locking; the least
+ * recently used ones are evicted when the mapped bytes exceed the address space budget.
+ * <p>
+ * The budget is a soft limit: the JVM unmaps an evicted window only when it is garbage collected, as a handle
+ * may still be copying from it, so the address space actually mapped can exceed the budget in the meantime.
+ * <p>
+ * Accessing the mapped pages past the end of a truncated file raises SIGBUS, which can crash the JVM. The size
+ * of the file is checked when a window is mapped, and the files changed by the clients of this server are no
+ * longer read through the mapping once notified with {@link #invalidate(Object)}; files must not be truncated
+ * by other processes while they are mapped.
+ */
+public final class MappedRegionCache {
+
+    private final long addressSpaceBudget;
+    private final int windowSize;
+    private final ConcurrentMap<RegionKey, Region> regions = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Object, Set<MappedFile>> files = new ConcurrentHashMap<>();
+    private final AtomicLong clock = new AtomicLong();
+    private final AtomicLong mappedBytes = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Creates a new cache.
+     *
+     * @param addressSpaceBudget The maximum number of mapped bytes; the last mapped window is kept even when exceeding it
+     * @param windowSize The size of the mapped windows; smaller files are not mapped
+     */
+    public MappedRegionCache(long addressSpaceBudget, int windowSize) {
+        this.addressSpaceBudget = addressSpaceBudget;
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * Prepares the mapping of an open file, which is not invalidated by {@link #invalidate(Object)}.
+     *
+     * @param channel The channel open for reading
+     * @param attributes The attributes of the file
+     * @return The mappable file, or {@code null} if the file is too small or has no file key
+     */
+    public MappedFile open(FileChannel channel, BasicFileAttributes attributes) {
+        return open(null, channel, attributes);
+    }
+
+    /**
+     * Prepares the mapping of an open file.
+     *
+     * @param pathKey The key of the file, as returned by {@link SftpFileSystem#pathKey(SftpPath)}, or {@code null}
+     * @param channel The channel open for reading
+     * @param attributes The attributes of the file
+     * @return The mappable file, to close with the handle, or {@code null} if the file is too small or has no file key
+     */
+    public MappedFile open(Object pathKey, FileChannel channel, BasicFileAttributes attributes) {
+        if (attributes.fileKey() == null || !attributes.isRegularFile() || attributes.size() < windowSize) {
+            return null;
+        }
+        MappedFile file = new MappedFile(pathKey, channel,
+                new FileVersion(attributes.fileKey(), attributes.size(), attributes.lastModifiedTime()));
+        if (pathKey != null) {
+            files.compute(pathKey, (k, set) -> {
+                Set<MappedFile> ret = set != null ? set : ConcurrentHashMap.newKeySet();
+                ret.add(file);
+                return ret;
+            });
+        }
+        return file;
+    }
+
+    /**
+     * Stops reading through the mapping the open handles of a file which changed, or may have changed,
+     * because of a request of a client, and evicts their windows.
+     *
+     * @param pathKey The key of the file, as returned by {@link SftpFileSystem#pathKey(SftpPath)}
+     */
+    public void invalidate(Object pathKey) {
+        Set<MappedFile> open = files.get(pathKey);
+        if (open != null) {
+            for (MappedFile file : open) {
+                file.invalidate();
+            }
+        }
+    }
+
+    public long getMappedBytes() {
+        return mappedBytes.get();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns a window of a file, mapping it if needed.
+     *
+     * @return The window, or {@code null} if the file is shorter than the mapped size
+     */
+    private ByteBuffer region(FileChannel channel, FileVersion version, long window) throws IOException {
+        RegionKey key = new RegionKey(version, window);
+        Region region = regions.get(key);
+        if (region != null) {
+            region.lastUsed = clock.incrementAndGet();
+            hits.increment();
+            return region.buffer;
+        }
+        misses.increment();
+        // Once for each mapped window, rather than for each read
+        if (channel.size() < version.size) {
+            return null;
+        }
+        // Two threads may map the same window, and one of the mappings is dropped
+        long start = window * windowSize;
+        MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(windowSize, version.size - start));
+        Region existing = regions.putIfAbsent(key, new Region(mapped, clock.incrementAndGet()));
+        if (existing != null) {
+            return existing.buffer;
+        }
+        if (mappedBytes.addAndGet(mapped.capacity()) > addressSpaceBudget) {
+            evictLeastRecentlyUsed(key);
+        }
+        return mapped;
+    }
+
+    /**
+     * Evicts the least recently used windows until the mapped bytes are within the budget.
+     *
+     * @param kept The window just mapped, which is never evicted
+     */
+    private void evictLeastRecentlyUsed(RegionKey kept) {
+        synchronized (clock) {
+            while (mappedBytes.get() > addressSpaceBudget) {
+                Map.Entry<RegionKey, Region> eldest = null;
+                for (Map.Entry<RegionKey, Region> entry : regions.entrySet()) {
+                    if (!entry.getKey().equals(kept)
+                            && (eldest == null || entry.getValue().lastUsed < eldest.getValue().lastUsed)) {
+                        eldest = entry;
+                    }
+                }
+                if (eldest == null) {
+                    break;
+                }
+                remove(eldest.getKey(), eldest.getValue());
+            }
+        }
+    }
+
+    /**
+     * Evicts all the windows mapped over a version of a file.
+     */
+    private void evict(FileVersion version) {
+        for (Map.Entry<RegionKey, Region> entry : regions.entrySet()) {
+            if (entry.getKey().version.equals(version)) {
+                remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private void remove(RegionKey key, Region region) {
+        if (regions.remove(key, region)) {
+            mappedBytes.addAndGet(-region.buffer.capacity());
+        }
+    }
+
+    /**
+     * A file whose content is read through the mapped windows of the cache.
+     */
+    public final class MappedFile implements AutoCloseable {
+        private final Object pathKey;
+        private final FileChannel channel;
+        private final FileVersion version;
+        /**
+         * Whether the file was found truncated, or was changed, so that it can no longer be read through the mapping.
+         */
+        private volatile boolean invalid;
+
+        private MappedFile(Object pathKey, FileChannel channel, FileVersion version) {
+            this.pathKey = pathKey;
+            this.channel = channel;
+            this.version = version;
+        }
+
+        /**
+         * Returns the size of the file when it was opened; the bytes after it can not be read through the mapping.
+         *
+         * @return The mapped size
+         */
+        public long getSize() {
+            return version.size;
+        }
+
+        /**
+         * Copies bytes from a single window to a buffer.
+         *
+         * @param dst The buffer to copy the bytes to
+         * @param position The file position to read from
+         * @return The number of bytes copied, 0 if the position is outside of the mapped size
+         *         or the file has been truncated or changed; the bytes must then be read from the channel
+         * @throws IOException If an I/O error occurs mapping the window
+         */
+        public int read(ByteBuffer dst, long position) throws IOException {
+            if (invalid || position < 0 || position >= version.size) {
+                return 0;
+            }
+            long window = position / windowSize;
+            ByteBuffer region = region(channel, version, window);
+            if (region == null) {
+                invalidate();
+                return 0;
+            }
+            ByteBuffer src = region.duplicate();
+            int offset = (int) (position - window * windowSize);
+            int count = Math.min(dst.remaining(), src.capacity() - offset);
+            src.limit(offset + count);
+            src.position(offset);
+            dst.put(src);
+            return count;
+        }
+
+        /**
+         * Stops tracking the changes of the file, when its handle is closed.
+         */
+        @Override
+        public void close() {
+            if (pathKey != null) {
+                files.computeIfPresent(pathKey, (k, set) -> {
+                    set.remove(this);
+                    return set.isEmpty() ? null : set;
+                });
+            }
+        }
+
+        private void invalidate() {
+            invalid = true;
+            evict(version);
+        }
+    }
+
+    /**
+     * A mapped window, with the time it was last used.
+     */
+    private static final class Region {
+        final MappedByteBuffer buffer;
+        volatile long lastUsed;
+
+        Region(MappedByteBuffer buffer, long lastUsed) {
+            this.buffer = buffer;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    private static final class FileVersion {
+        final Object fileKey;
+        final long size;
+        final FileTime lastModifiedTime;
+
+        FileVersion(Object fileKey, long size, FileTime lastModifiedTime) {
+            this.fileKey = fileKey;
+            this.size = size;
+            this.lastModifiedTime = lastModifiedTime;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            FileVersion that = (FileVersion) o;
+            return size == that.size
+                    && fileKey.equals(that.fileKey)
+                    && Objects.equals(lastModifiedTime, that.lastModifiedTime);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(fileKey, size, lastModifiedTime);
+        }
+    }
+
+    private static final class RegionKey {
+        final FileVersion version;
+        final long window;
+
+        RegionKey(FileVersion version, long window) {
+            this.version = version;
+            this.window = window;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            RegionKey that = (RegionKey) o;
+            return window == that.window && version.equals(that.version);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * version.hashCode() + Long.hashCode(window);
+        }
+    }
+}
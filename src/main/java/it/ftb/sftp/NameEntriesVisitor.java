@@ -0,0 +1,37 @@
+package it.ftb.sftp;
+
+import it.ftb.sftp.network.Encoder;
+import it.ftb.sftp.packet.Attrs;
+
+import java.util.Optional;
+
+/**
+ * A writer encoding the entries of a name response from the data of the caller, so that the attributes of the files
+ * listed by a directory can be kept in reused {@link Attrs.Builder} records instead of new {@link Attrs}.
+ */
+public interface NameEntriesVisitor {
+
+    /**
+     * Sends a name response.
+     *
+     * @param uRequestId The request id
+     * @param count The number of entries
+     * @param entries The entries, only used during the call
+     * @param endOfList Whether the entries are the last ones of a directory, if known
+     */
+    void visitName(int uRequestId, int count, NameEntries entries, Optional<Boolean> endOfList);
+
+    /**
+     * The entries of a name response.
+     */
+    interface NameEntries {
+
+        /**
+         * Encodes an entry: its file name, then its attributes. It can be called more than once for the same entry.
+         *
+         * @param index The index of the entry
+         * @param enc The encoder
+         */
+        void write(int index, Encoder enc);
+    }
+}
@@ -20,6 +20,15 @@ final class PacketDecoder implements Decoder {
         this.length = length;
     }
 
+    /**
+     * Starts decoding the next packet from the same data, so that a single decoder can be reused for all the packets.
+     *
+     * @param length The length of the packet
+     */
+    void reset(int length) {
+        this.length = length;
+    }
+
     private <T> T checkOptional(T optional, int size, Predicate<T> isPresent) {
         if (isPresent.test(optional)) {
             length -= size;
@@ -30,6 +39,18 @@ final class PacketDecoder implements Decoder {
         return optional;
     }
 
+    /**
+     * Checks the length of a string or of bytes against the rest of the packet, before reading them.
+     *
+     * @param size The length read from the packet
+     */
+    private void checkLength(int size) {
+        if (size < 0 || size > length) {
+            throw new MalformedPacketException("Invalid length: " + Integer.toUnsignedString(size));
+        }
+        length -= size;
+    }
+
     private void checkRemaining(int size) {
         if (length < size) {
             throw new IllegalStateException("Reading past packet boundary");
@@ -69,9 +90,7 @@ final class PacketDecoder implements Decoder {
         if (length < 4) {
             throw new MalformedPacketException("Not enough bytes for a string");
         }
-        StringWithLength ret = delegate.readString();
-        checkRemaining(4 + ret.getLength());
-        return Optional.of(ret);
+        return Optional.of(readString());
     }
 
     @Override
@@ -79,21 +98,35 @@ final class PacketDecoder implements Decoder {
         if (length == 0) {
             return Optional.empty();
         }
-        return checkOptional(delegate.readOptBoolean(), 8, Optional::isPresent);
+        return checkOptional(delegate.readOptBoolean(), 1, Optional::isPresent);
+    }
+
+    @Override
+    public boolean hasMore() {
+        return length > 0;
     }
 
     @Override
     public StringWithLength readString() {
-        StringWithLength ret = delegate.readString();
-        checkRemaining(4 + ret.getLength());
-        return ret;
+        int len = readInt();
+        return new StringWithLength(len, readStringValue(len));
+    }
+
+    @Override
+    public String readStringValue(int length) {
+        checkLength(length);
+        return delegate.readStringValue(length);
     }
 
     @Override
     public Bytes readBytes() {
-        Bytes ret = delegate.readBytes();
-        checkRemaining(ret.getLength());
-        return ret;
+        return readBytesValue(readInt());
+    }
+
+    @Override
+    public Bytes readBytesValue(int length) {
+        checkLength(length);
+        return delegate.readBytesValue(length);
     }
 
     @Override
@@ -0,0 +1,85 @@
+package it.ftb.sftp;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Names of the users and groups owning the files, by numeric id, shared by all the sessions of a server.
+ * Resolving a name can query a directory service; ids with no name resolve to the id itself,
+ * and are cached as well.
+ */
+public final class PrincipalNameCache {
+
+    private final Cache<Integer, String> users;
+    private final Cache<Integer, String> groups;
+
+    /**
+     * Creates a new cache.
+     *
+     * @param maxEntries The maximum number of names cached, for both users and groups
+     * @param ttl How long the names are cached
+     * @param unit The unit of the ttl
+     */
+    public PrincipalNameCache(long maxEntries, long ttl, TimeUnit unit) {
+        this.users = CacheBuilder.newBuilder().maximumSize(maxEntries).expireAfterWrite(ttl, unit).recordStats().build();
+        this.groups = CacheBuilder.newBuilder().maximumSize(maxEntries).expireAfterWrite(ttl, unit).recordStats().build();
+    }
+
+    /**
+     * Returns the name of a user.
+     *
+     * @param uid The user id
+     * @param lookup Resolves the name, when not cached
+     * @return The name
+     * @throws IOException If the name can not be resolved
+     */
+    public String getUserName(int uid, Callable<String> lookup) throws IOException {
+        return get(users, uid, lookup);
+    }
+
+    /**
+     * Returns the name of a group.
+     *
+     * @param gid The group id
+     * @param lookup Resolves the name, when not cached
+     * @return The name
+     * @throws IOException If the name can not be resolved
+     */
+    public String getGroupName(int gid, Callable<String> lookup) throws IOException {
+        return get(groups, gid, lookup);
+    }
+
+    /**
+     * Returns the number of names found in the cache.
+     *
+     * @return The number of hits
+     */
+    public long getHits() {
+        return users.stats().hitCount() + groups.stats().hitCount();
+    }
+
+    /**
+     * Returns the number of names resolved.
+     *
+     * @return The number of misses
+     */
+    public long getMisses() {
+        return users.stats().missCount() + groups.stats().missCount();
+    }
+
+    private static String get(Cache<Integer, String> cache, int id, Callable<String> lookup) throws IOException {
+        try {
+            return cache.get(id, lookup);
+        } catch (ExecutionException e) {
+            throw (IOException) e.getCause();
+        } catch (UncheckedExecutionException e) {
+            throw (RuntimeException) e.getCause();
+        }
+    }
+}
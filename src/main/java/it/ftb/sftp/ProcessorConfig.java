@@ -0,0 +1,250 @@
+package it.ftb.sftp;
+
+import com.google.common.base.Preconditions;
+import it.ftb.sftp.network.BufferPool;
+import it.ftb.sftp.network.SlabAllocator;
+
+import java.util.Optional;
+
+/**
+ * Configuration of the packet processors. The resources it holds are thread safe,
+ * and the same configuration can be shared by all the sessions of a server.
+ */
+public final class ProcessorConfig {
+
+    /**
+     * Default maximum number of handles open at the same time by a session.
+     */
+    public static final int DEFAULT_MAX_HANDLES = 1024;
+
+    /**
+     * Default maximum number of requests executed concurrently by the sessions sharing a configuration.
+     */
+    public static final int DEFAULT_CONCURRENCY = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Largest maximum length of the data of reads and writes.
+     */
+    public static final int MAX_TRANSFER_LENGTH = 0x100000;
+
+    /**
+     * Room in the packets for the fields other than the data of reads and writes.
+     */
+    public static final int PACKET_OVERHEAD = 1024;
+
+    private final BufferPool readBuffers;
+    private final SlabAllocator writeBuffers;
+    private final MappedRegionCache mappedRegions;
+    private final ReadAhead readAhead;
+    private final WriteBehind writeBehind;
+    private final int maxHandles;
+    private final DescriptorBudget descriptorBudget;
+    private final PrincipalNameCache principalNames;
+    private final EncodedAttrsCache encodedAttrs;
+    private final int maxTransferLength;
+
+    private ProcessorConfig(Builder builder) {
+        this.maxTransferLength = builder.maxTransferLength;
+        // A buffer for each read in flight, and for the blocks each of them may have read ahead
+        int readsInFlight = builder.concurrency * (1 + (builder.readAhead != null ? builder.readAhead.getDepth() : 0));
+        this.readBuffers = builder.readBuffers != null ? builder.readBuffers
+                : new BufferPool(DefaultPacketProcessor.readBufferSize(maxTransferLength), readsInFlight);
+        Preconditions.checkArgument(readBuffers.getBufferSize() >= DefaultPacketProcessor.readBufferSize(maxTransferLength),
+                "Read buffers too small");
+        this.writeBuffers = builder.writeBuffers != null ? builder.writeBuffers
+                : new SlabAllocator(ConcurrentPacketProcessor.WRITE_CHUNK_SIZE, 16, 1);
+        this.mappedRegions = builder.mappedRegions;
+        this.readAhead = builder.readAhead;
+        this.writeBehind = builder.writeBehind;
+        this.maxHandles = builder.maxHandles;
+        this.descriptorBudget = builder.descriptorBudget;
+        this.principalNames = builder.principalNames;
+        this.encodedAttrs = builder.encodedAttrs;
+    }
+
+    /**
+     * Returns the pool of buffers for the file reads.
+     *
+     * @return The pool, with buffers large enough for reads of {@link #getMaxTransferLength()} bytes
+     */
+    public BufferPool getReadBuffers() {
+        return readBuffers;
+    }
+
+    /**
+     * Returns the allocator holding the data of the writes executed asynchronously.
+     *
+     * @return The allocator, whose chunks are chained to hold writes larger than a chunk
+     */
+    public SlabAllocator getWriteBuffers() {
+        return writeBuffers;
+    }
+
+    /**
+     * Returns the cache of the memory mapped files, used to serve the reads on handles open for reading only.
+     *
+     * @return The cache, or empty if reads always use the file channel
+     */
+    public Optional<MappedRegionCache> getMappedRegions() {
+        return Optional.ofNullable(mappedRegions);
+    }
+
+    /**
+     * Returns the read-ahead of the files read sequentially, used by the handles open for reading only
+     * and not memory mapped.
+     *
+     * @return The read-ahead, or empty if files are only read on request
+     */
+    public Optional<ReadAhead> getReadAhead() {
+        return Optional.ofNullable(readAhead);
+    }
+
+    /**
+     * Returns the write-behind of the files written, used by the handles open for writing and not for appending.
+     *
+     * @return The write-behind, or empty if each write is executed on request
+     */
+    public Optional<WriteBehind> getWriteBehind() {
+        return Optional.ofNullable(writeBehind);
+    }
+
+    /**
+     * Returns the maximum number of files and directories open at the same time by a session.
+     *
+     * @return The maximum number of handles
+     */
+    public int getMaxHandles() {
+        return maxHandles;
+    }
+
+    /**
+     * Returns the limit on the open file channels, used by the handles with no mapping, read-ahead or write-behind.
+     *
+     * @return The budget, or empty if channels stay open until their handle is closed
+     */
+    public Optional<DescriptorBudget> getDescriptorBudget() {
+        return Optional.ofNullable(descriptorBudget);
+    }
+
+    /**
+     * Returns the cache of the names of the users and groups owning the files.
+     *
+     * @return The cache, or empty if the names are resolved by each stat
+     */
+    public Optional<PrincipalNameCache> getPrincipalNames() {
+        return Optional.ofNullable(principalNames);
+    }
+
+    /**
+     * Returns the cache of the encoded attributes of the files, used by STAT, LSTAT, FSTAT and READDIR.
+     *
+     * @return The cache, or empty if the attributes are read and encoded for each request
+     */
+    public Optional<EncodedAttrsCache> getEncodedAttrs() {
+        return Optional.ofNullable(encodedAttrs);
+    }
+
+    /**
+     * Returns the maximum length of the data returned by a read, and accepted by a write.
+     *
+     * @return The maximum length, in bytes
+     */
+    public int getMaxTransferLength() {
+        return maxTransferLength;
+    }
+
+    /**
+     * Returns the maximum length of the packets accepted from the clients.
+     *
+     * @return The maximum length, in bytes, excluding the length field
+     */
+    public int getMaxPacketLength() {
+        return maxTransferLength + PACKET_OVERHEAD;
+    }
+
+    public static final class Builder {
+
+        private BufferPool readBuffers;
+        private SlabAllocator writeBuffers;
+        private MappedRegionCache mappedRegions;
+        private ReadAhead readAhead;
+        private WriteBehind writeBehind;
+        private int maxHandles = DEFAULT_MAX_HANDLES;
+        private DescriptorBudget descriptorBudget;
+        private PrincipalNameCache principalNames;
+        private EncodedAttrsCache encodedAttrs;
+        private int maxTransferLength = DefaultPacketProcessor.MAX_READ_LENGTH;
+        private int concurrency = DEFAULT_CONCURRENCY;
+
+        public Builder withReadBuffers(BufferPool readBuffers) {
+            this.readBuffers = readBuffers;
+            return this;
+        }
+
+        public Builder withWriteBuffers(SlabAllocator writeBuffers) {
+            this.writeBuffers = writeBuffers;
+            return this;
+        }
+
+        public Builder withMappedRegions(MappedRegionCache mappedRegions) {
+            this.mappedRegions = mappedRegions;
+            return this;
+        }
+
+        public Builder withReadAhead(ReadAhead readAhead) {
+            this.readAhead = readAhead;
+            return this;
+        }
+
+        public Builder withWriteBehind(WriteBehind writeBehind) {
+            this.writeBehind = writeBehind;
+            return this;
+        }
+
+        public Builder withMaxHandles(int maxHandles) {
+            Preconditions.checkArgument(maxHandles > 0 && maxHandles <= HandleTable.MAX_HANDLES,
+                    "Invalid maximum number of handles");
+            this.maxHandles = maxHandles;
+            return this;
+        }
+
+        public Builder withDescriptorBudget(DescriptorBudget descriptorBudget) {
+            this.descriptorBudget = descriptorBudget;
+            return this;
+        }
+
+        public Builder withPrincipalNames(PrincipalNameCache principalNames) {
+            this.principalNames = principalNames;
+            return this;
+        }
+
+        public Builder withEncodedAttrs(EncodedAttrsCache encodedAttrs) {
+            this.encodedAttrs = encodedAttrs;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of requests executed concurrently by all the sessions, such as the number of
+         * worker threads; it sizes the default pool of read buffers, so that the reads in flight do not allocate.
+         */
+        public Builder withConcurrency(int concurrency) {
+            Preconditions.checkArgument(concurrency > 0, "Invalid concurrency");
+            this.concurrency = concurrency;
+            return this;
+        }
+
+        /**
+         * Sets the maximum length of the data of reads and writes; the read buffers must be large enough for it.
+         */
+        public Builder withMaxTransferLength(int maxTransferLength) {
+            Preconditions.checkArgument(maxTransferLength >= DefaultPacketProcessor.MAX_READ_LENGTH
+                            && maxTransferLength <= MAX_TRANSFER_LENGTH, "Invalid maximum transfer length");
+            this.maxTransferLength = maxTransferLength;
+            return this;
+        }
+
+        public ProcessorConfig build() {
+            return new ProcessorConfig(this);
+        }
+    }
+}
@@ -0,0 +1,433 @@
+package it.ftb.sftp;
+
+import it.ftb.sftp.network.BufferPool;
+import it.ftb.sftp.packet.SshFxpData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Asynchronous read-ahead of the files read sequentially. Each handle has a {@link Tracker}, which detects
+ * its access pattern; when the last reads were sequential, the next blocks are read in advance on an executor,
+ * in buffers ready to be sent as data packets. Blocks have the length of the last read, and are only used by
+ * reads with the same offset and length.
+ * <p>
+ * Clients keep several reads in flight, which may be executed out of order: a read is sequential when it
+ * continues, or is continued by, one of the last {@link #WINDOW} reads, or when it is a little ahead of them.
+ * The blocks of a file are discarded by {@link #invalidate(Object)} when the file is written.
+ * <p>
+ * The hit rate, and the access patterns detected on the closed handles, are counted for all the handles.
+ */
+public final class ReadAhead {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ReadAhead.class);
+
+    /**
+     * Access pattern of a handle, detected from the offsets of its last reads.
+     */
+    public enum AccessPattern {
+        UNKNOWN,
+        /**
+         * Each read starts where the previous one ended.
+         */
+        SEQUENTIAL,
+        /**
+         * The reads skip the same number of bytes each time.
+         */
+        STRIDED,
+        RANDOM
+    }
+
+    /**
+     * Number of recent reads of each handle considered by the detection of the access pattern.
+     */
+    static final int WINDOW = 8;
+
+    private final Executor executor;
+    private final int depth;
+    private final ConcurrentMap<Object, Set<Tracker>> trackers = new ConcurrentHashMap<>();
+    private final AtomicLong reads = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLongArray patterns = new AtomicLongArray(AccessPattern.values().length);
+
+    /**
+     * Creates a new read-ahead.
+     *
+     * @param executor The executor reading the blocks
+     * @param depth The number of blocks to read in advance for each handle
+     */
+    public ReadAhead(Executor executor, int depth) {
+        this.executor = executor;
+        this.depth = depth;
+    }
+
+    /**
+     * Creates the tracker of a handle.
+     *
+     * @param channel The channel of the handle, open for reading only
+     * @param buffers The pool of the read buffers, with buffers as large as {@link ProcessorConfig#getReadBuffers()}
+     * @return The tracker
+     */
+    public Tracker newTracker(FileChannel channel, BufferPool buffers) {
+        return newTracker(null, channel, buffers);
+    }
+
+    /**
+     * Creates the tracker of a handle, whose blocks are discarded when the file is written.
+     *
+     * @param pathKey The key of the file, as returned by {@link SftpFileSystem#pathKey(SftpPath)},
+     *                or {@code null} if its blocks are never invalidated
+     * @param channel The channel of the handle, open for reading only
+     * @param buffers The pool of the read buffers, with buffers as large as {@link ProcessorConfig#getReadBuffers()}
+     * @return The tracker
+     */
+    public Tracker newTracker(Object pathKey, FileChannel channel, BufferPool buffers) {
+        Tracker tracker = new Tracker(pathKey, channel, buffers);
+        if (pathKey != null) {
+            trackers.compute(pathKey, (k, set) -> {
+                Set<Tracker> ret = set != null ? set : ConcurrentHashMap.newKeySet();
+                ret.add(tracker);
+                return ret;
+            });
+        }
+        return tracker;
+    }
+
+    /**
+     * Discards the blocks read in advance from a file, by all its handles, because it has been written.
+     *
+     * @param pathKey The key of the file, as returned by {@link SftpFileSystem#pathKey(SftpPath)}
+     */
+    public void invalidate(Object pathKey) {
+        Set<Tracker> fileTrackers = trackers.get(pathKey);
+        if (fileTrackers != null) {
+            for (Tracker tracker : fileTrackers) {
+                tracker.invalidate();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of blocks read in advance for each handle.
+     *
+     * @return The depth
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Returns the number of reads on the tracked handles.
+     *
+     * @return The number of reads
+     */
+    public long getReads() {
+        return reads.get();
+    }
+
+    /**
+     * Returns the number of reads served by a block read in advance.
+     *
+     * @return The number of hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    public double getHitRate() {
+        long r = reads.get();
+        return r == 0 ? 0 : (double) hits.get() / r;
+    }
+
+    /**
+     * Returns the number of closed handles by the access pattern they had when closed.
+     *
+     * @return The number of handles of each pattern
+     */
+    public Map<AccessPattern, Long> getHandlesByPattern() {
+        Map<AccessPattern, Long> ret = new EnumMap<>(AccessPattern.class);
+        for (AccessPattern pattern : AccessPattern.values()) {
+            ret.put(pattern, patterns.get(pattern.ordinal()));
+        }
+        return ret;
+    }
+
+    /**
+     * A block read in advance. The data is framed as expected by {@link it.ftb.sftp.network.Bytes#framed(ByteBuffer)},
+     * and the block must be released after use.
+     */
+    public static final class Block {
+        private final ByteBuffer data;
+        private final boolean endOfFile;
+        private final BufferPool buffers;
+
+        private Block(ByteBuffer data, boolean endOfFile, BufferPool buffers) {
+            this.data = data;
+            this.endOfFile = endOfFile;
+            this.buffers = buffers;
+        }
+
+        public ByteBuffer getData() {
+            return data;
+        }
+
+        public boolean isEndOfFile() {
+            return endOfFile;
+        }
+
+        public void release() {
+            buffers.release(data);
+        }
+    }
+
+    /**
+     * The access pattern and the blocks read in advance of a handle. It can be used by multiple threads.
+     */
+    public final class Tracker implements AutoCloseable {
+        private final Object pathKey;
+        private final FileChannel channel;
+        private final BufferPool buffers;
+        private final ArrayDeque<Prefetch> prefetched = new ArrayDeque<>();
+        /**
+         * The offsets and ends of the last {@link #WINDOW} reads, in a ring.
+         */
+        private final long[] recentOffsets = new long[WINDOW];
+        private final long[] recentEnds = new long[WINDOW];
+        private int recentCount = 0;
+        private int recentNext = 0;
+        private AccessPattern pattern = AccessPattern.UNKNOWN;
+        private int sequentialReads = 0;
+        private long lastOffset = -1;
+        private long lastStride = 0;
+        private long lastEnd = -1;
+        /**
+         * The end of the furthest read of the current sequential run.
+         */
+        private long frontier = -1;
+        private long nextOffset = -1;
+        private boolean endOfFileScheduled = false;
+        private boolean closed = false;
+        /**
+         * Incremented when the file is written, so that a block being waited for is not used.
+         */
+        private int generation = 0;
+        private long trackerReads = 0;
+        private long trackerHits = 0;
+
+        private Tracker(Object pathKey, FileChannel channel, BufferPool buffers) {
+            this.pathKey = pathKey;
+            this.channel = channel;
+            this.buffers = buffers;
+        }
+
+        public synchronized AccessPattern getPattern() {
+            return pattern;
+        }
+
+        /**
+         * Records a read, and schedules the next blocks if the reads are sequential.
+         *
+         * @param offset The offset of the read
+         * @param length The length of the read
+         * @return The block read in advance for this read, or {@code null} if there is none
+         */
+        public Block next(long offset, int length) {
+            reads.incrementAndGet();
+            Prefetch hit = null;
+            int hitGeneration;
+            synchronized (this) {
+                hitGeneration = generation;
+                trackerReads++;
+                record(offset, length);
+                // The blocks well behind the reads in flight will not be requested
+                long oldest = offset - (long) WINDOW * length;
+                while (!prefetched.isEmpty() && prefetched.peek().offset < oldest) {
+                    discard(prefetched.poll());
+                }
+                for (Iterator<Prefetch> it = prefetched.iterator(); it.hasNext(); ) {
+                    Prefetch prefetch = it.next();
+                    if (prefetch.offset == offset && prefetch.length == length) {
+                        hit = prefetch;
+                        it.remove();
+                        break;
+                    }
+                }
+                if (pattern == AccessPattern.SEQUENTIAL && sequentialReads >= 2) {
+                    schedule(frontier, length);
+                } else if (pattern != AccessPattern.SEQUENTIAL) {
+                    discardAll();
+                }
+            }
+            if (hit == null) {
+                return null;
+            }
+            try {
+                Block ret = hit.block.join();
+                synchronized (this) {
+                    if (generation != hitGeneration) {
+                        // Written meanwhile: the block may hold the previous data, read it again
+                        ret.release();
+                        return null;
+                    }
+                    trackerHits++;
+                }
+                hits.incrementAndGet();
+                return ret;
+            } catch (CompletionException ex) {
+                LOG.debug("Read-ahead failed", ex.getCause());
+                return null;
+            }
+        }
+
+        /**
+         * Discards the blocks read in advance; the channel is not closed.
+         */
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (!closed) {
+                    closed = true;
+                    patterns.incrementAndGet(pattern.ordinal());
+                }
+                discardAll();
+            }
+            if (pathKey != null) {
+                trackers.computeIfPresent(pathKey, (k, set) -> {
+                    set.remove(this);
+                    return set.isEmpty() ? null : set;
+                });
+            }
+            LOG.debug("Handle closed with access pattern {}, read-ahead hits {}/{}", pattern, trackerHits, trackerReads);
+        }
+
+        /**
+         * Discards the blocks read in advance, as the file has been written; the next ones are read again.
+         */
+        synchronized void invalidate() {
+            generation++;
+            discardAll();
+        }
+
+        private void record(long offset, int length) {
+            long stride = offset - lastOffset;
+            long end = offset + length;
+            if (lastEnd < 0) {
+                pattern = AccessPattern.UNKNOWN;
+                sequentialReads = 0;
+                frontier = end;
+            } else if (isAdjacent(offset, end)) {
+                pattern = AccessPattern.SEQUENTIAL;
+                sequentialReads++;
+                frontier = Math.max(frontier, end);
+            } else if (sequentialReads > 0 && offset >= frontier && offset - frontier < (long) WINDOW * length) {
+                // Received before some of the reads in flight preceding it: the run goes on without counting it
+                frontier = end;
+            } else {
+                pattern = offset > lastEnd && stride == lastStride ? AccessPattern.STRIDED : AccessPattern.RANDOM;
+                sequentialReads = 0;
+                frontier = end;
+            }
+            recentOffsets[recentNext] = offset;
+            recentEnds[recentNext] = end;
+            recentNext = (recentNext + 1) % WINDOW;
+            recentCount = Math.min(recentCount + 1, WINDOW);
+            lastOffset = offset;
+            lastStride = stride;
+            lastEnd = end;
+        }
+
+        /**
+         * Tells if a read continues, or is continued by, one of the recent reads.
+         */
+        private boolean isAdjacent(long offset, long end) {
+            for (int i = 0; i < recentCount; i++) {
+                if (recentEnds[i] == offset || recentOffsets[i] == end) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void schedule(long from, int length) {
+            if (nextOffset < from || (!prefetched.isEmpty() && prefetched.peekLast().length != length)) {
+                discardAll();
+                nextOffset = from;
+            }
+            while (!closed && !endOfFileScheduled && prefetched.size() < depth) {
+                long blockOffset = nextOffset;
+                Prefetch prefetch = new Prefetch(blockOffset, length,
+                        CompletableFuture.supplyAsync(() -> read(blockOffset, length), executor));
+                prefetched.add(prefetch);
+                nextOffset += length;
+                endOfFileScheduled = nextOffset >= size();
+            }
+        }
+
+        private long size() {
+            try {
+                return channel.size();
+            } catch (IOException e) {
+                return Long.MAX_VALUE;
+            }
+        }
+
+        private Block read(long offset, int length) {
+            ByteBuffer data = buffers.acquire();
+            try {
+                data.limit(Math.min(SshFxpData.HEADER_LENGTH + length, data.capacity() - 1));
+                data.position(SshFxpData.HEADER_LENGTH);
+                int numRead = 0;
+                while (data.hasRemaining()
+                        && -1 != (numRead = channel.read(data, offset + data.position() - SshFxpData.HEADER_LENGTH))) {
+                    // Keep reading
+                }
+                data.limit(data.position());
+                data.position(SshFxpData.HEADER_LENGTH);
+                return new Block(data, numRead == -1, buffers);
+            } catch (IOException e) {
+                buffers.release(data);
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void discardAll() {
+            while (!prefetched.isEmpty()) {
+                discard(prefetched.poll());
+            }
+            nextOffset = -1;
+            endOfFileScheduled = false;
+        }
+
+        private void discard(Prefetch prefetch) {
+            prefetch.block.thenAccept(Block::release);
+        }
+    }
+
+    private static final class Prefetch {
+        final long offset;
+        final int length;
+        final CompletableFuture<Block> block;
+
+        Prefetch(long offset, int length, CompletableFuture<Block> block) {
+            this.offset = offset;
+            this.length = length;
+            this.block = block;
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package it.ftb.sftp;
+
+import it.ftb.sftp.network.BufferPool;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The data received from a client, held in a chain of pooled segments which are filled in turn and never compacted.
+ * Reads within a segment use it in place; only the values spanning two segments are copied.
+ * <p>
+ * The consumed segments are given back to the pool by {@link #releaseConsumed()}, so the data read stays valid
+ * until then.
+ */
+final class SegmentChain {
+
+    private final BufferPool pool;
+    /**
+     * Views of the received data, in order; the ones before {@link #head} have been consumed.
+     */
+    private final List<ByteBuffer> views = new ArrayList<>();
+    private final ByteBuffer scratch = ByteBuffer.allocate(8);
+    private int head;
+    private int available;
+    /**
+     * The pooled segment receiving data, and its view; {@code null} when a new segment is needed.
+     */
+    private ByteBuffer filling;
+    private ByteBuffer fillingView;
+    /**
+     * The view of the data appended by the caller with {@link #append(ByteBuffer)}, or {@code null}.
+     */
+    private ByteBuffer external;
+
+    SegmentChain(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Returns the number of received bytes not consumed yet.
+     *
+     * @return The number of bytes
+     */
+    int available() {
+        return available;
+    }
+
+    /**
+     * Returns the buffer the next data must be put into; once done, {@link #written()} adds the data to the chain.
+     *
+     * @return The buffer, with some space remaining
+     */
+    ByteBuffer writable() {
+        if (filling == null || !filling.hasRemaining()) {
+            filling = pool.acquire();
+            fillingView = filling.duplicate();
+            fillingView.flip();
+            views.add(fillingView);
+        }
+        return filling;
+    }
+
+    /**
+     * Adds the data put in the buffer returned by {@link #writable()} to the chain.
+     */
+    void written() {
+        available += filling.position() - fillingView.limit();
+        fillingView.limit(filling.position());
+    }
+
+    /**
+     * Appends data owned by the caller, which is used in place until {@link #detach()}.
+     *
+     * @param data The data
+     */
+    void append(ByteBuffer data) {
+        external = data;
+        filling = null;
+        fillingView = null;
+        views.add(data);
+        available += data.remaining();
+    }
+
+    /**
+     * Stops using the data appended by {@link #append(ByteBuffer)}, copying the part not consumed to pooled segments.
+     */
+    void detach() {
+        ByteBuffer data = external;
+        external = null;
+        views.remove(views.size() - 1);
+        head = Math.min(head, views.size());
+        available -= data.remaining();
+        while (data.hasRemaining()) {
+            ByteBuffer target = writable();
+            int length = Math.min(data.remaining(), target.remaining());
+            ByteBuffer part = data.duplicate();
+            part.limit(part.position() + length);
+            target.put(part);
+            data.position(part.limit());
+            written();
+        }
+    }
+
+    /**
+     * Returns a byte not consumed yet, without consuming it.
+     *
+     * @param offset The offset of the byte from the first one not consumed
+     * @return The byte
+     */
+    byte peek(int offset) {
+        for (int i = head; ; i++) {
+            ByteBuffer view = views.get(i);
+            if (offset < view.remaining()) {
+                return view.get(view.position() + offset);
+            }
+            offset -= view.remaining();
+        }
+    }
+
+    /**
+     * Returns an int not consumed yet, without consuming it.
+     *
+     * @param offset The offset of the int from the first byte not consumed
+     * @return The int
+     */
+    int peekInt(int offset) {
+        ByteBuffer view = current();
+        if (offset + 4 <= view.remaining()) {
+            return view.getInt(view.position() + offset);
+        }
+        return (peek(offset) & 0xff) << 24 | (peek(offset + 1) & 0xff) << 16
+                | (peek(offset + 2) & 0xff) << 8 | (peek(offset + 3) & 0xff);
+    }
+
+    byte readByte() {
+        consume(1);
+        return current().get();
+    }
+
+    int readInt() {
+        consume(4);
+        ByteBuffer view = current();
+        return view.remaining() >= 4 ? view.getInt() : gather(4).getInt();
+    }
+
+    long readLong() {
+        consume(8);
+        ByteBuffer view = current();
+        return view.remaining() >= 8 ? view.getLong() : gather(8).getLong();
+    }
+
+    /**
+     * Consumes bytes, returning them in a view of their segment, or in a copy if they span multiple segments.
+     *
+     * @param length The number of bytes
+     * @return The bytes, between the position and the limit of the buffer
+     */
+    ByteBuffer read(int length) {
+        consume(length);
+        ByteBuffer view = current();
+        if (view.remaining() >= length) {
+            ByteBuffer ret = view.duplicate();
+            ret.limit(ret.position() + length);
+            view.position(ret.limit());
+            return ret;
+        }
+        ByteBuffer copy = ByteBuffer.allocate(length);
+        copyTo(copy);
+        copy.flip();
+        return copy;
+    }
+
+    /**
+     * Consumes bytes, copying them to an array.
+     *
+     * @param target The array, starting at its first element
+     * @param length The number of bytes
+     */
+    void read(byte[] target, int length) {
+        consume(length);
+        int offset = 0;
+        while (offset < length) {
+            ByteBuffer view = current();
+            int part = Math.min(length - offset, view.remaining());
+            view.get(target, offset, part);
+            offset += part;
+        }
+    }
+
+    /**
+     * Consumes the bytes available in the first segment, up to a maximum, without copying them.
+     *
+     * @param maxLength The maximum number of bytes; some bytes must be available
+     * @return The bytes, in a view of their segment
+     */
+    ByteBuffer readSome(int maxLength) {
+        ByteBuffer view = current();
+        return read(Math.min(maxLength, view.remaining()));
+    }
+
+    /**
+     * Returns the segment holding the next bytes; the caller reads them in place, then calls {@link #consumed(int)}.
+     *
+     * @return The view of the segment, with its position at the first byte not consumed
+     */
+    ByteBuffer head() {
+        return current();
+    }
+
+    /**
+     * Accounts for the bytes read in place from the buffer returned by {@link #head()}.
+     *
+     * @param length The number of bytes read
+     */
+    void consumed(int length) {
+        consume(length);
+    }
+
+    /**
+     * Consumes bytes without reading them.
+     *
+     * @param length The number of bytes
+     */
+    void skip(int length) {
+        consume(length);
+        while (length > 0) {
+            ByteBuffer view = current();
+            int skipped = Math.min(length, view.remaining());
+            view.position(view.position() + skipped);
+            length -= skipped;
+        }
+    }
+
+    /**
+     * Gives the consumed segments back to the pool. The segment being filled is kept, and reused from its start
+     * when all its data has been consumed.
+     */
+    void releaseConsumed() {
+        while (!views.isEmpty() && !views.get(0).hasRemaining()) {
+            ByteBuffer view = views.get(0);
+            if (view == external) {
+                break;
+            }
+            if (view == fillingView && filling.hasRemaining()) {
+                filling.clear();
+                fillingView.clear().limit(0);
+                break;
+            }
+            if (view == fillingView) {
+                filling = null;
+                fillingView = null;
+            }
+            views.remove(0);
+            pool.release(view);
+        }
+        head = 0;
+    }
+
+    /**
+     * Gives all the segments back to the pool.
+     */
+    void release() {
+        for (ByteBuffer view : views) {
+            if (view != external) {
+                pool.release(view);
+            }
+        }
+        views.clear();
+        head = 0;
+        available = 0;
+        filling = null;
+        fillingView = null;
+    }
+
+    private void consume(int length) {
+        if (length > available) {
+            throw new IllegalStateException("No data in buffer for read");
+        }
+        available -= length;
+    }
+
+    private ByteBuffer current() {
+        ByteBuffer view = views.get(head);
+        while (!view.hasRemaining() && head + 1 < views.size()) {
+            view = views.get(++head);
+        }
+        return view;
+    }
+
+    private ByteBuffer gather(int length) {
+        scratch.clear().limit(length);
+        copyTo(scratch);
+        scratch.flip();
+        return scratch;
+    }
+
+    private void copyTo(ByteBuffer target) {
+        while (target.hasRemaining()) {
+            ByteBuffer view = current();
+            int length = Math.min(target.remaining(), view.remaining());
+            ByteBuffer part = view.duplicate();
+            part.limit(part.position() + length);
+            target.put(part);
+            view.position(part.limit());
+        }
+    }
+}
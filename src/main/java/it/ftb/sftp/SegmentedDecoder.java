@@ -0,0 +1,135 @@
+package it.ftb.sftp;
+
+import it.ftb.sftp.network.Bytes;
+import it.ftb.sftp.network.Decoder;
+import it.ftb.sftp.network.MalformedPacketException;
+import it.ftb.sftp.network.StringWithLength;
+
+import java.nio.ByteBuffer;
+import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.OptionalLong;
+
+/**
+ * Decodes the data held by a {@link SegmentChain}, reading across its segments.
+ */
+final class SegmentedDecoder implements Decoder {
+
+    @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
+    private static final Optional<Boolean> OPT_TRUE = Optional.of(true);
+    @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
+    private static final Optional<Boolean> OPT_FALSE = Optional.of(false);
+
+    private final SegmentChain chain;
+    private final boolean holdBytes;
+    private final byte[] scratch = new byte[256];
+
+    /**
+     * Creates a new decoder.
+     *
+     * @param chain The data to decode
+     * @param holdBytes Whether {@link #readBytes()} returns a read-only view of the segments instead of a copy,
+     *                  when the bytes do not span multiple segments.
+     *                  The view is only valid until the consumed segments are released.
+     */
+    SegmentedDecoder(SegmentChain chain, boolean holdBytes) {
+        this.chain = chain;
+        this.holdBytes = holdBytes;
+    }
+
+    @Override
+    public OptionalInt readOptByte() {
+        return chain.available() < 1 ? OptionalInt.empty() : OptionalInt.of(chain.readByte());
+    }
+
+    @Override
+    public OptionalInt readOptInt() {
+        return chain.available() < 4 ? OptionalInt.empty() : OptionalInt.of(chain.readInt());
+    }
+
+    @Override
+    public OptionalLong readOptLong() {
+        return chain.available() < 8 ? OptionalLong.empty() : OptionalLong.of(chain.readLong());
+    }
+
+    @Override
+    public Optional<StringWithLength> readOptString() {
+        return chain.available() < 4 ? Optional.empty() : Optional.of(readString());
+    }
+
+    @Override
+    public Optional<Boolean> readOptBoolean() {
+        if (chain.available() < 1) {
+            return Optional.empty();
+        }
+        return chain.readByte() == 0 ? OPT_FALSE : OPT_TRUE;
+    }
+
+    @Override
+    public boolean hasMore() {
+        return chain.available() > 0;
+    }
+
+    @Override
+    public StringWithLength readString() {
+        int len = chain.readInt();
+        return new StringWithLength(len, readStringValue(len));
+    }
+
+    @Override
+    public String readStringValue(int length) {
+        checkLength(length);
+        byte[] bytes = length <= scratch.length ? scratch : new byte[length];
+        chain.read(bytes, length);
+        return StringDecoding.decode(bytes, 0, length);
+    }
+
+    @Override
+    public Bytes readBytes() {
+        return readBytesValue(chain.readInt());
+    }
+
+    @Override
+    public Bytes readBytesValue(int length) {
+        int len = checkLength(length);
+        if (len == 4) {
+            // Handles, the most common bytes, need no view of the segments
+            return Bytes.from(chain.readInt());
+        }
+        ByteBuffer bytes = chain.read(len);
+        return holdBytes ? Bytes.hold(bytes.asReadOnlyBuffer()) : Bytes.copy(bytes, len);
+    }
+
+    /**
+     * Checks the length of a string or of bytes, before reading them.
+     *
+     * @param length The length read from the data
+     * @return The length
+     */
+    private int checkLength(int length) {
+        if (length < 0 || length > chain.available()) {
+            throw new MalformedPacketException("Invalid length: " + Integer.toUnsignedString(length));
+        }
+        return length;
+    }
+
+    @Override
+    public int readInt() {
+        return chain.readInt();
+    }
+
+    @Override
+    public long readLong() {
+        return chain.readLong();
+    }
+
+    @Override
+    public boolean readBoolean() {
+        return chain.readByte() != 0;
+    }
+
+    @Override
+    public byte readByte() {
+        return chain.readByte();
+    }
+}
@@ -9,6 +9,8 @@ import java.nio.file.DirectoryStream;
 import java.nio.file.LinkOption;
 import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Interface to interact with the file system.
@@ -24,9 +26,37 @@ public interface SftpFileSystem<P extends SftpPath<P>> {
     @Nonnull
     P getHome();
 
+    /**
+     * Parses a path received from a client; relative paths are resolved against the home.
+     */
+    default P parse(String path) {
+        return SftpPath.parse(this, path);
+    }
+
+    /**
+     * Returns a path as sent to a client, absolute from the root.
+     */
+    default String toSftpString(P path) {
+        return SftpPath.toString(this, path);
+    }
+
     <A extends BasicFileAttributes> A readAttributes(
             P path, Class<A> type, LinkOption... options) throws IOException;
 
+    /**
+     * Returns the names of the attribute views supported by {@link #readAttributes(SftpPath, String, LinkOption...)}.
+     */
+    default Set<String> supportedFileAttributeViews() {
+        return ImmutableSet.of();
+    }
+
+    /**
+     * Reads a set of attributes with a single operation, as {@link java.nio.file.Files#readAttributes(java.nio.file.Path, String, LinkOption...)}.
+     */
+    default Map<String, Object> readAttributes(P path, String attributes, LinkOption... options) throws IOException {
+        throw new UnsupportedOperationException();
+    }
+
     void setAttribute(P path, String attribute, Object value, LinkOption... options) throws IOException;
 
     boolean isSymbolicLink(P path);
@@ -39,8 +69,27 @@ public interface SftpFileSystem<P extends SftpPath<P>> {
 
     DirectoryStream<P> newDirectoryStream(P path) throws IOException;
 
+    /**
+     * Opens a file. When possible, implementations should return a {@link java.nio.channels.FileChannel},
+     * which allows reading and writing the same file from multiple threads.
+     */
     SeekableByteChannel newByteChannel(P path, ImmutableSet<StandardOpenOption> options) throws IOException;
 
     boolean isSameFile(P path1, P path2);
+
+    /**
+     * Returns the key identifying a file in the state shared by the sessions, whose file systems are distinct
+     * instances: the paths of the same file in different sessions have equal keys. It requires no I/O.
+     */
+    default Object pathKey(P path) {
+        return path;
+    }
+
+    /**
+     * Notifies that the attributes of a file changed, or may have changed, because of a request of a client.
+     * Implementations caching the attributes must discard those of the file.
+     */
+    default void attributesChanged(P path) {
+    }
 }
 
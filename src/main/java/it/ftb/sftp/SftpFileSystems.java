@@ -1,6 +1,8 @@
 package it.ftb.sftp;
 
 import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterators;
 
@@ -10,6 +12,8 @@ import java.nio.channels.SeekableByteChannel;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
 
 public final class SftpFileSystems {
 
@@ -35,6 +39,16 @@ public final class SftpFileSystems {
             return Files.readAttributes(path.path, type, options);
         }
 
+        @Override
+        public Set<String> supportedFileAttributeViews() {
+            return fs.supportedFileAttributeViews();
+        }
+
+        @Override
+        public Map<String, Object> readAttributes(P path, String attributes, LinkOption... options) throws IOException {
+            return Files.readAttributes(path.path, attributes, options);
+        }
+
         @Override
         public void setAttribute(P path, String attribute, Object value, LinkOption... options) throws IOException {
             Files.setAttribute(path.path, attribute, value, options);
@@ -78,7 +92,17 @@ public final class SftpFileSystems {
 
         @Override
         public SeekableByteChannel newByteChannel(P path, ImmutableSet<StandardOpenOption> options) throws IOException {
-            return fs.provider().newByteChannel(path.path, options);
+            try {
+                // A FileChannel supports positional reads and writes
+                return fs.provider().newFileChannel(path.path, options);
+            } catch (UnsupportedOperationException ignored) {
+                return fs.provider().newByteChannel(path.path, options);
+            }
+        }
+
+        @Override
+        public Object pathKey(P path) {
+            return path.path.toAbsolutePath().normalize();
         }
 
         @Override
@@ -138,6 +162,23 @@ public final class SftpFileSystems {
             return path.toString(); // TODO: verify that root element is properly identified
         }
 
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            AbstractSftpPath<?> that = (AbstractSftpPath<?>) o;
+            return fs == that.fs && path.equals(that.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return path.hashCode();
+        }
+
         @Override
         public String toString() {
             return path.toString();
@@ -146,11 +187,58 @@ public final class SftpFileSystems {
 
     private static final class RootedFileSystem extends AbstractSftpFileSystem<RootedPath> {
 
+        /**
+         * Maximum number of parsed paths kept by each file system.
+         */
+        private static final int PARSED_PATHS = 1024;
+
         private final RootedPath root;
+        private final Cache<String, RootedPath> parsedPaths = CacheBuilder.newBuilder()
+                .maximumSize(PARSED_PATHS)
+                .build();
 
         public RootedFileSystem(FileSystem fs, Path root) {
             super(fs);
-            this.root = new RootedPath(this, root);
+            this.root = new RootedPath(this, root, 0);
+        }
+
+        @Override
+        public RootedPath parse(String path) {
+            RootedPath ret = parsedPaths.getIfPresent(path);
+            if (ret == null) {
+                // Paths with no . or .. elements can not leave the root, and are resolved with a single call
+                if (!isNormalized(path)) {
+                    ret = SftpPath.parse(this, path);
+                } else {
+                    RootedPath base = path.charAt(0) == '/' ? root : getHome();
+                    Path resolved = base.path.resolve(path.charAt(0) == '/' ? path.substring(1) : path);
+                    ret = new RootedPath(this, resolved, resolved.getNameCount() - root.path.getNameCount());
+                }
+                parsedPaths.put(path, ret);
+            }
+            return ret;
+        }
+
+        private static boolean isNormalized(String path) {
+            int start = path.charAt(0) == '/' ? 1 : 0;
+            int length = path.length();
+            if (length > start && path.charAt(length - 1) == '/') {
+                return false;
+            }
+            while (start < length) {
+                int end = path.indexOf('/', start);
+                if (end == -1) {
+                    end = length;
+                }
+                int elementLength = end - start;
+                if (elementLength == 0
+                        || (elementLength == 1 && path.charAt(start) == '.')
+                        || (elementLength == 2 && path.charAt(start) == '.' && path.charAt(start + 1) == '.')) {
+                    return false;
+                }
+                start = end + 1;
+            }
+            return true;
         }
 
         @Nonnull
@@ -165,19 +253,38 @@ public final class SftpFileSystems {
             return root;
         }
 
+        @Override
+        public String toSftpString(RootedPath path) {
+            if (path.depth == 0) {
+                return "/";
+            }
+            StringBuilder sb = new StringBuilder();
+            for (Path element : root.path.relativize(path.path.toAbsolutePath().normalize())) {
+                sb.append('/').append(element);
+            }
+            return sb.toString();
+        }
+
         @Override
         protected RootedPath wrap(Path path) {
-            if (!path.toAbsolutePath().normalize().startsWith(root.path)) {
+            Path normalized = path.toAbsolutePath().normalize();
+            if (!normalized.startsWith(root.path)) {
                 throw new IllegalArgumentException("Path out of boundary");
             }
-            return new RootedPath(this, path);
+            return new RootedPath(this, path, normalized.getNameCount() - root.path.getNameCount());
         }
     }
 
     private static final class RootedPath extends AbstractSftpPath<RootedPath> {
 
-        public RootedPath(RootedFileSystem fs, Path path) {
+        /**
+         * Number of elements of the normalized path after the root, so that the root is found without I/O.
+         */
+        private final int depth;
+
+        public RootedPath(RootedFileSystem fs, Path path, int depth) {
             super(fs, path);
+            this.depth = depth;
         }
 
         @Override
@@ -196,11 +303,7 @@ public final class SftpFileSystems {
         }
 
         private boolean isRoot() {
-            try {
-                return Files.isSameFile(((RootedFileSystem)fs).root.path, path);
-            } catch (IOException e) {
-                throw new IllegalStateException("Unexpected...", e); // TODO: Si puo' evitare?
-            }
+            return depth == 0;
         }
 
         @Nonnull
@@ -0,0 +1,41 @@
+package it.ftb.sftp;
+
+import it.ftb.sftp.network.Bytes;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A processor receiving the data of the writes while it arrives from the client, so that {@link ClientInputHandler}
+ * does not need to hold whole write packets.
+ */
+public interface StreamingWriteVisitor {
+
+    /**
+     * Starts a write, whose data is then passed to the returned stream as it is received.
+     *
+     * @param uRequestId The request id
+     * @param handle The handle, valid only during the call as the {@link Bytes} of the other visits
+     * @param uOffset The file offset of the data
+     * @param uLength The length of the data
+     * @return The stream receiving the data
+     */
+    WriteStream visitWriteStart(int uRequestId, Bytes handle, long uOffset, int uLength);
+
+    /**
+     * Receives the data of a write.
+     */
+    interface WriteStream {
+
+        /**
+         * Receives the next part of the data, which is only valid during the call.
+         *
+         * @param data The data, consumed entirely
+         */
+        void write(ByteBuffer data);
+
+        /**
+         * Signals all the data has been received.
+         */
+        void end();
+    }
+}
@@ -0,0 +1,52 @@
+package it.ftb.sftp;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes the strings sent by the clients. The strings made only of ASCII characters, as most paths are,
+ * are built directly from their bytes, without the charset decoder and its intermediate {@link java.nio.CharBuffer}.
+ */
+final class StringDecoding {
+
+    private StringDecoding() {
+    }
+
+    /**
+     * Decodes the bytes of a string held by a buffer, moving its position after them.
+     *
+     * @param buffer The buffer, with its position at the start of the string
+     * @param length The length of the encoded string
+     * @param scratch The array the bytes of a direct buffer are copied into, when it is long enough
+     * @return The string
+     */
+    static String decode(ByteBuffer buffer, int length, byte[] scratch) {
+        if (buffer.hasArray()) {
+            int offset = buffer.arrayOffset() + buffer.position();
+            buffer.position(buffer.position() + length);
+            return decode(buffer.array(), offset, length);
+        }
+        byte[] bytes = length <= scratch.length ? scratch : new byte[length];
+        buffer.get(bytes, 0, length);
+        return decode(bytes, 0, length);
+    }
+
+    /**
+     * Decodes the bytes of a string.
+     *
+     * @param bytes The array holding the string
+     * @param offset The offset of the string in the array
+     * @param length The length of the encoded string
+     * @return The string
+     */
+    @SuppressWarnings("deprecation")
+    static String decode(byte[] bytes, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (bytes[i] < 0) {
+                return new String(bytes, offset, length, StandardCharsets.UTF_8);
+            }
+        }
+        // Each ASCII byte is its own char
+        return new String(bytes, 0, offset, length);
+    }
+}
@@ -1,7 +1,12 @@
 package it.ftb.sftp;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.MoreExecutors;
+import it.ftb.sftp.network.BatchingOutput;
+import it.ftb.sftp.network.BufferPool;
 import it.ftb.sftp.network.MalformedPacketException;
+import it.ftb.sftp.network.SlabAllocator;
+import it.ftb.sftp.packet.VoidPacketVisitor;
 import org.apache.sshd.common.NamedFactory;
 import org.apache.sshd.common.channel.ChannelOutputStream;
 import org.apache.sshd.server.Command;
@@ -23,13 +28,212 @@ import java.nio.channels.Channels;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.nio.file.FileSystems;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 public class ThreadedServer {
 
     private static final Logger LOG = LoggerFactory.getLogger(ThreadedServer.class);
 
+    /**
+     * Number of threads shared by all the sessions to execute requests concurrently;
+     * when 0, each session executes its requests sequentially.
+     */
+    private static final int WORKER_THREADS = Integer.getInteger("sftp.workers", 0);
+
+    /**
+     * Runs each session on a virtual thread, when supported by the JVM.
+     */
+    private static final boolean VIRTUAL_SESSIONS = Boolean.getBoolean("sftp.virtualSessions");
+
+    /**
+     * Executes each request on its own virtual thread, when supported by the JVM; overrides sftp.workers.
+     */
+    private static final boolean VIRTUAL_WORKERS = Boolean.getBoolean("sftp.virtualWorkers");
+
+    /**
+     * Maximum number of unused read buffers kept by the pool shared by all the sessions; when 0, the pool is sized
+     * from the requests executed concurrently, and the blocks they read ahead.
+     */
+    private static final int READ_BUFFERS = Integer.getInteger("sftp.readBuffers", 0);
+
+    /**
+     * Number of requests executed concurrently assumed when they are not bounded by a pool of worker threads,
+     * as with sequential sessions and virtual workers.
+     */
+    private static final int UNBOUNDED_CONCURRENCY = 64;
+
+    /**
+     * Maximum number of 1 MiB slabs, of 16 chunks of 64 KiB, holding the data of the writes waiting for a worker;
+     * writes larger than a chunk take multiple chunks, whatever the maximum transfer length.
+     */
+    private static final int WRITE_SLABS = Integer.getInteger("sftp.writeSlabs", 16);
+
+    /**
+     * Number of bytes of the files memory mapped to serve the reads; when 0, files are not mapped. It is a soft limit,
+     * as the evicted windows are unmapped when garbage collected.
+     */
+    private static final long MAPPED_BYTES = Long.getLong("sftp.mappedBytes", 0);
+
+    /**
+     * Size of the memory mapped windows over the files.
+     */
+    private static final int MAPPED_WINDOW = Integer.getInteger("sftp.mappedWindow", 0x400000);
+
+    /**
+     * Number of blocks read in advance for each handle read sequentially; when 0, files are only read on request.
+     */
+    private static final int READ_AHEAD = Integer.getInteger("sftp.readAhead", 0);
+
+    /**
+     * Interval between the logs of the statistics shared by the sessions, such as the read-ahead hit rate,
+     * in seconds; when 0, they are logged only when the server stops.
+     */
+    private static final long STATS_INTERVAL = Long.getLong("sftp.statsInterval", 60);
+
+    /**
+     * When the buffered writes are acknowledged, one of the {@link WriteBehind.Durability} names;
+     * when not set, each write is executed on request.
+     */
+    private static final String WRITE_BEHIND = System.getProperty("sftp.writeBehind");
+
+    /**
+     * Number of bytes buffered for a handle which causes them to be written.
+     */
+    private static final int WRITE_BEHIND_BYTES = Integer.getInteger("sftp.writeBehindBytes", 0x100000);
+
+    /**
+     * Maximum time the writes are buffered, in milliseconds.
+     */
+    private static final long WRITE_BEHIND_DELAY = Long.getLong("sftp.writeBehindDelay", 50);
+
+    /**
+     * Maximum number of files and directories open at the same time by a session.
+     */
+    private static final int MAX_HANDLES = Integer.getInteger("sftp.maxHandles", ProcessorConfig.DEFAULT_MAX_HANDLES);
+
+    /**
+     * Maximum number of file channels kept open by all the sessions; when 0, channels stay open until their handle is closed.
+     */
+    private static final int MAX_OPEN_CHANNELS = Integer.getInteger("sftp.maxOpenChannels", 0);
+
+    /**
+     * Maximum number of file attributes cached by each session; when 0, attributes are not cached.
+     */
+    private static final int ATTRS_CACHE_SIZE = Integer.getInteger("sftp.attrsCacheSize", 0);
+
+    /**
+     * Time the attributes are cached, in milliseconds.
+     */
+    private static final long ATTRS_CACHE_TTL = Long.getLong("sftp.attrsCacheTtl", 2000);
+
+    /**
+     * Maximum number of files whose encoded attributes are cached by the server, and shared by all the sessions;
+     * when 0, attributes are not cached and are encoded by each stat.
+     */
+    private static final int ENCODED_ATTRS_CACHE_SIZE = Integer.getInteger("sftp.encodedAttrsCacheSize", 0);
+
+    /**
+     * Time the encoded attributes are cached, in milliseconds, bounding how long the changes made by others
+     * which do not affect the modification time are unseen.
+     */
+    private static final long ENCODED_ATTRS_CACHE_TTL = Long.getLong("sftp.encodedAttrsCacheTtl", 2000);
+
+    /**
+     * Maximum number of user and group names cached by the server; when 0, names are resolved by each stat.
+     */
+    private static final int NAMES_CACHE_SIZE = Integer.getInteger("sftp.namesCacheSize", 1024);
+
+    /**
+     * Time the user and group names are cached, in seconds.
+     */
+    private static final long NAMES_CACHE_TTL = Long.getLong("sftp.namesCacheTtl", 300);
+
+    /**
+     * Number of unused segments of received data kept for the sessions.
+     */
+    private static final int INPUT_SEGMENTS = Integer.getInteger("sftp.inputSegments", 64);
+
+    /**
+     * Maximum length of the data of reads and writes, advertised with the limits@openssh.com extension.
+     */
+    private static final int MAX_TRANSFER = Integer.getInteger("sftp.maxTransfer", DefaultPacketProcessor.MAX_READ_LENGTH);
+
+    /**
+     * Maximum number of bytes of the responses sent with a single write; when 0, each response is sent on its own.
+     */
+    private static final int BATCH_BYTES = Integer.getInteger("sftp.batchBytes", 0x10000);
+
+    /**
+     * Maximum time a response sent outside of the session thread, such as by a worker, waits to be sent
+     * with other responses, in microseconds.
+     */
+    private static final long BATCH_LATENCY = Long.getLong("sftp.batchLatency", 500);
+
+    /**
+     * Size of the responses sent on their own, as copying them to the batch would cost more than the write.
+     */
+    private static final int DIRECT_SEND_BYTES = 0x4000;
+
     public static void main(String[] args) throws IOException, InterruptedException {
+        ThreadFactory sessionThreads = VIRTUAL_SESSIONS ? VirtualThreads.threadFactory() : Thread::new;
+        ExecutorService workers = VIRTUAL_WORKERS ? VirtualThreads.newPerTaskExecutor()
+                : WORKER_THREADS > 0 ? Executors.newFixedThreadPool(WORKER_THREADS)
+                : null;
+        if ((VIRTUAL_SESSIONS || VIRTUAL_WORKERS) && !VirtualThreads.isSupported()) {
+            LOG.warn("Virtual threads are not supported by this JVM, using platform threads");
+        }
+        ProcessorConfig.Builder config = new ProcessorConfig.Builder()
+                .withMaxTransferLength(MAX_TRANSFER)
+                .withConcurrency(WORKER_THREADS > 0 && !VIRTUAL_WORKERS ? WORKER_THREADS : UNBOUNDED_CONCURRENCY)
+                .withWriteBuffers(new SlabAllocator(ConcurrentPacketProcessor.WRITE_CHUNK_SIZE, 16, WRITE_SLABS))
+                .withMaxHandles(MAX_HANDLES);
+        if (READ_BUFFERS > 0) {
+            config.withReadBuffers(new BufferPool(DefaultPacketProcessor.readBufferSize(MAX_TRANSFER), READ_BUFFERS));
+        }
+        if (MAPPED_BYTES > 0) {
+            config.withMappedRegions(new MappedRegionCache(MAPPED_BYTES, MAPPED_WINDOW));
+        }
+        if (MAX_OPEN_CHANNELS > 0) {
+            config.withDescriptorBudget(new DescriptorBudget(MAX_OPEN_CHANNELS));
+        }
+        if (NAMES_CACHE_SIZE > 0) {
+            config.withPrincipalNames(new PrincipalNameCache(NAMES_CACHE_SIZE, NAMES_CACHE_TTL, TimeUnit.SECONDS));
+        }
+        if (ENCODED_ATTRS_CACHE_SIZE > 0) {
+            config.withEncodedAttrs(new EncodedAttrsCache(ENCODED_ATTRS_CACHE_SIZE, ENCODED_ATTRS_CACHE_TTL,
+                    TimeUnit.MILLISECONDS));
+        }
+        ExecutorService readAheadThreads = null;
+        if (READ_AHEAD > 0) {
+            readAheadThreads = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+            config.withReadAhead(new ReadAhead(readAheadThreads, READ_AHEAD));
+        }
+        ScheduledExecutorService writeBehindTimer = null;
+        ExecutorService writeBehindThreads = null;
+        if (WRITE_BEHIND != null) {
+            writeBehindTimer = Executors.newSingleThreadScheduledExecutor();
+            // The delayed writes block on their file, and on the connection of their client for the acknowledgements
+            writeBehindThreads = VirtualThreads.newPerTaskExecutor();
+            config.withWriteBehind(new WriteBehind(WriteBehind.Durability.valueOf(WRITE_BEHIND),
+                    WRITE_BEHIND_BYTES, WRITE_BEHIND_DELAY, writeBehindTimer, writeBehindThreads));
+        }
+        ProcessorConfig processorConfig = config.build();
+        ScheduledExecutorService statsTimer = null;
+        if (STATS_INTERVAL > 0) {
+            statsTimer = Executors.newSingleThreadScheduledExecutor();
+            statsTimer.scheduleAtFixedRate(() -> logStats(processorConfig), STATS_INTERVAL, STATS_INTERVAL,
+                    TimeUnit.SECONDS);
+        }
+        BufferPool inputSegments = new BufferPool(ClientInputHandler.SEGMENT_SIZE, INPUT_SEGMENTS);
+        // Needed also without workers, as the write-behind acknowledges the delayed writes off the session thread
+        ScheduledExecutorService batchTimer = BATCH_BYTES > 0 ? Executors.newSingleThreadScheduledExecutor() : null;
+        // The expired batches block on the connection of their client, so they are not sent by the shared timer
+        ExecutorService batchSenders = BATCH_BYTES > 0 ? VirtualThreads.newPerTaskExecutor() : null;
         SshServer sshd = SshServer.setUpDefaultServer();
         sshd.setHost("127.0.0.1");
         sshd.setPort(22);
@@ -38,7 +242,8 @@ public class ThreadedServer {
         sshd.setSubsystemFactories(ImmutableList.of(new NamedFactory<Command>() {
             @Override
             public Command create() {
-                return new MySftpCommand();
+                return new MySftpCommand(sessionThreads, processorConfig, inputSegments, workers, batchTimer,
+                        batchSenders);
             }
 
             @Override
@@ -49,17 +254,59 @@ public class ThreadedServer {
 //        sshd.setSubsystemFactories(ImmutableList.of(new SftpSubsystemFactory()));
         sshd.start();
         TimeUnit.MINUTES.sleep(10);
+        if (workers != null) {
+            workers.shutdown();
+        }
+        if (readAheadThreads != null) {
+            readAheadThreads.shutdown();
+        }
+        if (writeBehindTimer != null) {
+            writeBehindTimer.shutdown();
+            writeBehindThreads.shutdown();
+        }
+        if (batchTimer != null) {
+            batchTimer.shutdown();
+            batchSenders.shutdown();
+        }
+        if (statsTimer != null) {
+            statsTimer.shutdown();
+        }
+        logStats(processorConfig);
+    }
+
+    private static void logStats(ProcessorConfig config) {
+        config.getReadAhead().ifPresent(readAhead -> LOG.info(
+                "Read-ahead: {} reads, hit rate {}, closed handles by access pattern {}", readAhead.getReads(),
+                String.format("%.3f", readAhead.getHitRate()), readAhead.getHandlesByPattern()));
     }
 
     private static class MySftpCommand implements Command, Runnable {
+        private final ThreadFactory sessionThreads;
+        private final ProcessorConfig config;
+        private final BufferPool inputSegments;
+        private final ExecutorService workers;
+        private final ScheduledExecutorService batchTimer;
+        private final ExecutorService batchSenders;
+        private InputStream inStream;
         private ReadableByteChannel in;
         private WritableByteChannel out;
         private String user;
         private Thread cmdThread;
         private ExitCallback callback;
 
+        MySftpCommand(ThreadFactory sessionThreads, ProcessorConfig config, BufferPool inputSegments,
+                      ExecutorService workers, ScheduledExecutorService batchTimer, ExecutorService batchSenders) {
+            this.sessionThreads = sessionThreads;
+            this.config = config;
+            this.inputSegments = inputSegments;
+            this.workers = workers;
+            this.batchTimer = batchTimer;
+            this.batchSenders = batchSenders;
+        }
+
         @Override
         public void setInputStream(InputStream in) {
+            this.inStream = in;
             this.in = Channels.newChannel(in);
         }
 
@@ -84,7 +331,7 @@ public class ThreadedServer {
         public void start(Environment env) {
             user = env.getEnv().get(Environment.ENV_USER);
             LOG.info("Starting SFTP for user {}", user);
-            cmdThread = new Thread(this);
+            cmdThread = sessionThreads.newThread(this);
             cmdThread.start();
         }
 
@@ -116,20 +363,58 @@ public class ThreadedServer {
         }
 
         private <P extends SftpPath<P>> void run(SftpFileSystem<P> fs) throws IOException {
-            DefaultPacketWriter packetEncoder = new DefaultPacketWriter(bb -> {
+            if (ATTRS_CACHE_SIZE > 0) {
+                fs = new CachingSftpFileSystem<>(fs, ATTRS_CACHE_SIZE, ATTRS_CACHE_TTL, TimeUnit.MILLISECONDS,
+                        config.getPrincipalNames().orElse(null));
+            }
+            Consumer<ByteBuffer> networkSend = bb -> {
                 try {
                     out.write(bb);
                 } catch (IOException e) {
                     throw new RuntimeIOException(e);
                 }
-            });
-            DefaultPacketProcessor<P> processor = new DefaultPacketProcessor<>(fs, packetEncoder);
-            try (ClientInputHandler handler = new ClientInputHandler(processor)) {
-                ByteBuffer buf = ByteBuffer.allocate(0x10000);
-                while (-1 != in.read(buf)) {
-                    buf.flip();
-                    handler.receive(buf);
-                    buf.compact();
+            };
+            // The expired batches of a session are sent in sequence, so a client slow to read holds one thread
+            BatchingOutput batchingOutput = BATCH_BYTES > 0
+                    ? new BatchingOutput(networkSend, BATCH_BYTES, DIRECT_SEND_BYTES, batchTimer, BATCH_LATENCY,
+                            MoreExecutors.newSequentialExecutor(batchSenders))
+                    : null;
+            DefaultPacketWriter packetEncoder = new DefaultPacketWriter(batchingOutput != null ? batchingOutput : networkSend);
+            try {
+                if (workers == null) {
+                    DefaultPacketProcessor<P> processor = new DefaultPacketProcessor<>(fs, packetEncoder, config);
+                    try {
+                        process(processor, batchingOutput);
+                    } finally {
+                        processor.closeHandles();
+                    }
+                } else {
+                    ConcurrentPacketProcessor<P> processor = new ConcurrentPacketProcessor<>(fs, packetEncoder, config, workers);
+                    try {
+                        process(processor, batchingOutput);
+                    } finally {
+                        processor.close();
+                        processor.closeHandles();
+                    }
+                }
+            } finally {
+                if (batchingOutput != null) {
+                    batchingOutput.flush();
+                    LOG.debug("Sent {} packets in {} writes", batchingOutput.getPackets(), batchingOutput.getBatches());
+                }
+            }
+        }
+
+        private void process(VoidPacketVisitor processor, BatchingOutput batchingOutput) throws IOException {
+            try (ClientInputHandler handler = new ClientInputHandler(processor, true, config.getMaxPacketLength(),
+                    inputSegments)) {
+                // Read in place into the segments of the handler
+                while (-1 != in.read(handler.readBuffer())) {
+                    handler.received();
+                    if (batchingOutput != null && inStream.available() == 0) {
+                        // No more requests to process: send the responses before waiting for the client
+                        batchingOutput.flush();
+                    }
                 }
             }
         }
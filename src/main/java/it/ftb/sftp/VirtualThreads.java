@@ -0,0 +1,83 @@
+package it.ftb.sftp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Access to the virtual threads of Java 21, while still running on older JVMs.
+ * When virtual threads are not available, platform threads are used instead.
+ * <p>
+ * A virtual thread blocking inside a {@code synchronized} block keeps its carrier thread busy; this is the case
+ * of the packets written by {@link DefaultPacketWriter}, which are short, and of the I/O on files that do not
+ * support positional access.
+ */
+public final class VirtualThreads {
+
+    private static final Logger LOG = LoggerFactory.getLogger(VirtualThreads.class);
+
+    private static final ThreadFactory VIRTUAL_THREAD_FACTORY;
+    private static final MethodHandle NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR;
+
+    static {
+        ThreadFactory factory = null;
+        MethodHandle newExecutor = null;
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = lookup.findStatic(Thread.class, "ofVirtual",
+                    MethodType.methodType(Class.forName("java.lang.Thread$Builder$OfVirtual")))
+                    .invoke();
+            factory = (ThreadFactory) lookup.findVirtual(builderClass, "factory", MethodType.methodType(ThreadFactory.class))
+                    .invoke(builder);
+            newExecutor = lookup.findStatic(Executors.class, "newVirtualThreadPerTaskExecutor",
+                    MethodType.methodType(ExecutorService.class));
+        } catch (Throwable ex) {
+            // Older JVM, or preview features not enabled
+            LOG.debug("Virtual threads not available", ex);
+            factory = null;
+            newExecutor = null;
+        }
+        VIRTUAL_THREAD_FACTORY = factory;
+        NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR = newExecutor;
+    }
+
+    private VirtualThreads() {
+    }
+
+    public static boolean isSupported() {
+        return VIRTUAL_THREAD_FACTORY != null;
+    }
+
+    /**
+     * Returns a factory of virtual threads, or of platform threads if virtual threads are not supported.
+     *
+     * @return The thread factory
+     */
+    public static ThreadFactory threadFactory() {
+        return isSupported() ? VIRTUAL_THREAD_FACTORY : Thread::new;
+    }
+
+    /**
+     * Creates an executor starting a new virtual thread for each task, or a cached pool of
+     * platform threads if virtual threads are not supported.
+     *
+     * @return The executor
+     */
+    public static ExecutorService newPerTaskExecutor() {
+        if (!isSupported()) {
+            return Executors.newCachedThreadPool();
+        }
+        try {
+            return (ExecutorService) NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR.invokeExact();
+        } catch (Throwable ex) {
+            throw new IllegalStateException("Could not create virtual thread executor", ex);
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package it.ftb.sftp;
+
+import it.ftb.sftp.network.Bytes;
+import it.ftb.sftp.packet.ErrorCode;
+import it.ftb.sftp.packet.VoidPacketVisitor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind of the files written sequentially. Each handle has a {@link Buffer}, which keeps the data
+ * of the writes at consecutive offsets, and writes it with a single gathering write when it exceeds a size,
+ * when it gets older than a delay, when a write is not adjacent to the previous one, or when the handle is
+ * read, stat'ed or closed.
+ * <p>
+ * The moment each write is acknowledged depends on the {@link Durability} policy. Errors of writes already
+ * acknowledged are reported when the handle is closed. The acknowledgements are sent after releasing the buffer,
+ * and the data older than the delay is written on an executor rather than by the timer, so that a client slow
+ * to receive them does not hold up the other handles.
+ */
+public final class WriteBehind {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WriteBehind.class);
+
+    /**
+     * When the writes are acknowledged to the client.
+     */
+    public enum Durability {
+        /**
+         * As soon as the data is buffered; errors are reported by the following writes, and by the close.
+         */
+        BUFFERED,
+        /**
+         * When the data has been written to the file channel.
+         */
+        WRITTEN,
+        /**
+         * When the data has been written to the file channel and forced to the storage device.
+         */
+        SYNCED
+    }
+
+    private final Durability durability;
+    private final int maxBufferedBytes;
+    private final long maxDelayMillis;
+    private final ScheduledExecutorService scheduler;
+    private final Executor executor;
+
+    /**
+     * Creates a new write-behind, writing the data older than the delay on the thread of the scheduler.
+     *
+     * @param durability When the writes are acknowledged
+     * @param maxBufferedBytes The number of buffered bytes which causes the data to be written
+     * @param maxDelayMillis The maximum time the data is kept in the buffer
+     * @param scheduler The executor writing the data older than the delay
+     */
+    public WriteBehind(Durability durability, int maxBufferedBytes, long maxDelayMillis, ScheduledExecutorService scheduler) {
+        this(durability, maxBufferedBytes, maxDelayMillis, scheduler, Runnable::run);
+    }
+
+    /**
+     * Creates a new write-behind.
+     *
+     * @param durability When the writes are acknowledged
+     * @param maxBufferedBytes The number of buffered bytes which causes the data to be written
+     * @param maxDelayMillis The maximum time the data is kept in the buffer
+     * @param scheduler The timer of the data older than the delay, shared by all the handles
+     * @param executor The executor writing the data older than the delay, and sending its acknowledgements
+     */
+    public WriteBehind(Durability durability, int maxBufferedBytes, long maxDelayMillis, ScheduledExecutorService scheduler,
+                       Executor executor) {
+        this.durability = durability;
+        this.maxBufferedBytes = maxBufferedBytes;
+        this.maxDelayMillis = maxDelayMillis;
+        this.scheduler = scheduler;
+        this.executor = executor;
+    }
+
+    /**
+     * Creates the buffer of a handle.
+     *
+     * @param channel The channel of the handle, open for writing and not for appending
+     * @param writer The visitor receiving the acknowledgements
+     * @return The buffer
+     */
+    public Buffer newBuffer(FileChannel channel, VoidPacketVisitor writer) {
+        return newBuffer(channel, writer, () -> { });
+    }
+
+    /**
+     * Creates the buffer of a handle.
+     *
+     * @param channel The channel of the handle, open for writing and not for appending
+     * @param writer The visitor receiving the acknowledgements
+     * @param written Called each time buffered data has been written to the file, before the acknowledgements are sent
+     * @return The buffer
+     */
+    public Buffer newBuffer(FileChannel channel, VoidPacketVisitor writer, Runnable written) {
+        return new Buffer(channel, writer, written);
+    }
+
+    /**
+     * The data buffered for a handle. It can be used by multiple threads.
+     */
+    public final class Buffer {
+        private final FileChannel channel;
+        private final VoidPacketVisitor writer;
+        private final Runnable written;
+        private final List<Bytes> data = new ArrayList<>();
+        private final List<Integer> unacknowledged = new ArrayList<>();
+        private long start;
+        private long end;
+        private int generation = 0;
+        private IOException deferredError;
+
+        private Buffer(FileChannel channel, VoidPacketVisitor writer, Runnable written) {
+            this.channel = channel;
+            this.writer = writer;
+            this.written = written;
+        }
+
+        /**
+         * Buffers the data of a write.
+         *
+         * @param uRequestId The id of the write request
+         * @param offset The file offset to write at
+         * @param bytes The data, with a reference owned by this buffer
+         */
+        public void write(int uRequestId, long offset, Bytes bytes) {
+            Acks acks = new Acks();
+            synchronized (this) {
+                if (deferredError != null) {
+                    bytes.release();
+                    acks.add(uRequestId, deferredError);
+                } else {
+                    if (!data.isEmpty() && offset != end) {
+                        writeBuffered(acks);
+                    }
+                    if (data.isEmpty()) {
+                        start = offset;
+                        end = offset;
+                        int scheduledGeneration = ++generation;
+                        scheduler.schedule(() -> executor.execute(() -> flush(scheduledGeneration)),
+                                maxDelayMillis, TimeUnit.MILLISECONDS);
+                    }
+                    data.add(bytes);
+                    end += bytes.getLength();
+                    if (durability == Durability.BUFFERED) {
+                        acks.add(uRequestId, null);
+                    } else {
+                        unacknowledged.add(uRequestId);
+                    }
+                    if (end - start >= maxBufferedBytes) {
+                        writeBuffered(acks);
+                    }
+                }
+            }
+            acks.send();
+        }
+
+        /**
+         * Writes the buffered data to the file, and acknowledges the writes waiting for it.
+         */
+        public void flush() {
+            Acks acks = new Acks();
+            synchronized (this) {
+                writeBuffered(acks);
+            }
+            acks.send();
+        }
+
+        /**
+         * Writes the buffered data to the file.
+         *
+         * @throws IOException If writing a data already acknowledged failed
+         */
+        public void close() throws IOException {
+            flush();
+            synchronized (this) {
+                if (deferredError != null) {
+                    throw deferredError;
+                }
+            }
+        }
+
+        private void flush(int scheduledGeneration) {
+            Acks acks = new Acks();
+            synchronized (this) {
+                if (generation == scheduledGeneration) {
+                    writeBuffered(acks);
+                }
+            }
+            acks.send();
+        }
+
+        /**
+         * Writes the buffered data to the file, collecting the acknowledgements of the writes waiting for it.
+         */
+        private void writeBuffered(Acks acks) {
+            if (data.isEmpty()) {
+                return;
+            }
+            generation++;
+            List<ByteBuffer> chunks = new ArrayList<>(data.size());
+            for (Bytes bytes : data) {
+                Collections.addAll(chunks, bytes.asBuffers());
+            }
+            ByteBuffer[] buffers = chunks.toArray(new ByteBuffer[0]);
+            IOException error = null;
+            try {
+                synchronized (channel) {
+                    channel.position(start);
+                    long remaining = end - start;
+                    while (remaining > 0) {
+                        remaining -= channel.write(buffers);
+                    }
+                }
+                if (durability == Durability.SYNCED) {
+                    channel.force(false);
+                }
+            } catch (IOException ex) {
+                LOG.debug("Error writing buffered data", ex);
+                error = ex;
+            } finally {
+                data.forEach(Bytes::release);
+                data.clear();
+            }
+            acks.written = true;
+            for (Integer uRequestId : unacknowledged) {
+                acks.add(uRequestId, error);
+            }
+            if (error != null && durability == Durability.BUFFERED) {
+                deferredError = error;
+            }
+            unacknowledged.clear();
+        }
+
+        /**
+         * The acknowledgements to send once the buffer is released.
+         */
+        private final class Acks {
+            private final List<Integer> requestIds = new ArrayList<>(0);
+            private final List<IOException> errors = new ArrayList<>(0);
+            private boolean written;
+
+            void add(int uRequestId, IOException error) {
+                requestIds.add(uRequestId);
+                errors.add(error);
+            }
+
+            void send() {
+                if (written) {
+                    Buffer.this.written.run();
+                }
+                for (int i = 0; i < requestIds.size(); i++) {
+                    IOException error = errors.get(i);
+                    if (error == null) {
+                        writer.visitStatus(requestIds.get(i), ErrorCode.SSH_FX_OK, "", "");
+                    } else {
+                        writer.visitStatus(requestIds.get(i), ErrorCode.SSH_FX_FAILURE, error.getMessage(), "en");
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package it.ftb.sftp.network;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Flushable;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Gathers the packets sent to the network, so that multiple small packets are sent with a single write.
+ * The packets are sent when the batch is full, when {@link #flush()} is called, typically because no more
+ * requests are waiting to be processed, or when the oldest packet in the batch exceeds the latency budget.
+ * Packets larger than a threshold are sent directly, after the batch.
+ * <p>
+ * It can be used by multiple threads. A full batch is replaced by a new one and sent without holding the lock
+ * of the batch, so that a client slow to read blocks only the threads sending to it; the batches are still
+ * sent in order.
+ */
+public final class BatchingOutput implements Consumer<ByteBuffer>, Flushable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BatchingOutput.class);
+
+    private final Consumer<ByteBuffer> networkSend;
+    private final int batchSize;
+    private final int directThreshold;
+    private final ScheduledExecutorService scheduler;
+    private final long latencyBudgetMicros;
+    private final Executor executor;
+    /**
+     * The batches sent by other threads, to be reused.
+     */
+    private final Deque<ByteBuffer> spareBatches = new ArrayDeque<>();
+    /**
+     * Orders the writes to the network, guarding {@link #sendTurn}.
+     */
+    private final Object sending = new Object();
+    private ByteBuffer batch;
+    private int batchPackets = 0;
+    private int generation = 0;
+    private long nextTurn = 0;
+    private long sendTurn = 0;
+    private long batches = 0;
+    private long packets = 0;
+    private long bytes = 0;
+
+    /**
+     * Creates a new batching output, sending the batches exceeding the latency budget on the scheduler.
+     *
+     * @param networkSend The consumer sending the data to the network
+     * @param batchSize The maximum number of bytes sent with a single write
+     * @param directThreshold The size of the packets which are not copied to the batch
+     * @param scheduler The executor sending the batches exceeding the latency budget, or {@code null}
+     *                  if the batches are only sent by explicit flushes
+     * @param latencyBudgetMicros The maximum time a packet waits in the batch
+     */
+    public BatchingOutput(Consumer<ByteBuffer> networkSend, int batchSize, int directThreshold,
+                          ScheduledExecutorService scheduler, long latencyBudgetMicros) {
+        this(networkSend, batchSize, directThreshold, scheduler, latencyBudgetMicros, Runnable::run);
+    }
+
+    /**
+     * Creates a new batching output.
+     *
+     * @param networkSend The consumer sending the data to the network
+     * @param batchSize The maximum number of bytes sent with a single write
+     * @param directThreshold The size of the packets which are not copied to the batch
+     * @param scheduler The timer of the batches exceeding the latency budget, possibly shared by multiple
+     *                  outputs, or {@code null} if the batches are only sent by explicit flushes
+     * @param latencyBudgetMicros The maximum time a packet waits in the batch
+     * @param executor The executor sending the batches exceeding the latency budget
+     */
+    public BatchingOutput(Consumer<ByteBuffer> networkSend, int batchSize, int directThreshold,
+                          ScheduledExecutorService scheduler, long latencyBudgetMicros, Executor executor) {
+        this.networkSend = networkSend;
+        this.batchSize = batchSize;
+        this.batch = ByteBuffer.allocateDirect(batchSize);
+        this.directThreshold = directThreshold;
+        this.scheduler = scheduler;
+        this.latencyBudgetMicros = latencyBudgetMicros;
+        this.executor = executor;
+    }
+
+    /**
+     * Adds a packet, or part of it, to the batch. The whole buffer is consumed.
+     *
+     * @param src The data to send
+     */
+    @Override
+    public void accept(ByteBuffer src) {
+        ByteBuffer full;
+        long turn;
+        synchronized (this) {
+            if (src.remaining() >= directThreshold) {
+                full = takeBatch();
+                packets++;
+                bytes += src.remaining();
+                batches++;
+                turn = nextTurn++;
+            } else {
+                full = src.remaining() > batch.remaining() ? takeBatch() : null;
+                turn = full != null ? nextTurn++ : -1;
+                if (batchPackets == 0 && scheduler != null) {
+                    int scheduledGeneration = generation;
+                    scheduler.schedule(() -> executor.execute(() -> flush(scheduledGeneration)),
+                            latencyBudgetMicros, TimeUnit.MICROSECONDS);
+                }
+                batchPackets++;
+                bytes += src.remaining();
+                batch.put(src);
+                src = null;
+            }
+        }
+        if (turn >= 0) {
+            send(turn, full, src);
+        }
+    }
+
+    /**
+     * Sends the packets in the batch, after the batches taken before.
+     */
+    @Override
+    public void flush() {
+        ByteBuffer full;
+        long turn;
+        synchronized (this) {
+            full = takeBatch();
+            turn = nextTurn++;
+        }
+        send(turn, full, null);
+    }
+
+    /**
+     * Returns the number of writes to the network.
+     *
+     * @return The number of batches sent
+     */
+    public synchronized long getBatches() {
+        return batches;
+    }
+
+    /**
+     * Returns the number of buffers given to this output, usually one for each packet.
+     *
+     * @return The number of packets
+     */
+    public synchronized long getPackets() {
+        return packets;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Returns the average number of packets sent with a single write.
+     *
+     * @return The average batch size, in packets
+     */
+    public synchronized double getAveragePacketsPerBatch() {
+        return batches == 0 ? 0 : (double) packets / batches;
+    }
+
+    private void flush(int scheduledGeneration) {
+        ByteBuffer full;
+        long turn;
+        synchronized (this) {
+            if (generation != scheduledGeneration) {
+                return;
+            }
+            full = takeBatch();
+            turn = nextTurn++;
+        }
+        try {
+            send(turn, full, null);
+        } catch (RuntimeException ex) {
+            LOG.debug("Error sending the packets exceeding the latency budget", ex);
+        }
+    }
+
+    /**
+     * Replaces the batch with an empty one, cancelling the pending timer.
+     *
+     * @return The packets in the batch, ready to be sent, or {@code null} if the batch is empty
+     */
+    private ByteBuffer takeBatch() {
+        generation++;
+        if (batchPackets == 0) {
+            return null;
+        }
+        packets += batchPackets;
+        batches++;
+        batchPackets = 0;
+        ByteBuffer full = batch;
+        full.flip();
+        batch = spareBatches.isEmpty() ? ByteBuffer.allocateDirect(batchSize) : spareBatches.pop();
+        return full;
+    }
+
+    /**
+     * Waits for the given turn, then sends a batch and a packet. The turn is passed to the next sender
+     * also if sending fails.
+     *
+     * @param turn The turn taken with the data to send
+     * @param full The batch to send, or {@code null}
+     * @param direct The packet to send after the batch, or {@code null}
+     */
+    private void send(long turn, ByteBuffer full, ByteBuffer direct) {
+        boolean interrupted = false;
+        try {
+            synchronized (sending) {
+                while (sendTurn != turn) {
+                    try {
+                        sending.wait();
+                    } catch (InterruptedException ex) {
+                        // The turn is needed by the senders after this one
+                        interrupted = true;
+                    }
+                }
+                try {
+                    while (full != null && full.hasRemaining()) {
+                        networkSend.accept(full);
+                    }
+                    while (direct != null && direct.hasRemaining()) {
+                        networkSend.accept(direct);
+                    }
+                } finally {
+                    sendTurn++;
+                    sending.notifyAll();
+                }
+            }
+        } finally {
+            if (full != null) {
+                full.clear();
+                synchronized (this) {
+                    spareBatches.push(full);
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package it.ftb.sftp.network;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A pool of direct buffers of the same size, which can be shared by multiple threads.
+ * Buffers are allocated when the pool is empty; when the pool is full, released buffers are left to the GC.
+ */
+public final class BufferPool {
+
+    private final int bufferSize;
+    private final ByteBuffer[] pooled;
+    private int count = 0;
+
+    /**
+     * Creates a new pool.
+     *
+     * @param bufferSize The size of the buffers
+     * @param maxPooled The maximum number of unused buffers to keep
+     */
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.pooled = new ByteBuffer[maxPooled];
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Takes a buffer from the pool. The buffer is cleared, and must be given back with {@link #release(ByteBuffer)}
+     * when no longer used.
+     *
+     * @return The buffer
+     */
+    public ByteBuffer acquire() {
+        synchronized (pooled) {
+            if (count > 0) {
+                ByteBuffer ret = pooled[--count];
+                pooled[count] = null;
+                return ret;
+            }
+        }
+        return ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer.capacity() != bufferSize) {
+            throw new IllegalArgumentException("Buffer not acquired from this pool");
+        }
+        buffer.clear();
+        synchronized (pooled) {
+            if (count < pooled.length) {
+                pooled[count++] = buffer;
+            }
+        }
+    }
+}
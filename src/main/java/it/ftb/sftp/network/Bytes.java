@@ -1,23 +1,72 @@
 package it.ftb.sftp.network;
 
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public abstract class Bytes {
 
     public abstract int getLength();
 
+    /**
+     * Returns the value of these bytes as an int, such as a handle. It can be called more than once.
+     *
+     * @return The value
+     * @throws IllegalStateException If these are not 4 bytes
+     */
     public int asInt() {
         ByteBuffer b = asBuffer();
         if (b.remaining() != 4) {
             throw new IllegalStateException();
         }
-        return b.getInt();
+        return b.getInt(b.position());
     }
 
     public abstract ByteBuffer asBuffer();
 
+    /**
+     * Returns the buffers holding these bytes, in order: pooled bytes longer than a chunk are split across
+     * multiple chunks, and {@link #asBuffer()} then returns a copy of them.
+     *
+     * @return The buffers, which can be written like the one returned by {@link #asBuffer()} for a single chunk
+     */
+    public ByteBuffer[] asBuffers() {
+        return new ByteBuffer[] { asBuffer() };
+    }
+
     public abstract void copyTo(ByteBuffer buffer);
 
+    /**
+     * Returns the buffer holding these bytes, ready to send them in a packet without copying them:
+     * the buffer position is moved back by <i>headerLength</i> bytes, and its limit is moved forward
+     * by <i>trailerLength</i> bytes. The caller can then write the packet header and trailer around the bytes.
+     *
+     * @param headerLength The space required before the bytes
+     * @param trailerLength The space required after the bytes
+     * @return The buffer, or {@code null} if these bytes are not stored with enough space around them
+     */
+    public ByteBuffer frame(int headerLength, int trailerLength) {
+        return null;
+    }
+
+    /**
+     * Adds a reference to these bytes, which then stay valid until a matching call to {@link #release()}.
+     * Only the bytes allocated by a {@link SlabAllocator} are reference counted; for the others,
+     * this method does nothing.
+     *
+     * @return These bytes
+     */
+    public Bytes retain() {
+        return this;
+    }
+
+    /**
+     * Removes a reference to these bytes. When no references are left, pooled bytes are given back
+     * to their allocator, and must no longer be used.
+     */
+    public void release() {
+    }
+
     private Bytes() {
     }
 
@@ -73,6 +122,47 @@ public abstract class Bytes {
         };
     }
 
+    /**
+     * Holds the bytes between the position and the limit of the buffer, without copying them.
+     * The space before the position and after the limit can be used by {@link #frame(int, int)}.
+     *
+     * @param buffer The buffer holding the bytes
+     * @return The bytes
+     */
+    public static Bytes framed(ByteBuffer buffer) {
+        final int position = buffer.position();
+        final int limit = buffer.limit();
+        return new Bytes() {
+            @Override
+            public int getLength() {
+                return limit - position;
+            }
+
+            @Override
+            public ByteBuffer asBuffer() {
+                ByteBuffer ret = buffer.duplicate();
+                ret.limit(limit);
+                ret.position(position);
+                return ret;
+            }
+
+            @Override
+            public void copyTo(ByteBuffer target) {
+                target.put(asBuffer());
+            }
+
+            @Override
+            public ByteBuffer frame(int headerLength, int trailerLength) {
+                if (position < headerLength || buffer.capacity() - limit < trailerLength) {
+                    return null;
+                }
+                buffer.limit(limit + trailerLength);
+                buffer.position(position - headerLength);
+                return buffer;
+            }
+        };
+    }
+
     public static Bytes hold(ByteBuffer buffer) {
         final ByteBuffer sliced = buffer.slice();
         return new Bytes() {
@@ -92,4 +182,91 @@ public abstract class Bytes {
             }
         };
     }
-}
\ No newline at end of file
+
+    /**
+     * Copies the remaining bytes of a buffer to the first buffers with room left.
+     *
+     * @param src The bytes to copy
+     * @param targets The buffers, as returned by {@link #asBuffers()}
+     * @throws java.nio.BufferOverflowException If there is not enough room
+     */
+    public static void scatter(ByteBuffer src, ByteBuffer[] targets) {
+        int limit = src.limit();
+        for (int i = 0; i < targets.length && src.hasRemaining(); i++) {
+            src.limit(src.position() + Math.min(src.remaining(), targets[i].remaining()));
+            targets[i].put(src);
+            src.limit(limit);
+        }
+        if (src.hasRemaining()) {
+            throw new BufferOverflowException();
+        }
+    }
+
+    static Bytes pooled(ByteBuffer[] chunks, int length, SlabAllocator allocator) {
+        final AtomicInteger references = new AtomicInteger(1);
+        return new Bytes() {
+            @Override
+            public int getLength() {
+                return length;
+            }
+
+            @Override
+            public ByteBuffer asBuffer() {
+                ByteBuffer[] buffers = asBuffers();
+                if (buffers.length == 1) {
+                    return buffers[0];
+                }
+                ByteBuffer ret = ByteBuffer.allocate(length);
+                for (ByteBuffer buffer : buffers) {
+                    ret.put(buffer);
+                }
+                ret.flip();
+                return ret;
+            }
+
+            @Override
+            public ByteBuffer[] asBuffers() {
+                checkNotReleased();
+                ByteBuffer[] ret = new ByteBuffer[chunks.length];
+                int remaining = length;
+                for (int i = 0; i < chunks.length; i++) {
+                    ret[i] = chunks[i].duplicate();
+                    ret[i].limit(Math.min(remaining, chunks[i].capacity()));
+                    remaining -= ret[i].limit();
+                }
+                return ret;
+            }
+
+            @Override
+            public void copyTo(ByteBuffer buffer) {
+                for (ByteBuffer chunk : asBuffers()) {
+                    buffer.put(chunk);
+                }
+            }
+
+            @Override
+            public Bytes retain() {
+                if (references.getAndIncrement() <= 0) {
+                    throw new IllegalStateException("Bytes already released");
+                }
+                return this;
+            }
+
+            @Override
+            public void release() {
+                int left = references.decrementAndGet();
+                if (left == 0) {
+                    allocator.recycle(chunks);
+                } else if (left < 0) {
+                    throw new IllegalStateException("Bytes already released");
+                }
+            }
+
+            private void checkNotReleased() {
+                if (references.get() <= 0) {
+                    throw new IllegalStateException("Bytes already released");
+                }
+            }
+        };
+    }
+}
@@ -16,10 +16,43 @@ public interface Decoder {
 
     Optional<Boolean> readOptBoolean();
 
+    /**
+     * Returns whether there is data left to read: the optional fields at the end of a packet are present
+     * only if it does. Unlike the {@code readOpt} methods, it allows reading them without boxing their values.
+     *
+     * @return Whether there is data left
+     */
+    boolean hasMore();
+
     StringWithLength readString();
 
+    /**
+     * Reads a string, when its encoded length is not needed.
+     *
+     * @return The string
+     */
+    default String readStringValue() {
+        return readStringValue(readInt());
+    }
+
+    /**
+     * Reads the bytes of a string whose length has already been read.
+     *
+     * @param length The length of the encoded string
+     * @return The string
+     */
+    String readStringValue(int length);
+
     Bytes readBytes();
 
+    /**
+     * Reads bytes whose length has already been read.
+     *
+     * @param length The number of bytes
+     * @return The bytes
+     */
+    Bytes readBytesValue(int length);
+
     int readInt();
 
     long readLong();
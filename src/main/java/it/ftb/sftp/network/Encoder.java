@@ -13,4 +13,17 @@ public interface Encoder {
     Encoder write(long l);
 
     Encoder write(boolean b);
+
+    /**
+     * Writes data already encoded, as it is, without its length.
+     *
+     * @param encoded The encoded data
+     * @return This encoder
+     */
+    default Encoder writeEncoded(byte[] encoded) {
+        for (byte b : encoded) {
+            write(b);
+        }
+        return this;
+    }
 }
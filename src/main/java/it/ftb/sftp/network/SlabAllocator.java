@@ -0,0 +1,112 @@
+package it.ftb.sftp.network;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Allocator of reference counted {@link Bytes}, which can be shared by multiple threads.
+ * The bytes are stored in fixed size chunks carved out of large direct buffers, the slabs; a chunk goes back
+ * to the allocator when its bytes are released. Slabs are allocated on demand up to a maximum number, and
+ * are never freed. Bytes longer than a chunk are held by multiple chunks, see {@link Bytes#asBuffers()};
+ * when the slabs are exhausted, a heap buffer is used instead.
+ * <p>
+ * The allocator counts the bytes which have not been released yet, so that tests can detect leaks.
+ */
+public final class SlabAllocator {
+
+    private final int chunkSize;
+    private final int chunksPerSlab;
+    private final int maxSlabs;
+    private final ArrayDeque<ByteBuffer> freeChunks = new ArrayDeque<>();
+    private int slabs = 0;
+    private int outstanding = 0;
+
+    /**
+     * Creates a new allocator.
+     *
+     * @param chunkSize The size of the chunks
+     * @param chunksPerSlab The number of chunks in each slab
+     * @param maxSlabs The maximum number of slabs to allocate
+     */
+    public SlabAllocator(int chunkSize, int chunksPerSlab, int maxSlabs) {
+        this.chunkSize = chunkSize;
+        this.chunksPerSlab = chunksPerSlab;
+        this.maxSlabs = maxSlabs;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Allocates new bytes, with a single reference.
+     *
+     * @param length The number of bytes
+     * @return The bytes, whose content is undefined
+     */
+    public Bytes allocate(int length) {
+        int count = Math.max(1, (length + chunkSize - 1) / chunkSize);
+        ByteBuffer[] chunks = null;
+        synchronized (freeChunks) {
+            outstanding++;
+            while (freeChunks.size() < count && slabs < maxSlabs) {
+                allocateSlab();
+            }
+            if (freeChunks.size() >= count) {
+                chunks = new ByteBuffer[count];
+                for (int i = 0; i < count; i++) {
+                    chunks[i] = freeChunks.poll();
+                }
+            }
+        }
+        if (chunks == null) {
+            chunks = new ByteBuffer[] { ByteBuffer.allocate(length) };
+        }
+        return Bytes.pooled(chunks, length, this);
+    }
+
+    /**
+     * Copies bytes to newly allocated bytes, which stay valid when the original ones are not.
+     *
+     * @param bytes The bytes to copy
+     * @return The copy, with a single reference
+     */
+    public Bytes copyOf(Bytes bytes) {
+        Bytes ret = allocate(bytes.getLength());
+        Bytes.scatter(bytes.asBuffer(), ret.asBuffers());
+        return ret;
+    }
+
+    /**
+     * Returns the number of allocated bytes which have not been released yet.
+     *
+     * @return The number of outstanding allocations
+     */
+    public int getOutstanding() {
+        synchronized (freeChunks) {
+            return outstanding;
+        }
+    }
+
+    void recycle(ByteBuffer[] chunks) {
+        synchronized (freeChunks) {
+            outstanding--;
+            for (ByteBuffer chunk : chunks) {
+                if (chunk.isDirect()) {
+                    chunk.clear();
+                    freeChunks.push(chunk);
+                }
+            }
+        }
+    }
+
+    private void allocateSlab() {
+        ByteBuffer slab = ByteBuffer.allocateDirect(chunkSize * chunksPerSlab);
+        for (int i = 0; i < chunksPerSlab; i++) {
+            slab.limit((i + 1) * chunkSize);
+            slab.position(i * chunkSize);
+            freeChunks.add(slab.slice());
+        }
+        slabs++;
+    }
+}
@@ -3,11 +3,16 @@ package it.ftb.sftp.packet;
 import com.google.common.base.MoreObjects;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
+import it.ftb.sftp.network.Bytes;
 import it.ftb.sftp.network.Decoder;
 import it.ftb.sftp.network.Encoder;
 
 import javax.annotation.Nonnull;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
 import java.nio.file.Path;
@@ -134,6 +139,10 @@ public class Attrs implements BasicFileAttributes {
     private final int linkCount;
     private final String untranslatedName;
     private final ImmutableList<ExtensionPair> extensions;
+    /**
+     * The encoding of these attributes, kept by {@link #preEncoded()}, or {@code null}.
+     */
+    private final byte[] encoded;
 
     public Attrs(int validAttributeFlags, Type type, long size, long allocationSize, String owner, String group,
                  int permissions, long atime, int atimeNseconds, long createtime, int createtimeNseconds, long mtime,
@@ -163,6 +172,34 @@ public class Attrs implements BasicFileAttributes {
         this.linkCount = linkCount;
         this.untranslatedName = untranslatedName;
         this.extensions = extensions;
+        this.encoded = null;
+    }
+
+    private Attrs(Attrs attrs, byte[] encoded) {
+        this.validAttributeFlags = attrs.validAttributeFlags;
+        this.type = attrs.type;
+        this.size = attrs.size;
+        this.allocationSize = attrs.allocationSize;
+        this.owner = attrs.owner;
+        this.group = attrs.group;
+        this.permissions = attrs.permissions;
+        this.atime = attrs.atime;
+        this.atimeNseconds = attrs.atimeNseconds;
+        this.createtime = attrs.createtime;
+        this.createtimeNseconds = attrs.createtimeNseconds;
+        this.mtime = attrs.mtime;
+        this.mtimeNseconds = attrs.mtimeNseconds;
+        this.ctime = attrs.ctime;
+        this.ctimeNseconds = attrs.ctimeNseconds;
+        this.acl = attrs.acl;
+        this.attribBits = attrs.attribBits;
+        this.attribBitsValid = attrs.attribBitsValid;
+        this.textHint = attrs.textHint;
+        this.mimeType = attrs.mimeType;
+        this.linkCount = attrs.linkCount;
+        this.untranslatedName = attrs.untranslatedName;
+        this.extensions = attrs.extensions;
+        this.encoded = encoded;
     }
 
     private FileTime getFileTime(Validity validity, long time, int timeNseconds) {
@@ -347,43 +384,108 @@ public class Attrs implements BasicFileAttributes {
         return extensions;
     }
 
-    private void when(Validity validity, Runnable runnable) {
-        if (isValid(validity)) {
-            runnable.run();
-        }
-    }
-
-    private void whenSub(Validity validity, Runnable runnable) {
-        if (isValid(validity) && isValid(Validity.SSH_FILEXFER_ATTR_SUBSECOND_TIMES)) {
-            runnable.run();
+    /**
+     * Returns these attributes along with their encoding, which {@link #write(Encoder)} then copies as it is.
+     * Used for the attributes kept in a cache, which are sent many times.
+     *
+     * @return The attributes
+     */
+    public Attrs preEncoded() {
+        if (encoded != null) {
+            return this;
         }
+        ArrayEncoder enc = new ArrayEncoder();
+        write(enc);
+        return new Attrs(this, enc.output.toByteArray());
     }
 
     public void write(Encoder enc) {
+        if (encoded != null) {
+            enc.writeEncoded(encoded);
+            return;
+        }
+        write(enc, validAttributeFlags, type, size, allocationSize, owner, group, permissions,
+                atime, atimeNseconds, createtime, createtimeNseconds, mtime, mtimeNseconds,
+                ctime, ctimeNseconds, acl, attribBits, attribBitsValid, textHint, mimeType,
+                linkCount, untranslatedName, extensions);
+    }
+
+    /**
+     * Encodes attributes; shared by {@link Attrs} and {@link Builder}, so that the attributes of the files listed
+     * by a directory can be encoded from a reused builder without allocating anything.
+     */
+    private static void write(Encoder enc, int validAttributeFlags, Type type, long size, long allocationSize,
+                              String owner, String group, int permissions, long atime, int atimeNseconds,
+                              long createtime, int createtimeNseconds, long mtime, int mtimeNseconds, long ctime,
+                              int ctimeNseconds, String acl, int attribBits, int attribBitsValid, byte textHint,
+                              String mimeType, int linkCount, String untranslatedName,
+                              List<ExtensionPair> extensions) {
+        boolean subsecond = Validity.SSH_FILEXFER_ATTR_SUBSECOND_TIMES.isSet(validAttributeFlags);
         enc.write(validAttributeFlags);
         enc.write((byte) type.getCode());
-        when(Validity.SSH_FILEXFER_ATTR_SIZE, () -> enc.write(size));
-        when(Validity.SSH_FILEXFER_ATTR_ALLOCATION_SIZE, () -> enc.write(allocationSize));
-        when(Validity.SSH_FILEXFER_ATTR_OWNERGROUP, () -> enc.write(owner));
-        when(Validity.SSH_FILEXFER_ATTR_OWNERGROUP, () -> enc.write(group));
-        when(Validity.SSH_FILEXFER_ATTR_PERMISSIONS, () -> enc.write(permissions));
-        when(Validity.SSH_FILEXFER_ATTR_ACCESSTIME, () -> enc.write(atime));
-        whenSub(Validity.SSH_FILEXFER_ATTR_ACCESSTIME, () -> enc.write(atimeNseconds));
-        when(Validity.SSH_FILEXFER_ATTR_CREATETIME, () -> enc.write(createtime));
-        whenSub(Validity.SSH_FILEXFER_ATTR_CREATETIME, () -> enc.write(createtimeNseconds));
-        when(Validity.SSH_FILEXFER_ATTR_MODIFYTIME, () -> enc.write(mtime));
-        whenSub(Validity.SSH_FILEXFER_ATTR_MODIFYTIME, () -> enc.write(mtimeNseconds));
-        when(Validity.SSH_FILEXFER_ATTR_CTIME, () -> enc.write(ctime));
-        whenSub(Validity.SSH_FILEXFER_ATTR_CTIME, () -> enc.write(ctimeNseconds));
-        when(Validity.SSH_FILEXFER_ATTR_ACL, () -> enc.write(acl));
-        when(Validity.SSH_FILEXFER_ATTR_BITS, () -> enc.write(attribBits));
-        when(Validity.SSH_FILEXFER_ATTR_BITS, () -> enc.write(attribBitsValid));
-        when(Validity.SSH_FILEXFER_ATTR_TEXT_HINT, () -> enc.write(textHint));
-        when(Validity.SSH_FILEXFER_ATTR_MIME_TYPE, () -> enc.write(mimeType));
-        when(Validity.SSH_FILEXFER_ATTR_LINK_COUNT, () -> enc.write(linkCount));
-        when(Validity.SSH_FILEXFER_ATTR_UNTRANSLATED_NAME, () -> enc.write(untranslatedName));
-        when(Validity.SSH_FILEXFER_ATTR_EXTENDED, () -> enc.write(extensions.size()));
-        when(Validity.SSH_FILEXFER_ATTR_EXTENDED, () -> extensions.forEach(ep -> ep.write(enc)));
+        // Plain tests rather than lambdas, which would capture the encoder and the fields for each attribute
+        if (Validity.SSH_FILEXFER_ATTR_SIZE.isSet(validAttributeFlags)) {
+            enc.write(size);
+        }
+        if (Validity.SSH_FILEXFER_ATTR_ALLOCATION_SIZE.isSet(validAttributeFlags)) {
+            enc.write(allocationSize);
+        }
+        if (Validity.SSH_FILEXFER_ATTR_OWNERGROUP.isSet(validAttributeFlags)) {
+            enc.write(owner);
+            enc.write(group);
+        }
+        if (Validity.SSH_FILEXFER_ATTR_PERMISSIONS.isSet(validAttributeFlags)) {
+            enc.write(permissions);
+        }
+        if (Validity.SSH_FILEXFER_ATTR_ACCESSTIME.isSet(validAttributeFlags)) {
+            enc.write(atime);
+            if (subsecond) {
+                enc.write(atimeNseconds);
+            }
+        }
+        if (Validity.SSH_FILEXFER_ATTR_CREATETIME.isSet(validAttributeFlags)) {
+            enc.write(createtime);
+            if (subsecond) {
+                enc.write(createtimeNseconds);
+            }
+        }
+        if (Validity.SSH_FILEXFER_ATTR_MODIFYTIME.isSet(validAttributeFlags)) {
+            enc.write(mtime);
+            if (subsecond) {
+                enc.write(mtimeNseconds);
+            }
+        }
+        if (Validity.SSH_FILEXFER_ATTR_CTIME.isSet(validAttributeFlags)) {
+            enc.write(ctime);
+            if (subsecond) {
+                enc.write(ctimeNseconds);
+            }
+        }
+        if (Validity.SSH_FILEXFER_ATTR_ACL.isSet(validAttributeFlags)) {
+            enc.write(acl);
+        }
+        if (Validity.SSH_FILEXFER_ATTR_BITS.isSet(validAttributeFlags)) {
+            enc.write(attribBits);
+            enc.write(attribBitsValid);
+        }
+        if (Validity.SSH_FILEXFER_ATTR_TEXT_HINT.isSet(validAttributeFlags)) {
+            enc.write(textHint);
+        }
+        if (Validity.SSH_FILEXFER_ATTR_MIME_TYPE.isSet(validAttributeFlags)) {
+            enc.write(mimeType);
+        }
+        if (Validity.SSH_FILEXFER_ATTR_LINK_COUNT.isSet(validAttributeFlags)) {
+            enc.write(linkCount);
+        }
+        if (Validity.SSH_FILEXFER_ATTR_UNTRANSLATED_NAME.isSet(validAttributeFlags)) {
+            enc.write(untranslatedName);
+        }
+        if (Validity.SSH_FILEXFER_ATTR_EXTENDED.isSet(validAttributeFlags)) {
+            enc.write(extensions.size());
+            for (int i = 0; i < extensions.size(); i++) {
+                extensions.get(i).write(enc);
+            }
+        }
     }
 
     @Override
@@ -420,67 +522,127 @@ public class Attrs implements BasicFileAttributes {
     }
 
     public static Optional<Attrs> readOpt(@Nonnull Decoder dec) {
-        OptionalInt validAttributeFlags = dec.readOptInt();
-        if (!validAttributeFlags.isPresent()) {
+        if (!dec.hasMore()) {
             return Optional.empty();
         }
-        return Optional.of(read(dec, validAttributeFlags.getAsInt()));
+        return Optional.of(read(dec));
     }
 
-    private static void when(int validAttributeFlags, Validity validity, Runnable runnable) {
-        if (validity.isSet(validAttributeFlags)) {
-            runnable.run();
+    private static Attrs read(Decoder dec, int validAttributeFlags) {
+        Type type = Type.fromCode(dec.readByte());
+        boolean subsecond = Validity.SSH_FILEXFER_ATTR_SUBSECOND_TIMES.isSet(validAttributeFlags);
+        Builder b = new Builder(type, subsecond);
+        // Plain tests rather than lambdas, which would capture the decoder and the builder for each attribute
+        if (Validity.SSH_FILEXFER_ATTR_SIZE.isSet(validAttributeFlags)) {
+            b.withSize(dec.readLong());
+        }
+        if (Validity.SSH_FILEXFER_ATTR_ALLOCATION_SIZE.isSet(validAttributeFlags)) {
+            b.withAllocationSize(dec.readLong());
+        }
+        if (Validity.SSH_FILEXFER_ATTR_OWNERGROUP.isSet(validAttributeFlags)) {
+            b.withOwnerGroup(dec.readStringValue(), dec.readStringValue());
+        }
+        if (Validity.SSH_FILEXFER_ATTR_PERMISSIONS.isSet(validAttributeFlags)) {
+            b.withPermissions(dec.readInt());
+        }
+        if (Validity.SSH_FILEXFER_ATTR_ACCESSTIME.isSet(validAttributeFlags)) {
+            b.withAtime(dec.readLong(), subsecond ? dec.readInt() : 0);
+        }
+        if (Validity.SSH_FILEXFER_ATTR_CREATETIME.isSet(validAttributeFlags)) {
+            b.withCreatetime(dec.readLong(), subsecond ? dec.readInt() : 0);
+        }
+        if (Validity.SSH_FILEXFER_ATTR_MODIFYTIME.isSet(validAttributeFlags)) {
+            b.withMtime(dec.readLong(), subsecond ? dec.readInt() : 0);
+        }
+        if (Validity.SSH_FILEXFER_ATTR_CTIME.isSet(validAttributeFlags)) {
+            b.withCtime(dec.readLong(), subsecond ? dec.readInt() : 0);
+        }
+        if (Validity.SSH_FILEXFER_ATTR_ACL.isSet(validAttributeFlags)) {
+            b.withAcl(dec.readStringValue());
+        }
+        if (Validity.SSH_FILEXFER_ATTR_BITS.isSet(validAttributeFlags)) {
+            b.withAttribBits(dec.readInt(), dec.readInt());
+        }
+        if (Validity.SSH_FILEXFER_ATTR_TEXT_HINT.isSet(validAttributeFlags)) {
+            b.withTextHint(dec.readByte());
+        }
+        if (Validity.SSH_FILEXFER_ATTR_MIME_TYPE.isSet(validAttributeFlags)) {
+            b.withMimeType(dec.readStringValue());
+        }
+        if (Validity.SSH_FILEXFER_ATTR_LINK_COUNT.isSet(validAttributeFlags)) {
+            b.withLinkCount(dec.readInt());
+        }
+        if (Validity.SSH_FILEXFER_ATTR_UNTRANSLATED_NAME.isSet(validAttributeFlags)) {
+            b.withUntranslatedName(dec.readStringValue());
+        }
+        if (Validity.SSH_FILEXFER_ATTR_EXTENDED.isSet(validAttributeFlags)) {
+            b.withExtensions(ExtensionPair.readAll(dec, dec.readInt()));
         }
+
+        if (b.validAttributeFlags != validAttributeFlags) {
+            throw new IllegalStateException(String.format("validAttributeFlags mismatch(received %x, reconstructed %x)", validAttributeFlags, b.validAttributeFlags));
+        }
+        return b.build();
     }
 
-    private static void whenSub(int validAttributeFlags, Validity validity, Runnable ifSubsecond, Runnable ifNotSubsecond) {
-        if (validity.isSet(validAttributeFlags)) {
-            if (Validity.SSH_FILEXFER_ATTR_SUBSECOND_TIMES.isSet(validAttributeFlags)) {
-                ifSubsecond.run();
-            } else {
-                ifNotSubsecond.run();
+    /**
+     * Encodes to an array, for {@link #preEncoded()}.
+     */
+    private static final class ArrayEncoder implements Encoder {
+
+        private final ByteArrayDataOutput output = ByteStreams.newDataOutput();
+
+        @Override
+        public Encoder write(byte b) {
+            output.writeByte(b);
+            return this;
+        }
+
+        @Override
+        public Encoder write(int i) {
+            output.writeInt(i);
+            return this;
+        }
+
+        @Override
+        public Encoder write(String s) {
+            if (s == null) {
+                return write(0);
             }
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            output.writeInt(bytes.length);
+            output.write(bytes);
+            return this;
         }
-    }
 
-    private static Attrs read(Decoder dec, int validAttributeFlags) {
-        Type type = Type.fromCode(dec.readByte());
-        Builder b = new Builder(type, Validity.SSH_FILEXFER_ATTR_SUBSECOND_TIMES.isSet(validAttributeFlags));
-        when(validAttributeFlags, Validity.SSH_FILEXFER_ATTR_SIZE, () -> b.withSize(dec.readLong()));
-        when(validAttributeFlags, Validity.SSH_FILEXFER_ATTR_ALLOCATION_SIZE, () -> b.withAllocationSize(dec.readLong()));
-        when(validAttributeFlags, Validity.SSH_FILEXFER_ATTR_OWNERGROUP, () -> b.withOwnerGroup(dec.readString().getString(), dec.readString().getString()));
-        when(validAttributeFlags, Validity.SSH_FILEXFER_ATTR_PERMISSIONS, () -> b.withPermissions(dec.readInt()));
-        whenSub(validAttributeFlags, Validity.SSH_FILEXFER_ATTR_ACCESSTIME,
-                () -> b.withAtime(dec.readLong(), dec.readInt()),
-                () -> b.withAtime(dec.readLong(), 0));
-        whenSub(validAttributeFlags, Validity.SSH_FILEXFER_ATTR_CREATETIME,
-                () -> b.withCreatetime(dec.readLong(), dec.readInt()),
-                () -> b.withCreatetime(dec.readLong(), 0));
-        whenSub(validAttributeFlags, Validity.SSH_FILEXFER_ATTR_MODIFYTIME,
-                () -> b.withMtime(dec.readLong(), dec.readInt()),
-                () -> b.withMtime(dec.readLong(), 0));
-        whenSub(validAttributeFlags, Validity.SSH_FILEXFER_ATTR_CTIME,
-                () -> b.withCtime(dec.readLong(), dec.readInt()),
-                () -> b.withCtime(dec.readLong(), 0));
-        when(validAttributeFlags, Validity.SSH_FILEXFER_ATTR_ACL, () -> b.withAcl(dec.readString().getString()));
-        when(validAttributeFlags, Validity.SSH_FILEXFER_ATTR_BITS, () -> b.withAttribBits(dec.readInt(), dec.readInt()));
-        when(validAttributeFlags, Validity.SSH_FILEXFER_ATTR_TEXT_HINT, () -> b.withTextHint(dec.readByte()));
-        when(validAttributeFlags, Validity.SSH_FILEXFER_ATTR_MIME_TYPE, () -> b.withMimeType(dec.readString().getString()));
-        when(validAttributeFlags, Validity.SSH_FILEXFER_ATTR_LINK_COUNT, () -> b.withLinkCount(dec.readInt()));
-        when(validAttributeFlags, Validity.SSH_FILEXFER_ATTR_UNTRANSLATED_NAME, () -> b.withUntranslatedName(dec.readString().getString()));
-        when(validAttributeFlags, Validity.SSH_FILEXFER_ATTR_EXTENDED, () -> b.withExtensions(ExtensionPair.readAll(dec, dec.readInt())));
+        @Override
+        public Encoder write(Bytes b) {
+            output.writeInt(b.getLength());
+            ByteBuffer bytes = b.asBuffer();
+            while (bytes.hasRemaining()) {
+                output.writeByte(bytes.get());
+            }
+            return this;
+        }
 
-        if (b.validAttributeFlags != validAttributeFlags) {
-            throw new IllegalStateException(String.format("validAttributeFlags mismatch(received %x, reconstructed %x)", validAttributeFlags, b.validAttributeFlags));
+        @Override
+        public Encoder write(long l) {
+            output.writeLong(l);
+            return this;
+        }
+
+        @Override
+        public Encoder write(boolean b) {
+            output.writeBoolean(b);
+            return this;
         }
-        return b.build();
     }
 
     @SuppressWarnings("UnusedReturnValue")
     public static final class Builder {
 
         private int validAttributeFlags;
-        private final Type type;
+        private Type type;
         private long size;
         private long allocationSize;
         private String owner;
@@ -508,6 +670,40 @@ public class Attrs implements BasicFileAttributes {
             validAttributeFlags = (subsecondTimes ? Validity.SSH_FILEXFER_ATTR_SUBSECOND_TIMES.getMask() : 0);
         }
 
+        /**
+         * Clears this builder, to reuse it as a mutable record of the attributes of another file.
+         *
+         * @param type The type of the file
+         * @param subsecondTimes Whether the times include their nanoseconds
+         * @return This builder
+         */
+        public Builder reset(Type type, boolean subsecondTimes) {
+            this.type = type;
+            validAttributeFlags = (subsecondTimes ? Validity.SSH_FILEXFER_ATTR_SUBSECOND_TIMES.getMask() : 0);
+            size = 0;
+            allocationSize = 0;
+            owner = null;
+            group = null;
+            permissions = 0;
+            atime = 0;
+            atimeNseconds = 0;
+            createtime = 0;
+            createtimeNseconds = 0;
+            mtime = 0;
+            mtimeNseconds = 0;
+            ctime = 0;
+            ctimeNseconds = 0;
+            acl = null;
+            attribBits = 0;
+            attribBitsValid = 0;
+            textHint = 0;
+            mimeType = null;
+            linkCount = 0;
+            untranslatedName = null;
+            extensions = null;
+            return this;
+        }
+
         public Builder withSize(long size) {
             validAttributeFlags |= Validity.SSH_FILEXFER_ATTR_SIZE.getMask();
             this.size = size;
@@ -568,6 +764,7 @@ public class Attrs implements BasicFileAttributes {
         }
 
         public Builder withAttribBits(int attribBits, int attribBitsValid) {
+            validAttributeFlags |= Validity.SSH_FILEXFER_ATTR_BITS.getMask();
             this.attribBits = attribBits;
             this.attribBitsValid = attribBitsValid;
             return this;
@@ -614,6 +811,19 @@ public class Attrs implements BasicFileAttributes {
             return this;
         }
 
+        /**
+         * Encodes the attributes set, as {@link Attrs#write(Encoder)} would encode the built attributes,
+         * without building them.
+         *
+         * @param enc The encoder
+         */
+        public void write(Encoder enc) {
+            Attrs.write(enc, validAttributeFlags, type, size, allocationSize, owner, group, permissions,
+                    atime, atimeNseconds, createtime, createtimeNseconds, mtime, mtimeNseconds,
+                    ctime, ctimeNseconds, acl, attribBits, attribBitsValid, textHint, mimeType,
+                    linkCount, untranslatedName, extensions);
+        }
+
         public Attrs build() {
             return new Attrs(validAttributeFlags, type, size, allocationSize, owner, group, permissions,
                     atime, atimeNseconds, createtime, createtimeNseconds, mtime, mtimeNseconds,
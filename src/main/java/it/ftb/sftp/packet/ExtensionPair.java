@@ -5,9 +5,9 @@ import com.google.common.collect.ImmutableList;
 import it.ftb.sftp.network.Decoder;
 import it.ftb.sftp.network.Encoder;
 import it.ftb.sftp.network.MalformedPacketException;
-import it.ftb.sftp.network.StringWithLength;
 
 import javax.annotation.Nonnull;
+import java.util.Objects;
 import java.util.Optional;
 
 public class ExtensionPair {
@@ -34,12 +34,12 @@ public class ExtensionPair {
     }
 
     public static Optional<ExtensionPair> read(@Nonnull Decoder dec) {
-        Optional<StringWithLength> name = dec.readOptString();
-        if (!name.isPresent()) {
+        if (!dec.hasMore()) {
             return Optional.empty();
         }
-        String data = dec.readString().getString();
-        return Optional.of(new ExtensionPair(name.get().getString(), data));
+        String name = dec.readStringValue();
+        String data = dec.readStringValue();
+        return Optional.of(new ExtensionPair(name, data));
     }
 
     public static ImmutableList<ExtensionPair> readAll(@Nonnull Decoder dec) {
@@ -63,6 +63,23 @@ public class ExtensionPair {
         return extensions.build();
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        ExtensionPair that = (ExtensionPair) o;
+        return extensionName.equals(that.extensionName) && extensionData.equals(that.extensionData);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(extensionName, extensionData);
+    }
+
     @Override
     public String toString() {
         return MoreObjects.toStringHelper(this)
@@ -1,10 +1,5 @@
 package it.ftb.sftp.packet;
 
-import com.google.common.collect.ImmutableMap;
-
-import java.util.Arrays;
-import java.util.stream.Collectors;
-
 public enum PacketType {
 
     SSH_FXP_INIT(1, SshFxpInit.FACTORY),
@@ -34,8 +29,8 @@ public enum PacketType {
     SSH_FXP_DATA(103, SshFxpData.FACTORY),
     SSH_FXP_NAME(104, SshFxpName.FACTORY),
     SSH_FXP_ATTRS(105, SshFxpAttrs.FACTORY),
-    SSH_FXP_EXTENDED(200, null),
-    SSH_FXP_EXTENDED_REPLY(201, null);
+    SSH_FXP_EXTENDED(200, SshFxpExtended.FACTORY),
+    SSH_FXP_EXTENDED_REPLY(201, SshFxpExtendedReply.FACTORY);
 
     private final int code;
     private PacketFactory<?> packetFactory;
@@ -58,11 +53,17 @@ public enum PacketType {
     }
 
     public static PacketType fromCode(int code) {
-        return TYPES_BY_CODE.get(code);
+        return code >= 0 && code < TYPES_BY_CODE.length ? TYPES_BY_CODE[code] : null;
     }
 
-    private static final ImmutableMap<Integer, PacketType> TYPES_BY_CODE =
-            ImmutableMap.copyOf(
-                    Arrays.stream(PacketType.values())
-                            .collect(Collectors.toMap(PacketType::getCode, x -> x)));
+    /**
+     * The types indexed by their code, looked up for each received packet without boxing it.
+     */
+    private static final PacketType[] TYPES_BY_CODE = new PacketType[256];
+
+    static {
+        for (PacketType type : values()) {
+            TYPES_BY_CODE[type.code] = type;
+        }
+    }
 }
@@ -3,17 +3,20 @@ package it.ftb.sftp.packet;
 import it.ftb.sftp.network.Bytes;
 import it.ftb.sftp.network.Decoder;
 
-import java.util.Optional;
-
 public class SshFxpData {
 
+    /**
+     * Length of a data packet before the data: packet length, type, request id and data length.
+     */
+    public static final int HEADER_LENGTH = 4 + 1 + 4 + 4;
+
     public static final PacketFactory<SshFxpData> FACTORY = new PacketFactory<SshFxpData>() {
         @Override
         public void read(Decoder decoder, VoidPacketVisitor visitor) {
             int requestId = decoder.readInt();
             Bytes data = decoder.readBytes();
-            Optional<Boolean> endOfFile = decoder.readOptBoolean();
-            visitor.visitData(requestId, data, endOfFile.orElse(false));
+            boolean endOfFile = decoder.hasMore() && decoder.readBoolean();
+            visitor.visitData(requestId, data, endOfFile);
         }
     };
 }
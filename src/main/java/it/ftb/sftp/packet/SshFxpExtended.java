@@ -0,0 +1,21 @@
+package it.ftb.sftp.packet;
+
+import it.ftb.sftp.network.Decoder;
+
+public class SshFxpExtended {
+
+    /**
+     * Request of the limits of the server, answered with {@link VoidPacketVisitor#visitLimits}.
+     */
+    public static final String LIMITS = "limits@openssh.com";
+
+    public static final PacketFactory<SshFxpExtended> FACTORY = new PacketFactory<SshFxpExtended>() {
+        @Override
+        public void read(Decoder decoder, VoidPacketVisitor visitor) {
+            int requestId = decoder.readInt();
+            String extendedRequest = decoder.readStringValue();
+            // The request specific data is skipped, as the supported requests have none
+            visitor.visitExtended(requestId, extendedRequest);
+        }
+    };
+}
@@ -0,0 +1,21 @@
+package it.ftb.sftp.packet;
+
+import it.ftb.sftp.network.Decoder;
+
+/**
+ * Reply to an extended request; the only one supported is the reply to {@link SshFxpExtended#LIMITS}.
+ */
+public class SshFxpExtendedReply {
+
+    public static final PacketFactory<SshFxpExtendedReply> FACTORY = new PacketFactory<SshFxpExtendedReply>() {
+        @Override
+        public void read(Decoder decoder, VoidPacketVisitor visitor) {
+            int requestId = decoder.readInt();
+            long uMaxPacketLength = decoder.readLong();
+            long uMaxReadLength = decoder.readLong();
+            long uMaxWriteLength = decoder.readLong();
+            long uMaxOpenHandles = decoder.readLong();
+            visitor.visitLimits(requestId, uMaxPacketLength, uMaxReadLength, uMaxWriteLength, uMaxOpenHandles);
+        }
+    };
+}
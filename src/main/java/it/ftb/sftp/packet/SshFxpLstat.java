@@ -8,7 +8,7 @@ public final class SshFxpLstat {
         @Override
         public void read(Decoder decoder, VoidPacketVisitor visitor) {
             int requestId = decoder.readInt();
-            String path = decoder.readString().getString();
+            String path = decoder.readStringValue();
             int uFlags = decoder.readInt();
             visitor.visitLstat(requestId, path, uFlags);
         }
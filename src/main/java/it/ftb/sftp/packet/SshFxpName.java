@@ -15,7 +15,7 @@ public class SshFxpName {
             ImmutableList.Builder<String> names = new ImmutableList.Builder<>();
             ImmutableList.Builder<Attrs> attributes = new ImmutableList.Builder<>();
             for (int i = 0; i < count; i++) {
-                names.add(decoder.readString().getString());
+                names.add(decoder.readStringValue());
                 attributes.add(Attrs.read(decoder));
             }
             Optional<Boolean> endOfList = decoder.readOptBoolean();
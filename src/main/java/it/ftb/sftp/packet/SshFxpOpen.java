@@ -4,8 +4,6 @@ import com.google.common.collect.ImmutableMap;
 import it.ftb.sftp.network.Decoder;
 
 import java.util.Arrays;
-import java.util.Optional;
-import java.util.OptionalInt;
 import java.util.stream.Collectors;
 
 public final class SshFxpOpen {
@@ -117,11 +115,11 @@ public final class SshFxpOpen {
         @Override
         public void read(Decoder decoder, VoidPacketVisitor visitor) {
             int requestId = decoder.readInt();
-            String filename = decoder.readString().getString();
-            OptionalInt desideredAccess = decoder.readOptInt();
-            OptionalInt flags = decoder.readOptInt();
-            Optional<Attrs> attrs = Attrs.readOpt(decoder);
-            visitor.visitOpen(requestId, filename, desideredAccess.orElse(0), flags.orElse(0), attrs.orElse(Attrs.EMPTY));
+            String filename = decoder.readStringValue();
+            int desideredAccess = decoder.hasMore() ? decoder.readInt() : 0;
+            int flags = decoder.hasMore() ? decoder.readInt() : 0;
+            Attrs attrs = decoder.hasMore() ? Attrs.read(decoder) : Attrs.EMPTY;
+            visitor.visitOpen(requestId, filename, desideredAccess, flags, attrs);
         }
     };
 }
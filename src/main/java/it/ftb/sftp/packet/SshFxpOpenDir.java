@@ -8,7 +8,7 @@ public final class SshFxpOpenDir {
         @Override
         public void read(Decoder decoder, VoidPacketVisitor visitor) {
             int requestId = decoder.readInt();
-            String path = decoder.readString().getString();
+            String path = decoder.readStringValue();
             visitor.visitOpenDir(requestId, path);
         }
     };
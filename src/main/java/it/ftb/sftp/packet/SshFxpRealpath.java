@@ -3,11 +3,8 @@ package it.ftb.sftp.packet;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import it.ftb.sftp.network.Decoder;
-import it.ftb.sftp.network.StringWithLength;
 
 import java.util.Arrays;
-import java.util.Optional;
-import java.util.OptionalInt;
 import java.util.stream.Collectors;
 
 public class SshFxpRealpath {
@@ -45,16 +42,13 @@ public class SshFxpRealpath {
         @Override
         public void read(Decoder decoder, VoidPacketVisitor visitor) {
             int requestId = decoder.readInt();
-            String originalPath = decoder.readString().getString();
-            OptionalInt controlByte = decoder.readOptByte();
+            String originalPath = decoder.readStringValue();
+            int controlByte = decoder.hasMore() ? decoder.readByte() : ControlByte.SSH_FXP_REALPATH_NO_CHECK.getCode();
             ImmutableList.Builder<String> composePath = new ImmutableList.Builder<>();
-            Optional<StringWithLength> cp;
-            while ((cp = decoder.readOptString()).isPresent()) {
-                composePath.add(cp.get().getString());
+            while (decoder.hasMore()) {
+                composePath.add(decoder.readStringValue());
             }
-            visitor.visitRealpath(requestId, originalPath,
-                    ControlByte.fromCode(controlByte.orElse(ControlByte.SSH_FXP_REALPATH_NO_CHECK.getCode())),
-                    composePath.build());
+            visitor.visitRealpath(requestId, originalPath, ControlByte.fromCode(controlByte), composePath.build());
         }
     };
 }
@@ -8,7 +8,7 @@ public class SshFxpSetstat {
         @Override
         public void read(Decoder decoder, VoidPacketVisitor visitor) {
             int requestId = decoder.readInt();
-            String path = decoder.readString().getString();
+            String path = decoder.readStringValue();
             Attrs attrs = Attrs.read(decoder);
             visitor.visitSetstat(requestId, path, attrs);
         }
@@ -9,8 +9,8 @@ public class SshFxpStatus {
         public void read(Decoder decoder, VoidPacketVisitor visitor) {
             int requestId = decoder.readInt();
             int errorCode = decoder.readInt();
-            String errorMessage = decoder.readString().getString();
-            String errorMessageLanguage = decoder.readString().getString();
+            String errorMessage = decoder.readStringValue();
+            String errorMessageLanguage = decoder.readStringValue();
             visitor.visitStatus(requestId, ErrorCode.fromCode(errorCode), errorMessage, errorMessageLanguage);
         }
     };
@@ -5,6 +5,10 @@ import it.ftb.sftp.network.Bytes;
 
 import java.util.Optional;
 
+/**
+ * Visitor of the SFTP packets. The {@link Bytes} arguments are only valid for the duration of the call,
+ * and must be copied to be used later.
+ */
 public interface VoidPacketVisitor {
 
     void visit();
@@ -80,4 +84,16 @@ public interface VoidPacketVisitor {
     default void visitSetstat(int uRequestId, String path, Attrs attrs) {
         visit();
     }
+
+    default void visitExtended(int uRequestId, String extendedRequest) {
+        visit();
+    }
+
+    /**
+     * Visits the reply to a {@link SshFxpExtended#LIMITS} request; a value of 0 means no limit.
+     */
+    default void visitLimits(int uRequestId, long uMaxPacketLength, long uMaxReadLength, long uMaxWriteLength,
+                             long uMaxOpenHandles) {
+        visit();
+    }
 }
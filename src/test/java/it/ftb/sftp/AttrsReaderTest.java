@@ -0,0 +1,81 @@
+package it.ftb.sftp;
+
+import it.ftb.sftp.packet.Attrs;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class AttrsReaderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRequestedAttributesOnly() throws IOException {
+        assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("unix"));
+        Path file = folder.newFile("a.bin").toPath();
+        Files.write(file, new byte[10]);
+        Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rw-r-----"));
+        Files.createSymbolicLink(folder.getRoot().toPath().resolve("link"), file);
+
+        Attrs all = read("a.bin", 0xffffffff);
+        assertEquals(Attrs.Type.SSH_FILEXFER_TYPE_REGULAR, all.getType());
+        assertEquals(10, all.getSize());
+        assertEquals(0640, all.getPermissions());
+        assertEquals(1, all.getLinkCount());
+        assertTrue(all.isValid(Attrs.Validity.SSH_FILEXFER_ATTR_CTIME));
+        assertTrue(all.isValid(Attrs.Validity.SSH_FILEXFER_ATTR_OWNERGROUP));
+
+        Attrs size = read("a.bin", Attrs.Validity.SSH_FILEXFER_ATTR_SIZE.getMask());
+        assertEquals(10, size.getSize());
+        assertFalse(size.isValid(Attrs.Validity.SSH_FILEXFER_ATTR_OWNERGROUP));
+        assertFalse(size.isValid(Attrs.Validity.SSH_FILEXFER_ATTR_CTIME));
+
+        assertEquals(Attrs.Type.SSH_FILEXFER_TYPE_REGULAR, read("link", 0xffffffff).getType());
+        assertEquals(Attrs.Type.SSH_FILEXFER_TYPE_SYMLINK, read("link", 0xffffffff, LinkOption.NOFOLLOW_LINKS).getType());
+        assertEquals(Attrs.Type.SSH_FILEXFER_TYPE_DIRECTORY, read("/", 0xffffffff).getType());
+    }
+
+    @Test
+    public void testOwnerNamesCached() throws IOException {
+        assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("unix"));
+        folder.newFile("a.bin");
+        folder.newFile("b.bin");
+        PrincipalNameCache names = new PrincipalNameCache(16, 1, TimeUnit.MINUTES);
+        Attrs a = read(SftpFileSystems.rooted(folder.getRoot().toPath()), names, "a.bin");
+        Attrs b = read(SftpFileSystems.rooted(folder.getRoot().toPath()), names, "b.bin");
+        String owner = Files.getOwner(folder.getRoot().toPath().resolve("a.bin")).getName();
+        assertEquals(owner, a.getOwner());
+        assertEquals(owner, b.getOwner());
+        assertEquals(a.getGroup(), b.getGroup());
+        assertEquals("User and group resolved once", 2, names.getMisses());
+        assertEquals(2, names.getHits());
+    }
+
+    private Attrs read(String path, int uFlags, LinkOption... linkOptions) throws IOException {
+        return read(SftpFileSystems.rooted(folder.getRoot().toPath()), path, uFlags, linkOptions);
+    }
+
+    private static <P extends SftpPath<P>> Attrs read(SftpFileSystem<P> fs, String path, int uFlags,
+                                                      LinkOption... linkOptions) throws IOException {
+        return new AttrsReader<>(fs).read(SftpPath.parse(fs, path), uFlags, linkOptions);
+    }
+
+    private static <P extends SftpPath<P>> Attrs read(SftpFileSystem<P> fs, PrincipalNameCache names, String path)
+            throws IOException {
+        return new AttrsReader<>(fs, names).read(SftpPath.parse(fs, path));
+    }
+}
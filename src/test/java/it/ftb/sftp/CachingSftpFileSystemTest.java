@@ -0,0 +1,77 @@
+package it.ftb.sftp;
+
+import it.ftb.sftp.network.Bytes;
+import it.ftb.sftp.packet.Attrs;
+import it.ftb.sftp.packet.SshFxpOpen;
+import it.ftb.sftp.packet.VoidPacketVisitor;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+public class CachingSftpFileSystemTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final VoidPacketVisitor output = mock(VoidPacketVisitor.class);
+
+    @Test
+    public void testInvalidatedByWrite() throws IOException {
+        Files.write(folder.newFile("a.bin").toPath(), new byte[] { 1, 2, 3 });
+        CachingSftpFileSystem<?> fs = caching(SftpFileSystems.rooted(folder.getRoot().toPath()));
+        DefaultPacketProcessor<?> dpp = new DefaultPacketProcessor<>(fs, output);
+
+        assertEquals(3, stat(dpp, 1, "a.bin").getSize());
+        assertEquals(3, stat(dpp, 2, "a.bin").getSize());
+        assertEquals(1, fs.getMisses());
+        assertEquals(1, fs.getHits());
+
+        dpp.visitOpen(3, "a.bin", SshFxpOpen.AceMask.ACE4_WRITE_DATA.set(0),
+                SshFxpOpen.OpenFlagsAccessDisposition.SSH_FXF_OPEN_EXISTING.getCode(), Attrs.EMPTY);
+        ArgumentCaptor<Bytes> handle = ArgumentCaptor.forClass(Bytes.class);
+        verify(output).visitHandle(eq(3), handle.capture());
+        dpp.visitWrite(4, handle.getValue(), 3, Bytes.hold(ByteBuffer.wrap(new byte[] { 4 })));
+        assertEquals(4, stat(dpp, 5, "a.bin").getSize());
+        assertEquals(2, fs.getMisses());
+    }
+
+    @Test
+    public void testFilledByReadDir() throws IOException {
+        folder.newFile("a.bin");
+        folder.newFile("b.bin");
+        CachingSftpFileSystem<?> fs = caching(SftpFileSystems.rooted(folder.getRoot().toPath()));
+        DefaultPacketProcessor<?> dpp = new DefaultPacketProcessor<>(fs, output);
+
+        dpp.visitOpenDir(1, "/");
+        ArgumentCaptor<Bytes> handle = ArgumentCaptor.forClass(Bytes.class);
+        verify(output).visitHandle(eq(1), handle.capture());
+        dpp.visitReadDir(2, handle.getValue());
+        long misses = fs.getMisses();
+        stat(dpp, 3, "/a.bin");
+        stat(dpp, 4, "/b.bin");
+        assertEquals(misses, fs.getMisses());
+        assertEquals(2, fs.getHits());
+    }
+
+    private static <P extends SftpPath<P>> CachingSftpFileSystem<P> caching(SftpFileSystem<P> fs) {
+        return new CachingSftpFileSystem<>(fs, 100, 1, TimeUnit.MINUTES);
+    }
+
+    private Attrs stat(DefaultPacketProcessor<?> dpp, int uRequestId, String path) {
+        dpp.visitStat(uRequestId, path, 0xffffffff);
+        ArgumentCaptor<Attrs> attrs = ArgumentCaptor.forClass(Attrs.class);
+        verify(output).visitAttrs(eq(uRequestId), attrs.capture());
+        return attrs.getValue();
+    }
+}
@@ -0,0 +1,113 @@
+package it.ftb.sftp;
+
+import com.google.common.collect.ImmutableList;
+import it.ftb.sftp.network.BufferPool;
+import it.ftb.sftp.network.Bytes;
+import it.ftb.sftp.network.MalformedPacketException;
+import it.ftb.sftp.packet.PacketType;
+import it.ftb.sftp.packet.SshFxpRealpath;
+import it.ftb.sftp.packet.VoidPacketVisitor;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+
+public class ClientInputHandlerTest {
+
+    @Test
+    public void testReceiveOneByteAtATime() {
+        VoidPacketVisitor processor = mock(VoidPacketVisitor.class);
+        ClientInputHandler handler = new ClientInputHandler(processor, false);
+        ByteBuffer packets = encodePackets();
+        while (packets.hasRemaining()) {
+            ByteBuffer chunk = packets.duplicate();
+            chunk.limit(chunk.position() + 1);
+            packets.get();
+            handler.receive(chunk);
+        }
+        verifyPackets(processor);
+    }
+
+    @Test
+    public void testReadAcrossSegments() {
+        VoidPacketVisitor processor = mock(VoidPacketVisitor.class);
+        // Segments smaller than the fields, so most values span two of them
+        ClientInputHandler handler = new ClientInputHandler(processor, false, ClientInputHandler.DEFAULT_MAX_PACKET_LENGTH,
+                new BufferPool(3, 2));
+        receiveInSegments(handler, encodePackets());
+        handler.close();
+        verifyPackets(processor);
+    }
+
+    @Test(expected = MalformedPacketException.class)
+    public void testNegativeLengthAcrossSegments() {
+        VoidPacketVisitor processor = mock(VoidPacketVisitor.class);
+        ClientInputHandler handler = new ClientInputHandler(processor, false, ClientInputHandler.DEFAULT_MAX_PACKET_LENGTH,
+                new BufferPool(3, 2));
+        ByteBuffer packet = ByteBuffer.allocate(17);
+        packet.putInt(13).put(PacketType.SSH_FXP_CLOSE.getCodeAsByte()).putInt(1).putInt(-1).putInt(0).flip();
+        receiveInSegments(handler, packet);
+    }
+
+    @Test
+    public void testDecodeStrings() {
+        VoidPacketVisitor processor = mock(VoidPacketVisitor.class);
+        ClientInputHandler handler = new ClientInputHandler(processor, true);
+        handler.receive(EncodedPackets.encode(client -> {
+            client.visitRealpath(1, "/d\u00e9j\u00e0/vu", SshFxpRealpath.ControlByte.SSH_FXP_REALPATH_STAT_IF,
+                    ImmutableList.of("plain", "\u65e5\u672c"));
+            client.visitOpenDir(2, "/ascii/only");
+        }));
+        InOrder inOrder = inOrder(processor);
+        inOrder.verify(processor).visitRealpath(1, "/d\u00e9j\u00e0/vu", SshFxpRealpath.ControlByte.SSH_FXP_REALPATH_STAT_IF,
+                ImmutableList.of("plain", "\u65e5\u672c"));
+        inOrder.verify(processor).visitOpenDir(2, "/ascii/only");
+    }
+
+    @Test(expected = MalformedPacketException.class)
+    public void testLengthPastPacket() {
+        VoidPacketVisitor processor = mock(VoidPacketVisitor.class);
+        ClientInputHandler handler = new ClientInputHandler(processor, true);
+        ByteBuffer packets = ByteBuffer.allocate(34);
+        // The handle of the first packet would end in the second one
+        packets.putInt(13).put(PacketType.SSH_FXP_CLOSE.getCodeAsByte()).putInt(1).putInt(8).putInt(0);
+        packets.putInt(13).put(PacketType.SSH_FXP_CLOSE.getCodeAsByte()).putInt(2).putInt(4).putInt(7).flip();
+        handler.receive(packets);
+    }
+
+    private static void receiveInSegments(ClientInputHandler handler, ByteBuffer packets) {
+        while (packets.hasRemaining()) {
+            ByteBuffer target = handler.readBuffer();
+            int length = Math.min(target.remaining(), packets.remaining());
+            ByteBuffer part = packets.duplicate();
+            part.limit(part.position() + length);
+            target.put(part);
+            packets.position(part.limit());
+            handler.received();
+        }
+    }
+
+    private static ByteBuffer encodePackets() {
+        return EncodedPackets.encode(client -> {
+            client.visitStat(1, "/a/b.txt", 0x1234);
+            client.visitWrite(2, Bytes.from(7), 0x123456789L, Bytes.copy(ByteBuffer.wrap(new byte[] { 1, 2, 3, 4, 5 }), 5));
+            client.visitClose(3, Bytes.from(7));
+        });
+    }
+
+    private static void verifyPackets(VoidPacketVisitor processor) {
+        InOrder inOrder = inOrder(processor);
+        inOrder.verify(processor).visitStat(1, "/a/b.txt", 0x1234);
+        ArgumentCaptor<Bytes> data = ArgumentCaptor.forClass(Bytes.class);
+        inOrder.verify(processor).visitWrite(eq(2), any(Bytes.class), eq(0x123456789L), data.capture());
+        assertEquals(ByteBuffer.wrap(new byte[] { 1, 2, 3, 4, 5 }), data.getValue().asBuffer());
+        inOrder.verify(processor).visitClose(eq(3), any(Bytes.class));
+    }
+}
@@ -0,0 +1,213 @@
+package it.ftb.sftp;
+
+import it.ftb.sftp.network.Bytes;
+import it.ftb.sftp.network.SlabAllocator;
+import it.ftb.sftp.packet.Attrs;
+import it.ftb.sftp.packet.ErrorCode;
+import it.ftb.sftp.packet.SshFxpOpen;
+import it.ftb.sftp.packet.VoidPacketVisitor;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+public class ConcurrentPacketProcessorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Queue<Runnable> tasks = new ArrayDeque<>();
+    private final SlabAllocator writeBuffers = new SlabAllocator(ConcurrentPacketProcessor.WRITE_CHUNK_SIZE, 2, 1);
+
+    @After
+    public void checkLeaks() {
+        assertEquals("All the write buffers must be released", 0, writeBuffers.getOutstanding());
+    }
+
+    @Test(timeout = 1000L)
+    public void testResponsesOutOfOrder() throws IOException {
+        Files.write(folder.newFile("a.txt").toPath(), new byte[] { 1, 2, 3 });
+        VoidPacketVisitor output = mock(VoidPacketVisitor.class);
+        ConcurrentPacketProcessor<?> cpp = createProcessor(output);
+
+        cpp.visitStat(1, "/a.txt", 0);
+        cpp.visitStat(2, "/missing.txt", 0);
+        assertEquals(2, tasks.size());
+        verifyZeroInteractions(output);
+
+        Runnable first = tasks.poll();
+        tasks.poll().run();
+        first.run();
+        InOrder inOrder = inOrder(output);
+        inOrder.verify(output).visitStatus(eq(2), eq(ErrorCode.SSH_FX_FAILURE), any(), any());
+        inOrder.verify(output).visitAttrs(eq(1), any());
+        cpp.close();
+    }
+
+    @Test(timeout = 1000L)
+    public void testSameHandleInOrder() throws IOException {
+        Files.write(folder.newFile("a.txt").toPath(), new byte[] { 1, 2, 3 });
+        VoidPacketVisitor output = mock(VoidPacketVisitor.class);
+        ConcurrentPacketProcessor<?> cpp = createProcessor(output);
+        Bytes handle = open(cpp, output, 1, "/a.txt");
+
+        cpp.visitRead(2, handle, 0, 3);
+        cpp.visitClose(3, handle);
+        cpp.visitStat(4, "/a.txt", 0);
+        assertEquals("The close must wait for the read to complete", 2, tasks.size());
+
+        Runnable readTask = tasks.poll();
+        tasks.poll().run();
+        readTask.run();
+        assertEquals(1, tasks.size());
+        tasks.poll().run();
+        InOrder inOrder = inOrder(output);
+        inOrder.verify(output).visitAttrs(eq(4), any());
+        inOrder.verify(output).visitData(eq(2), any(), anyBoolean());
+        inOrder.verify(output).visitStatus(eq(3), eq(ErrorCode.SSH_FX_OK), any(), any());
+        cpp.close();
+    }
+
+    @Test(timeout = 1000L)
+    public void testConcurrentReads() throws IOException {
+        Files.write(folder.newFile("a.txt").toPath(), new byte[] { 1, 2, 3 });
+        VoidPacketVisitor output = mock(VoidPacketVisitor.class);
+        ConcurrentPacketProcessor<?> cpp = createProcessor(output);
+        Bytes handle = open(cpp, output, 1, "/a.txt");
+
+        cpp.visitRead(2, handle, 0, 2);
+        cpp.visitRead(3, handle, 2, 1);
+        cpp.visitClose(4, handle);
+        assertEquals("Positional reads must be executed concurrently", 2, tasks.size());
+
+        Runnable firstRead = tasks.poll();
+        tasks.poll().run();
+        assertEquals("The close must wait for both reads to complete", 0, tasks.size());
+        firstRead.run();
+        assertEquals(1, tasks.size());
+        tasks.poll().run();
+        InOrder inOrder = inOrder(output);
+        inOrder.verify(output).visitData(eq(3), any(), anyBoolean());
+        inOrder.verify(output).visitData(eq(2), any(), anyBoolean());
+        inOrder.verify(output).visitStatus(eq(4), eq(ErrorCode.SSH_FX_OK), any(), any());
+        cpp.close();
+    }
+
+    @Test(timeout = 1000L)
+    public void testWriteHeldData() throws IOException {
+        File file = folder.newFile("a.txt");
+        VoidPacketVisitor output = mock(VoidPacketVisitor.class);
+        ConcurrentPacketProcessor<?> cpp = createProcessor(output);
+        Bytes handle = open(cpp, output, 1, "/a.txt", SshFxpOpen.AceMask.ACE4_WRITE_DATA.set(0));
+
+        ByteBuffer received = ByteBuffer.wrap(new byte[] { 1, 2, 3 });
+        cpp.visitWrite(2, handle, 0, Bytes.hold(received));
+        received.put(new byte[] { 4, 5, 6 });
+        tasks.poll().run();
+        cpp.close();
+        verify(output).visitStatus(eq(2), eq(ErrorCode.SSH_FX_OK), any(), any());
+        assertArrayEquals("The data must be copied before the visit returns",
+                new byte[] { 1, 2, 3 }, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test(timeout = 1000L)
+    public void testStreamedWrite() throws IOException {
+        File file = folder.newFile("a.txt");
+        VoidPacketVisitor output = mock(VoidPacketVisitor.class);
+        ConcurrentPacketProcessor<?> cpp = createProcessor(output);
+        Bytes handle = open(cpp, output, 1, "/a.txt", SshFxpOpen.AceMask.ACE4_WRITE_DATA.set(0));
+
+        StreamingWriteVisitor.WriteStream stream = cpp.visitWriteStart(2, handle, 0, 6);
+        ByteBuffer received = ByteBuffer.wrap(new byte[] { 1, 2, 3 });
+        stream.write(received.duplicate());
+        received.put(0, (byte) 4).put(1, (byte) 5).put(2, (byte) 6);
+        stream.write(received.duplicate());
+        assertEquals("The write must wait for all its data", 0, tasks.size());
+        stream.end();
+        tasks.poll().run();
+        cpp.close();
+        verify(output).visitStatus(eq(2), eq(ErrorCode.SSH_FX_OK), any(), any());
+        assertArrayEquals(new byte[] { 1, 2, 3, 4, 5, 6 }, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test(timeout = 1000L)
+    public void testReceivedHandles() throws IOException {
+        Files.write(folder.newFile("a.txt").toPath(), new byte[] { 1, 2, 3 });
+        VoidPacketVisitor output = mock(VoidPacketVisitor.class);
+        ConcurrentPacketProcessor<?> cpp = createProcessor(output);
+        Bytes handle = open(cpp, output, 1, "/a.txt");
+
+        // The handles are decoded from the received packets, and read both when queued and when executed
+        ClientInputHandler handler = new ClientInputHandler(cpp, false);
+        handler.receive(EncodedPackets.encode(client -> {
+            client.visitRead(2, handle, 0, 3);
+            client.visitFstat(3, handle, 0);
+            client.visitClose(4, handle);
+        }));
+        while (!tasks.isEmpty()) {
+            tasks.poll().run();
+        }
+        cpp.close();
+        InOrder inOrder = inOrder(output);
+        inOrder.verify(output).visitData(eq(2), any(), anyBoolean());
+        inOrder.verify(output).visitAttrs(eq(3), any());
+        inOrder.verify(output).visitStatus(eq(4), eq(ErrorCode.SSH_FX_OK), any(), any());
+    }
+
+    @Test(timeout = 1000L)
+    public void testRejectedRequests() {
+        VoidPacketVisitor output = mock(VoidPacketVisitor.class);
+        ConcurrentPacketProcessor<?> cpp = new ConcurrentPacketProcessor<>(
+                SftpFileSystems.rooted(folder.getRoot().toPath()), output,
+                new ProcessorConfig.Builder().withWriteBuffers(writeBuffers).build(), task -> {
+                    throw new RejectedExecutionException();
+                });
+
+        cpp.visitStat(1, "/a.txt", 0);
+        cpp.visitRead(2, Bytes.from(1), 0, 3);
+        cpp.visitWrite(3, Bytes.from(1), 0, Bytes.from(7));
+        verify(output).visitStatus(eq(1), eq(ErrorCode.SSH_FX_FAILURE), any(), any());
+        verify(output).visitStatus(eq(2), eq(ErrorCode.SSH_FX_FAILURE), any(), any());
+        verify(output).visitStatus(eq(3), eq(ErrorCode.SSH_FX_FAILURE), any(), any());
+        // Returns, as no request is pending
+        cpp.close();
+    }
+
+    private Bytes open(ConcurrentPacketProcessor<?> cpp, VoidPacketVisitor output, int uRequestId, String path) {
+        return open(cpp, output, uRequestId, path, SshFxpOpen.AceMask.ACE4_READ_DATA.set(0));
+    }
+
+    private Bytes open(ConcurrentPacketProcessor<?> cpp, VoidPacketVisitor output, int uRequestId, String path, int uDesideredAccess) {
+        cpp.visitOpen(uRequestId, path, uDesideredAccess,
+                SshFxpOpen.OpenFlagsAccessDisposition.SSH_FXF_OPEN_EXISTING.getCode(), Attrs.EMPTY);
+        tasks.poll().run();
+        ArgumentCaptor<Bytes> handle = ArgumentCaptor.forClass(Bytes.class);
+        verify(output).visitHandle(eq(uRequestId), handle.capture());
+        return handle.getValue();
+    }
+
+    private ConcurrentPacketProcessor<?> createProcessor(VoidPacketVisitor output) {
+        return new ConcurrentPacketProcessor<>(SftpFileSystems.rooted(folder.getRoot().toPath()), output,
+                new ProcessorConfig.Builder().withWriteBuffers(writeBuffers).build(), tasks::add);
+    }
+}
@@ -1,20 +1,158 @@
 package it.ftb.sftp;
 
 import com.google.common.collect.ImmutableList;
+import it.ftb.sftp.network.Bytes;
+import it.ftb.sftp.packet.Attrs;
+import it.ftb.sftp.packet.ErrorCode;
+import it.ftb.sftp.packet.ExtensionPair;
+import it.ftb.sftp.packet.SshFxpExtended;
+import it.ftb.sftp.packet.SshFxpOpen;
 import it.ftb.sftp.packet.VoidPacketVisitor;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Optional;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 
 public class DefaultPacketProcessorTest {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Test(timeout = 1000L)
     public void testDownloadFile() {
         SftpFileSystem<?> fs = mock(SftpFileSystem.class);
         VoidPacketVisitor output = mock(VoidPacketVisitor.class);
         DefaultPacketProcessor<?> dpp = new DefaultPacketProcessor<>(fs, output);
         dpp.visitInit(6);
-        verify(output).visitVersion(6, ImmutableList.of());
+        verify(output).visitVersion(6, ImmutableList.of(new ExtensionPair(SshFxpExtended.LIMITS, "1")));
+    }
+
+    @Test(timeout = 1000L)
+    public void testLimits() {
+        SftpFileSystem<?> fs = mock(SftpFileSystem.class);
+        VoidPacketVisitor output = mock(VoidPacketVisitor.class);
+        ProcessorConfig config = new ProcessorConfig.Builder()
+                .withMaxTransferLength(ProcessorConfig.MAX_TRANSFER_LENGTH)
+                .build();
+        ClientInputHandler handler = new ClientInputHandler(new DefaultPacketProcessor<>(fs, output, config), false,
+                config.getMaxPacketLength());
+        handler.receive(EncodedPackets.encode(client -> {
+            client.visitExtended(7, SshFxpExtended.LIMITS);
+            client.visitExtended(8, "unknown@example.com");
+        }));
+        verify(output).visitLimits(7, ProcessorConfig.MAX_TRANSFER_LENGTH + ProcessorConfig.PACKET_OVERHEAD,
+                ProcessorConfig.MAX_TRANSFER_LENGTH, ProcessorConfig.MAX_TRANSFER_LENGTH, config.getMaxHandles());
+        verify(output).visitStatus(eq(8), eq(ErrorCode.SSH_FX_OP_UNSUPPORTED), anyString(), anyString());
+    }
+
+    @Test(timeout = 1000L)
+    public void testReceiveLargeWrite() {
+        VoidPacketVisitor processor = mock(VoidPacketVisitor.class);
+        ClientInputHandler handler = new ClientInputHandler(processor, false,
+                ProcessorConfig.MAX_TRANSFER_LENGTH + ProcessorConfig.PACKET_OVERHEAD);
+        int length = ProcessorConfig.MAX_TRANSFER_LENGTH;
+        receiveInChunks(handler, EncodedPackets.encode(client ->
+                client.visitWrite(1, Bytes.from(1), 0, Bytes.copy(ByteBuffer.allocate(length), length))));
+        verify(processor).visitWrite(eq(1), any(Bytes.class), eq(0L), any(Bytes.class));
+    }
+
+    @Test(timeout = 2000L)
+    public void testStreamedWrite() throws IOException {
+        File file = folder.newFile("a.txt");
+        VoidPacketVisitor output = mock(VoidPacketVisitor.class);
+        ProcessorConfig config = new ProcessorConfig.Builder()
+                .withMaxTransferLength(ProcessorConfig.MAX_TRANSFER_LENGTH)
+                .build();
+        DefaultPacketProcessor<?> dpp = new DefaultPacketProcessor<>(
+                SftpFileSystems.rooted(folder.getRoot().toPath()), output, config);
+        dpp.visitOpen(1, "/a.txt", SshFxpOpen.AceMask.ACE4_WRITE_DATA.set(0),
+                SshFxpOpen.OpenFlagsAccessDisposition.SSH_FXF_OPEN_EXISTING.getCode(), Attrs.EMPTY);
+        ArgumentCaptor<Bytes> handle = ArgumentCaptor.forClass(Bytes.class);
+        verify(output).visitHandle(eq(1), handle.capture());
+
+        byte[] content = new byte[ProcessorConfig.MAX_TRANSFER_LENGTH];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i * 31);
+        }
+        ClientInputHandler handler = new ClientInputHandler(dpp, true, config.getMaxPacketLength());
+        receiveInChunks(handler, EncodedPackets.encode(client -> {
+            client.visitWrite(2, handle.getValue(), 0, Bytes.copy(ByteBuffer.wrap(content), content.length));
+            client.visitClose(3, handle.getValue());
+        }));
+        verify(output).visitStatus(eq(2), eq(ErrorCode.SSH_FX_OK), any(), any());
+        verify(output).visitStatus(eq(3), eq(ErrorCode.SSH_FX_OK), any(), any());
+        assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test(timeout = 2000L)
+    public void testReadDirEncodedFromRecords() throws IOException {
+        for (int i = 0; i < 20; i++) {
+            Files.write(folder.newFile("f" + i).toPath(), new byte[i]);
+        }
+        folder.newFolder("d");
+        checkReadDir(SftpFileSystems.rooted(folder.getRoot().toPath()), 21);
+    }
+
+    private static <P extends SftpPath<P>> void checkReadDir(SftpFileSystem<P> fs, int entries) throws IOException {
+        ByteArrayOutputStream responses = new ByteArrayOutputStream();
+        DefaultPacketProcessor<P> dpp = new DefaultPacketProcessor<>(fs, new DefaultPacketWriter(b -> {
+            byte[] bytes = new byte[b.remaining()];
+            b.get(bytes);
+            responses.write(bytes, 0, bytes.length);
+        }));
+        VoidPacketVisitor client = mock(VoidPacketVisitor.class);
+        dpp.visitOpenDir(1, "/");
+        new ClientInputHandler(client, false).receive(ByteBuffer.wrap(responses.toByteArray()));
+        ArgumentCaptor<Bytes> handle = ArgumentCaptor.forClass(Bytes.class);
+        verify(client).visitHandle(eq(1), handle.capture());
+
+        responses.reset();
+        // The second response reuses the records of the first one
+        dpp.visitReadDir(2, handle.getValue());
+        dpp.visitReadDir(3, handle.getValue());
+        new ClientInputHandler(client, false).receive(ByteBuffer.wrap(responses.toByteArray()));
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<ImmutableList<String>> names = ArgumentCaptor.forClass(ImmutableList.class);
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<ImmutableList<Attrs>> attrs = ArgumentCaptor.forClass(ImmutableList.class);
+        verify(client).visitName(eq(2), names.capture(), attrs.capture(), eq(Optional.of(false)));
+        verify(client).visitName(eq(3), names.capture(), attrs.capture(), eq(Optional.of(true)));
+
+        AttrsReader<P> attrsReader = new AttrsReader<>(fs);
+        int count = 0;
+        for (int i = 0; i < names.getAllValues().size(); i++) {
+            for (int j = 0; j < names.getAllValues().get(i).size(); j++) {
+                String name = names.getAllValues().get(i).get(j);
+                assertEquals(name, attrsReader.read(fs.parse("/" + name)).toString(),
+                        attrs.getAllValues().get(i).get(j).toString());
+                count++;
+            }
+        }
+        assertEquals(entries, count);
+    }
+
+    private static void receiveInChunks(ClientInputHandler handler, ByteBuffer packets) {
+        // Sent in the chunks read from the network
+        while (packets.hasRemaining()) {
+            ByteBuffer chunk = packets.duplicate();
+            chunk.limit(Math.min(chunk.position() + 0x10000, chunk.limit()));
+            packets.position(chunk.limit());
+            handler.receive(chunk);
+        }
     }
-}
\ No newline at end of file
+}
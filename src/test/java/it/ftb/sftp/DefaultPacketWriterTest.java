@@ -1,7 +1,12 @@
 package it.ftb.sftp;
 
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
+import it.ftb.sftp.network.Bytes;
+import it.ftb.sftp.packet.Attrs;
+import it.ftb.sftp.packet.ErrorCode;
 import it.ftb.sftp.packet.PacketType;
+import it.ftb.sftp.packet.SshFxpData;
 import it.ftb.sftp.packet.SshFxpRealpath;
 import org.junit.Test;
 
@@ -41,6 +46,53 @@ public class DefaultPacketWriterTest {
         assertEquals(4 + expectedLength, output.buffers.stream().mapToInt(ByteBuffer::remaining).sum());
     }
 
+    @Test
+    public void testWritingStringLongerThanBuffer() {
+        HoldingChannel output = new HoldingChannel();
+        DefaultPacketWriter encoder = new DefaultPacketWriter(output);
+        String message = Strings.repeat("\u00e8", 50000);
+        encoder.visitStatus(0x1, ErrorCode.SSH_FX_FAILURE, message, "en");
+        ByteBuffer packet = ByteBuffer.allocate(output.buffers.stream().mapToInt(ByteBuffer::remaining).sum());
+        output.buffers.forEach(packet::put);
+        packet.flip();
+        assertEquals(packet.remaining() - 4, packet.getInt());
+        assertEquals(PacketType.SSH_FXP_STATUS.getCode(), packet.get());
+        assertEquals(0x1, packet.getInt());
+        assertEquals(ErrorCode.SSH_FX_FAILURE.getCode(), packet.getInt());
+        assertEquals(100000, packet.getInt());
+        packet.position(packet.position() + 100000);
+        assertEquals(2, packet.getInt());
+    }
+
+    @Test
+    public void testWritingFramedData() {
+        HoldingChannel copied = new HoldingChannel();
+        new DefaultPacketWriter(copied).visitData(0x1, Bytes.hold(ByteBuffer.wrap(hexToBytes("010203"))), true);
+
+        HoldingChannel framed = new HoldingChannel();
+        ByteBuffer data = ByteBuffer.allocate(SshFxpData.HEADER_LENGTH + 3 + 1);
+        data.position(SshFxpData.HEADER_LENGTH);
+        data.put(hexToBytes("010203")).flip().position(SshFxpData.HEADER_LENGTH);
+        new DefaultPacketWriter(framed).visitData(0x1, Bytes.framed(data), true);
+
+        assertEquals(ByteBuffer.wrap(hexToBytes("0000000d670000000100000003010203" + "01")), framed.buffers.get(0));
+        assertEquals(copied.buffers, framed.buffers);
+    }
+
+    @Test
+    public void testWritingPreEncodedAttrs() {
+        Attrs attrs = new Attrs.Builder(Attrs.Type.SSH_FILEXFER_TYPE_REGULAR, true)
+                .withSize(1234)
+                .withOwnerGroup("owner", "gr\u00f6up")
+                .withMtime(1500000000L, 5)
+                .build();
+        HoldingChannel encoded = new HoldingChannel();
+        new DefaultPacketWriter(encoded).visitAttrs(0x1, attrs);
+        HoldingChannel copied = new HoldingChannel();
+        new DefaultPacketWriter(copied).visitAttrs(0x1, attrs.preEncoded());
+        assertEquals(encoded.buffers, copied.buffers);
+    }
+
     private static byte[] hexToBytes(String s) {
         int len = s.length();
         byte[] data = new byte[len / 2];
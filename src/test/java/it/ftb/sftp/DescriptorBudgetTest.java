@@ -0,0 +1,86 @@
+package it.ftb.sftp;
+
+import it.ftb.sftp.network.Bytes;
+import it.ftb.sftp.packet.Attrs;
+import it.ftb.sftp.packet.ErrorCode;
+import it.ftb.sftp.packet.SshFxpOpen;
+import it.ftb.sftp.packet.VoidPacketVisitor;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+public class DescriptorBudgetTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final VoidPacketVisitor output = mock(VoidPacketVisitor.class);
+
+    @Test
+    public void testIdleChannelsReopened() throws IOException {
+        DescriptorBudget budget = new DescriptorBudget(1);
+        DefaultPacketProcessor<?> dpp = new DefaultPacketProcessor<>(SftpFileSystems.rooted(folder.getRoot().toPath()),
+                output, new ProcessorConfig.Builder().withDescriptorBudget(budget).build());
+
+        Bytes first = create(dpp, 1, "a.bin");
+        Bytes second = create(dpp, 2, "b.bin");
+        assertEquals(1, budget.getOpenChannels());
+        assertEquals(1, budget.getEvictions());
+
+        dpp.visitWrite(3, first, 0, Bytes.hold(ByteBuffer.wrap(new byte[] { 1, 2 })));
+        verify(output).visitStatus(eq(3), eq(ErrorCode.SSH_FX_OK), any(), any());
+        dpp.visitWrite(4, first, 2, Bytes.hold(ByteBuffer.wrap(new byte[] { 3 })));
+        verify(output).visitStatus(eq(4), eq(ErrorCode.SSH_FX_OK), any(), any());
+        assertEquals("The file is not truncated when reopened", 1, budget.getReopens());
+        dpp.visitWrite(5, second, 0, Bytes.hold(ByteBuffer.wrap(new byte[] { 4 })));
+        verify(output).visitStatus(eq(5), eq(ErrorCode.SSH_FX_OK), any(), any());
+        assertEquals(2, budget.getReopens());
+        assertEquals(1, budget.getOpenChannels());
+
+        dpp.visitClose(6, first);
+        dpp.visitClose(7, second);
+        verify(output).visitStatus(eq(6), eq(ErrorCode.SSH_FX_OK), any(), any());
+        verify(output).visitStatus(eq(7), eq(ErrorCode.SSH_FX_OK), any(), any());
+        assertEquals(0, budget.getOpenChannels());
+        assertArrayEquals(new byte[] { 1, 2, 3 }, Files.readAllBytes(folder.getRoot().toPath().resolve("a.bin")));
+        assertArrayEquals(new byte[] { 4 }, Files.readAllBytes(folder.getRoot().toPath().resolve("b.bin")));
+    }
+
+    @Test
+    public void testChannelsInUseNotClosed() throws IOException {
+        Path file = folder.newFile("a.bin").toPath();
+        DescriptorBudget budget = new DescriptorBudget(1);
+        DescriptorBudget.Channel first = budget.register(Files.newByteChannel(file), () -> Files.newByteChannel(file));
+        first.acquire();
+        DescriptorBudget.Channel second = budget.register(Files.newByteChannel(file), () -> Files.newByteChannel(file));
+        assertEquals("Over budget while the first channel is in use", 2, budget.getOpenChannels());
+        first.release();
+        second.acquire();
+        second.release();
+        assertEquals(1, budget.getOpenChannels());
+        first.close();
+        second.close();
+        assertEquals(0, budget.getOpenChannels());
+    }
+
+    private Bytes create(DefaultPacketProcessor<?> dpp, int uRequestId, String path) {
+        dpp.visitOpen(uRequestId, path, SshFxpOpen.AceMask.ACE4_WRITE_DATA.set(0),
+                SshFxpOpen.OpenFlagsAccessDisposition.SSH_FXF_CREATE_TRUNCATE.getCode(), Attrs.EMPTY);
+        ArgumentCaptor<Bytes> handle = ArgumentCaptor.forClass(Bytes.class);
+        verify(output).visitHandle(eq(uRequestId), handle.capture());
+        return handle.getValue();
+    }
+}
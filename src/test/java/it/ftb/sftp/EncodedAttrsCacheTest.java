@@ -0,0 +1,97 @@
+package it.ftb.sftp;
+
+import it.ftb.sftp.network.Bytes;
+import it.ftb.sftp.packet.Attrs;
+import it.ftb.sftp.packet.SshFxpOpen;
+import it.ftb.sftp.packet.VoidPacketVisitor;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+public class EncodedAttrsCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final VoidPacketVisitor output = mock(VoidPacketVisitor.class);
+    private final EncodedAttrsCache cache = new EncodedAttrsCache(100, 1, TimeUnit.MINUTES);
+
+    @Test
+    public void testInvalidatedByWrite() throws IOException {
+        Files.write(folder.newFile("a.bin").toPath(), new byte[] { 1, 2, 3 });
+        DefaultPacketProcessor<?> dpp = processor();
+
+        Attrs first = stat(dpp, 1, "a.bin", 0xffffffff);
+        assertSame("Served from the cache", first, stat(dpp, 2, "a.bin", 0xffffffff));
+        assertEquals(3, stat(dpp, 3, "a.bin", Attrs.Validity.SSH_FILEXFER_ATTR_SIZE.getMask()).getSize());
+        assertEquals(2, cache.getMisses());
+        assertEquals(1, cache.getHits());
+
+        dpp.visitOpen(4, "a.bin", SshFxpOpen.AceMask.ACE4_WRITE_DATA.set(0),
+                SshFxpOpen.OpenFlagsAccessDisposition.SSH_FXF_OPEN_EXISTING.getCode(), Attrs.EMPTY);
+        ArgumentCaptor<Bytes> handle = ArgumentCaptor.forClass(Bytes.class);
+        verify(output).visitHandle(eq(4), handle.capture());
+        dpp.visitWrite(5, handle.getValue(), 3, Bytes.hold(ByteBuffer.wrap(new byte[] { 4 })));
+        assertEquals(4, stat(dpp, 6, "a.bin", 0xffffffff).getSize());
+        assertEquals(3, cache.getMisses());
+    }
+
+    @Test
+    public void testInvalidatedByModification() throws IOException {
+        Path file = folder.newFile("a.bin").toPath();
+        Files.write(file, new byte[] { 1, 2, 3 });
+        DefaultPacketProcessor<?> dpp = processor();
+
+        stat(dpp, 1, "a.bin", 0xffffffff);
+        // Changed by another process, which the processor is not aware of
+        Files.write(file, new byte[] { 1, 2, 3, 4, 5 });
+        assertEquals(5, stat(dpp, 2, "a.bin", 0xffffffff).getSize());
+        assertEquals(2, cache.getMisses());
+        assertEquals(0, cache.getHits());
+    }
+
+    @Test
+    public void testSharedBySessions() throws IOException {
+        Files.write(folder.newFile("a.bin").toPath(), new byte[] { 1, 2, 3 });
+        // Each session has its own file system
+        DefaultPacketProcessor<?> first = processor();
+        DefaultPacketProcessor<?> second = processor();
+
+        Attrs attrs = stat(first, 1, "a.bin", 0xffffffff);
+        assertSame("Served from the cache", attrs, stat(second, 2, "a.bin", 0xffffffff));
+
+        second.visitOpen(3, "a.bin", SshFxpOpen.AceMask.ACE4_WRITE_DATA.set(0),
+                SshFxpOpen.OpenFlagsAccessDisposition.SSH_FXF_OPEN_EXISTING.getCode(), Attrs.EMPTY);
+        ArgumentCaptor<Bytes> handle = ArgumentCaptor.forClass(Bytes.class);
+        verify(output).visitHandle(eq(3), handle.capture());
+        second.visitWrite(4, handle.getValue(), 3, Bytes.hold(ByteBuffer.wrap(new byte[] { 4 })));
+        assertEquals(4, stat(first, 5, "a.bin", 0xffffffff).getSize());
+        assertEquals(2, cache.getMisses());
+        assertEquals(1, cache.getHits());
+    }
+
+    private DefaultPacketProcessor<?> processor() {
+        return new DefaultPacketProcessor<>(SftpFileSystems.rooted(folder.getRoot().toPath()), output,
+                new ProcessorConfig.Builder().withEncodedAttrs(cache).build());
+    }
+
+    private Attrs stat(DefaultPacketProcessor<?> dpp, int uRequestId, String path, int uFlags) {
+        dpp.visitStat(uRequestId, path, uFlags);
+        ArgumentCaptor<Attrs> attrs = ArgumentCaptor.forClass(Attrs.class);
+        verify(output).visitAttrs(eq(uRequestId), attrs.capture());
+        return attrs.getValue();
+    }
+}
@@ -0,0 +1,30 @@
+package it.ftb.sftp;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+/**
+ * Encodes the packets sent by a client, to be received by a {@link ClientInputHandler}.
+ */
+final class EncodedPackets {
+
+    private EncodedPackets() {
+    }
+
+    /**
+     * Encodes packets with a {@link DefaultPacketWriter}.
+     *
+     * @param packets Sends the packets to the writer
+     * @return The encoded packets
+     */
+    static ByteBuffer encode(Consumer<DefaultPacketWriter> packets) {
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        packets.accept(new DefaultPacketWriter(b -> {
+            byte[] bytes = new byte[b.remaining()];
+            b.get(bytes);
+            encoded.write(bytes, 0, bytes.length);
+        }));
+        return ByteBuffer.wrap(encoded.toByteArray());
+    }
+}
@@ -0,0 +1,72 @@
+package it.ftb.sftp;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HandleTableTest {
+
+    @Test
+    public void testStaleHandleRejected() {
+        HandleTable<String> table = new HandleTable<>(4);
+        int first = table.add("a");
+        assertEquals("a", table.get(first));
+        assertEquals("a", table.remove(first));
+        int second = table.add("b");
+        assertNotEquals(first, second);
+        assertNull(table.get(first));
+        assertNull(table.remove(first));
+        assertEquals("b", table.get(second));
+        assertEquals(1, table.size());
+    }
+
+    @Test
+    public void testRemoveAll() {
+        HandleTable<String> table = new HandleTable<>(4);
+        int first = table.add("a");
+        table.remove(table.add("b"));
+        table.add("c");
+        assertEquals(Arrays.asList("a", "c"), table.removeAll());
+        assertNull(table.get(first));
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void testBounded() {
+        HandleTable<Integer> table = new HandleTable<>(40);
+        Set<Integer> handles = new HashSet<>();
+        for (int i = 0; i < 40; i++) {
+            int handle = table.add(i);
+            assertTrue(handles.add(handle));
+            assertEquals(Integer.valueOf(i), table.get(handle));
+        }
+        assertEquals(-1, table.add(40));
+        table.remove(handles.iterator().next());
+        assertNotEquals(-1, table.add(40));
+        assertNull(table.get(12345));
+        assertNull(table.get(-1));
+    }
+
+    @Test
+    public void testFullTableValueNeverIssued() {
+        HandleTable<Integer> table = new HandleTable<>(HandleTable.MAX_HANDLES);
+        int last = -1;
+        for (int i = 0; i < HandleTable.MAX_HANDLES; i++) {
+            last = table.add(i);
+        }
+        assertEquals(HandleTable.MAX_HANDLES - 1, last & (HandleTable.MAX_HANDLES - 1));
+        // Through all the generations of the last slot
+        for (int i = 0; i < HandleTable.MAX_HANDLES; i++) {
+            assertEquals(Integer.valueOf(i == 0 ? HandleTable.MAX_HANDLES - 1 : i - 1), table.remove(last));
+            last = table.add(i);
+            assertNotEquals(-1, last);
+        }
+    }
+}
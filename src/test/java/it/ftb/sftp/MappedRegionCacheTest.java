@@ -0,0 +1,166 @@
+package it.ftb.sftp;
+
+import it.ftb.sftp.network.Bytes;
+import it.ftb.sftp.packet.Attrs;
+import it.ftb.sftp.packet.SshFxpOpen;
+import it.ftb.sftp.packet.VoidPacketVisitor;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+public class MappedRegionCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testWindowsSharedByHandles() throws IOException {
+        Path file = createFile("a.bin", 40);
+        MappedRegionCache cache = new MappedRegionCache(1024, 16);
+        try (FileChannel first = FileChannel.open(file, StandardOpenOption.READ);
+             FileChannel second = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedRegionCache.MappedFile firstFile = cache.open(first, attributes(file));
+            MappedRegionCache.MappedFile secondFile = cache.open(second, attributes(file));
+
+            ByteBuffer dst = ByteBuffer.allocate(8);
+            assertEquals(4, firstFile.read(dst, 12));
+            assertEquals(4, secondFile.read(dst, 16));
+            assertEquals(ByteBuffer.wrap(new byte[] { 12, 13, 14, 15, 16, 17, 18, 19 }), dst.flip());
+            dst.clear();
+            assertEquals(8, secondFile.read(dst, 0));
+            assertEquals(2, cache.getMisses());
+            assertEquals(1, cache.getHits());
+            assertEquals(32, cache.getMappedBytes());
+
+            dst.clear();
+            assertEquals("The last window is shorter", 8, firstFile.read(dst, 32));
+            assertEquals(0, firstFile.read(dst, 40));
+        }
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() throws IOException {
+        Path file = createFile("a.bin", 64);
+        MappedRegionCache cache = new MappedRegionCache(32, 16);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedRegionCache.MappedFile mapped = cache.open(channel, attributes(file));
+            ByteBuffer dst = ByteBuffer.allocate(64);
+            mapped.read(dst, 0);
+            mapped.read(dst, 16);
+            mapped.read(dst, 0);
+            mapped.read(dst, 32);
+            assertEquals(32, cache.getMappedBytes());
+            mapped.read(dst, 0);
+            assertEquals("Window 0 was used more recently than window 1", 3, cache.getMisses());
+            mapped.read(dst, 16);
+            assertEquals(4, cache.getMisses());
+        }
+    }
+
+    @Test
+    public void testTruncatedFile() throws IOException {
+        Path file = createFile("a.bin", 0x8000);
+        MappedRegionCache cache = new MappedRegionCache(0x10000, 0x4000);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedRegionCache.MappedFile mapped = cache.open(channel, attributes(file));
+            try (FileChannel other = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                other.truncate(0x2000);
+            }
+            ByteBuffer dst = ByteBuffer.allocate(16);
+            assertEquals("Truncated before being mapped", 0, mapped.read(dst, 0));
+            assertEquals(0, dst.position());
+            assertEquals(0, cache.getMappedBytes());
+        }
+    }
+
+    @Test
+    public void testInvalidatedByChange() throws IOException {
+        Path file = createFile("a.bin", 40);
+        MappedRegionCache cache = new MappedRegionCache(1024, 16);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedRegionCache.MappedFile mapped = cache.open("a.bin", channel, attributes(file));
+            ByteBuffer dst = ByteBuffer.allocate(16);
+            assertEquals(16, mapped.read(dst, 0));
+            cache.invalidate("b.bin");
+            dst.clear();
+            assertEquals(16, mapped.read(dst, 0));
+            cache.invalidate("a.bin");
+            dst.clear();
+            assertEquals("Read from the channel after a change", 0, mapped.read(dst, 0));
+            assertEquals(0, cache.getMappedBytes());
+            mapped.close();
+        }
+    }
+
+    @Test
+    public void testSmallFilesNotMapped() throws IOException {
+        Path file = createFile("a.bin", 15);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            assertNull(new MappedRegionCache(1024, 16).open(channel, attributes(file)));
+        }
+    }
+
+    @Test
+    public void testProcessorReads() throws IOException {
+        createFile("a.bin", 40);
+        MappedRegionCache cache = new MappedRegionCache(1024, 16);
+        VoidPacketVisitor output = mock(VoidPacketVisitor.class);
+        DefaultPacketProcessor<?> dpp = new DefaultPacketProcessor<>(SftpFileSystems.rooted(folder.getRoot().toPath()), output,
+                new ProcessorConfig.Builder().withMappedRegions(cache).build());
+        dpp.visitOpen(1, "/a.bin", SshFxpOpen.AceMask.ACE4_READ_DATA.set(0),
+                SshFxpOpen.OpenFlagsAccessDisposition.SSH_FXF_OPEN_EXISTING.getCode(), Attrs.EMPTY);
+        ArgumentCaptor<Bytes> handle = ArgumentCaptor.forClass(Bytes.class);
+        verify(output).visitHandle(eq(1), handle.capture());
+
+        List<ByteBuffer> data = new ArrayList<>();
+        doAnswer(invocation -> data.add(copy(invocation.getArgument(1))))
+                .when(output).visitData(anyInt(), any(), anyBoolean());
+        dpp.visitRead(2, handle.getValue(), 14, 4);
+        dpp.visitRead(3, handle.getValue(), 36, 10);
+        verify(output).visitData(eq(2), any(), eq(false));
+        verify(output).visitData(eq(3), any(), eq(true));
+        assertEquals(ByteBuffer.wrap(new byte[] { 14, 15, 16, 17 }), data.get(0));
+        assertEquals(ByteBuffer.wrap(new byte[] { 36, 37, 38, 39 }), data.get(1));
+        assertEquals(3, cache.getMisses());
+    }
+
+    private static ByteBuffer copy(Bytes bytes) {
+        ByteBuffer ret = ByteBuffer.allocate(bytes.getLength());
+        bytes.copyTo(ret);
+        ret.flip();
+        return ret;
+    }
+
+    private Path createFile(String name, int length) throws IOException {
+        byte[] content = new byte[length];
+        for (int i = 0; i < length; i++) {
+            content[i] = (byte) i;
+        }
+        return Files.write(folder.newFile(name).toPath(), content);
+    }
+
+    private static BasicFileAttributes attributes(Path file) throws IOException {
+        return Files.readAttributes(file, BasicFileAttributes.class);
+    }
+}
@@ -0,0 +1,178 @@
+package it.ftb.sftp;
+
+import it.ftb.sftp.network.BufferPool;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ReadAheadTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final BufferPool buffers = new BufferPool(DefaultPacketProcessor.READ_BUFFER_SIZE, 8);
+
+    @Test
+    public void testSequentialReadsPrefetched() throws IOException {
+        Path file = createFile(40);
+        ReadAhead readAhead = new ReadAhead(tasks::add, 2);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+             ReadAhead.Tracker tracker = readAhead.newTracker(channel, buffers)) {
+            assertNull(tracker.next(0, 8));
+            assertEquals(ReadAhead.AccessPattern.UNKNOWN, tracker.getPattern());
+            assertNull(tracker.next(8, 8));
+            assertEquals(ReadAhead.AccessPattern.SEQUENTIAL, tracker.getPattern());
+            assertTrue("A single sequential read is not enough", tasks.isEmpty());
+            assertNull(tracker.next(16, 8));
+            assertEquals(2, tasks.size());
+            runTasks();
+
+            ReadAhead.Block block = tracker.next(24, 8);
+            assertNotNull(block);
+            assertEquals(ByteBuffer.wrap(new byte[] { 24, 25, 26, 27, 28, 29, 30, 31 }), block.getData());
+            assertFalse(block.isEndOfFile());
+            block.release();
+            assertEquals("The blocks after the end of file are not read", 0, tasks.size());
+
+            block = tracker.next(32, 8);
+            assertNotNull(block);
+            block.release();
+            assertEquals(5, readAhead.getReads());
+            assertEquals(2, readAhead.getHits());
+        }
+    }
+
+    @Test
+    public void testRandomReadsNotPrefetched() throws IOException {
+        Path file = createFile(64);
+        ReadAhead readAhead = new ReadAhead(tasks::add, 2);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+             ReadAhead.Tracker tracker = readAhead.newTracker(channel, buffers)) {
+            tracker.next(0, 8);
+            tracker.next(8, 8);
+            tracker.next(16, 8);
+            assertEquals(2, tasks.size());
+            runTasks();
+
+            assertNull(tracker.next(4, 8));
+            assertEquals(ReadAhead.AccessPattern.RANDOM, tracker.getPattern());
+            assertNull(tracker.next(20, 8));
+            assertNull(tracker.next(36, 8));
+            assertEquals(ReadAhead.AccessPattern.STRIDED, tracker.getPattern());
+            assertTrue(tasks.isEmpty());
+            assertEquals(0, readAhead.getHits());
+        }
+    }
+
+    @Test
+    public void testOutOfOrderReadsPrefetched() throws IOException {
+        Path file = createFile(64);
+        ReadAhead readAhead = new ReadAhead(tasks::add, 2);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+             ReadAhead.Tracker tracker = readAhead.newTracker(channel, buffers)) {
+            // Four reads in flight, executed out of order
+            assertNull(tracker.next(8, 8));
+            assertNull(tracker.next(0, 8));
+            assertNull(tracker.next(24, 8));
+            assertNull(tracker.next(16, 8));
+            assertEquals(ReadAhead.AccessPattern.SEQUENTIAL, tracker.getPattern());
+            assertEquals(2, tasks.size());
+            runTasks();
+
+            ReadAhead.Block block = tracker.next(40, 8);
+            assertNotNull(block);
+            assertEquals(ByteBuffer.wrap(new byte[] { 40, 41, 42, 43, 44, 45, 46, 47 }), block.getData());
+            block.release();
+            block = tracker.next(32, 8);
+            assertNotNull(block);
+            block.release();
+            assertEquals(2, readAhead.getHits());
+        }
+    }
+
+    @Test
+    public void testInvalidatedByWrite() throws IOException {
+        Path file = createFile(64);
+        ReadAhead readAhead = new ReadAhead(tasks::add, 2);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+             ReadAhead.Tracker tracker = readAhead.newTracker("a.bin", channel, buffers)) {
+            tracker.next(0, 8);
+            tracker.next(8, 8);
+            tracker.next(16, 8);
+            runTasks();
+
+            try (FileChannel writer = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                writer.write(ByteBuffer.wrap(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 }), 32);
+            }
+            readAhead.invalidate("a.bin");
+            ReadAhead.Block block = tracker.next(24, 8);
+            assertNull("The blocks read before the write are discarded", block);
+            assertEquals(2, tasks.size());
+            runTasks();
+            block = tracker.next(32, 8);
+            assertNotNull(block);
+            assertEquals(ByteBuffer.wrap(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 }), block.getData());
+            block.release();
+        }
+    }
+
+    @Test(timeout = 5000L)
+    public void testInvalidatedWhileWaited() throws IOException, InterruptedException {
+        Path file = createFile(64);
+        ReadAhead readAhead = new ReadAhead(tasks::add, 2);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+             ReadAhead.Tracker tracker = readAhead.newTracker("a.bin", channel, buffers)) {
+            tracker.next(0, 8);
+            tracker.next(8, 8);
+            tracker.next(16, 8);
+            AtomicReference<ReadAhead.Block> block = new AtomicReference<>();
+            Thread reader = new Thread(() -> block.set(tracker.next(24, 8)));
+            reader.start();
+            while (reader.getState() != Thread.State.WAITING) {
+                Thread.yield();
+            }
+            // The block being waited for is no longer queued, and can not be discarded
+            readAhead.invalidate("a.bin");
+            runTasks();
+            reader.join();
+            assertNull("The block read before the write is not used", block.get());
+            assertEquals(0, readAhead.getHits());
+        }
+        Map<ReadAhead.AccessPattern, Long> patterns = readAhead.getHandlesByPattern();
+        assertEquals(Long.valueOf(1), patterns.get(ReadAhead.AccessPattern.SEQUENTIAL));
+        assertEquals(Long.valueOf(0), patterns.get(ReadAhead.AccessPattern.RANDOM));
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while (null != (task = tasks.poll())) {
+            task.run();
+        }
+    }
+
+    private Path createFile(int length) throws IOException {
+        byte[] content = new byte[length];
+        for (int i = 0; i < length; i++) {
+            content[i] = (byte) i;
+        }
+        return Files.write(folder.newFile("a.bin").toPath(), content);
+    }
+}
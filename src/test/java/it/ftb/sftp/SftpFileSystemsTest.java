@@ -0,0 +1,51 @@
+package it.ftb.sftp;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class SftpFileSystemsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testParseSameAsComponentWise() {
+        checkParse(SftpFileSystems.rooted(folder.getRoot().toPath()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseOutOfRoot() {
+        SftpFileSystems.rooted(folder.getRoot().toPath()).parse("/a/../../b");
+    }
+
+    @Test
+    public void testRootFoundWithoutFiles() {
+        checkNavigation(SftpFileSystems.rooted(folder.getRoot().toPath()));
+    }
+
+    private static <P extends SftpPath<P>> void checkNavigation(SftpFileSystem<P> fs) {
+        P path = fs.parse("/missing/a/b");
+        assertEquals("/missing/a/b", fs.toSftpString(path));
+        assertEquals("b", path.getFileName());
+        P root = path.getParent().getParent().getParent();
+        assertEquals(fs.getRoot(), root);
+        assertEquals("", root.getFileName());
+        assertNull(root.getParent());
+        assertEquals("/", fs.toSftpString(root));
+        assertEquals("/missing", fs.toSftpString(fs.parse("/missing/a/..")));
+        assertSame(fs.getRoot(), fs.parse("/missing/..").normalize());
+    }
+
+    private static <P extends SftpPath<P>> void checkParse(SftpFileSystem<P> fs) {
+        for (String path : new String[] { "/", "/a", "/a/b/c", "a/b", "/a/b/", "//a//b", "/a/./b", "/a/../b", "a/.b/..c" }) {
+            P parsed = fs.parse(path);
+            assertEquals(path, SftpPath.parse(fs, path), parsed);
+            assertSame("Parsed paths are cached", parsed, fs.parse(path));
+        }
+    }
+}
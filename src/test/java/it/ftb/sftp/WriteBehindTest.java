@@ -0,0 +1,162 @@
+package it.ftb.sftp;
+
+import it.ftb.sftp.network.Bytes;
+import it.ftb.sftp.network.SlabAllocator;
+import it.ftb.sftp.packet.Attrs;
+import it.ftb.sftp.packet.ErrorCode;
+import it.ftb.sftp.packet.SshFxpOpen;
+import it.ftb.sftp.packet.VoidPacketVisitor;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class WriteBehindTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final SlabAllocator writeBuffers = new SlabAllocator(ConcurrentPacketProcessor.WRITE_CHUNK_SIZE, 2, 1);
+    private final ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+    private final VoidPacketVisitor output = mock(VoidPacketVisitor.class);
+
+    @After
+    public void checkLeaks() {
+        assertEquals("All the write buffers must be released", 0, writeBuffers.getOutstanding());
+    }
+
+    @Test
+    public void testAdjacentWritesAcknowledgedWhenWritten() throws IOException {
+        Path file = folder.newFile("a.bin").toPath();
+        DefaultPacketProcessor<?> dpp = createProcessor(WriteBehind.Durability.WRITTEN, 1024);
+        Bytes handle = open(dpp, "/a.bin");
+
+        dpp.visitWrite(2, handle, 0, data(1, 2));
+        dpp.visitWrite(3, handle, 2, data(3));
+        verify(output, never()).visitStatus(anyInt(), any(), any(), any());
+        assertEquals(0, Files.size(file));
+
+        dpp.visitFstat(4, handle, 0);
+        InOrder inOrder = inOrder(output);
+        inOrder.verify(output).visitStatus(eq(2), eq(ErrorCode.SSH_FX_OK), any(), any());
+        inOrder.verify(output).visitStatus(eq(3), eq(ErrorCode.SSH_FX_OK), any(), any());
+        inOrder.verify(output).visitAttrs(eq(4), any());
+        assertArrayEquals(new byte[] { 1, 2, 3 }, Files.readAllBytes(file));
+        dpp.visitClose(5, handle);
+    }
+
+    @Test
+    public void testFlushedOnThresholdAndGap() throws IOException {
+        Path file = folder.newFile("a.bin").toPath();
+        DefaultPacketProcessor<?> dpp = createProcessor(WriteBehind.Durability.BUFFERED, 4);
+        Bytes handle = open(dpp, "/a.bin");
+
+        dpp.visitWrite(2, handle, 0, data(1, 2));
+        verify(output).visitStatus(eq(2), eq(ErrorCode.SSH_FX_OK), any(), any());
+        dpp.visitWrite(3, handle, 4, data(5));
+        assertArrayEquals("A write not adjacent to the buffered data flushes it", new byte[] { 1, 2 }, Files.readAllBytes(file));
+        dpp.visitWrite(4, handle, 5, data(6, 7, 8));
+        assertArrayEquals(new byte[] { 1, 2, 0, 0, 5, 6, 7, 8 }, Files.readAllBytes(file));
+
+        dpp.visitWrite(5, handle, 8, data(9));
+        ArgumentCaptor<Runnable> timer = ArgumentCaptor.forClass(Runnable.class);
+        verify(scheduler, times(3)).schedule(timer.capture(), anyLong(), any());
+        timer.getValue().run();
+        assertEquals("The timer flushes the buffered data", 9, Files.size(file));
+        dpp.visitClose(6, handle);
+        verify(output).visitStatus(eq(6), eq(ErrorCode.SSH_FX_OK), any(), any());
+    }
+
+    @Test
+    public void testErrorReportedOnClose() throws IOException {
+        FileChannel channel = mock(FileChannel.class);
+        when(channel.write(any(ByteBuffer[].class), anyInt(), anyInt())).thenThrow(new IOException("Disk full"));
+        WriteBehind.Buffer buffer = new WriteBehind(WriteBehind.Durability.BUFFERED, 1024, 10, scheduler)
+                .newBuffer(channel, output);
+
+        buffer.write(1, 0, writeBuffers.copyOf(data(1)));
+        verify(output).visitStatus(eq(1), eq(ErrorCode.SSH_FX_OK), any(), any());
+        buffer.flush();
+        buffer.write(2, 1, writeBuffers.copyOf(data(2)));
+        verify(output).visitStatus(eq(2), eq(ErrorCode.SSH_FX_FAILURE), eq("Disk full"), any());
+        try {
+            buffer.close();
+            fail("The error must be reported on close");
+        } catch (IOException ex) {
+            assertEquals("Disk full", ex.getMessage());
+        }
+    }
+
+    @Test
+    public void testDelayedWriteOffTimer() throws IOException {
+        FileChannel channel = mock(FileChannel.class);
+        when(channel.write(any(ByteBuffer[].class), anyInt(), anyInt())).thenReturn(1L);
+        Queue<Runnable> tasks = new ArrayDeque<>();
+        AtomicInteger written = new AtomicInteger();
+        WriteBehind.Buffer buffer = new WriteBehind(WriteBehind.Durability.WRITTEN, 1024, 10, scheduler, tasks::add)
+                .newBuffer(channel, output, written::incrementAndGet);
+
+        buffer.write(1, 0, writeBuffers.copyOf(data(1)));
+        ArgumentCaptor<Runnable> timer = ArgumentCaptor.forClass(Runnable.class);
+        verify(scheduler).schedule(timer.capture(), anyLong(), any());
+        timer.getValue().run();
+        verify(channel, never()).write(any(ByteBuffer[].class), anyInt(), anyInt());
+        assertEquals("The timer hands the write to the executor", 1, tasks.size());
+
+        tasks.poll().run();
+        assertEquals(1, written.get());
+        verify(output).visitStatus(eq(1), eq(ErrorCode.SSH_FX_OK), any(), any());
+        buffer.close();
+        assertEquals("Nothing left to write", 1, written.get());
+    }
+
+    private DefaultPacketProcessor<?> createProcessor(WriteBehind.Durability durability, int maxBufferedBytes) {
+        return new DefaultPacketProcessor<>(SftpFileSystems.rooted(folder.getRoot().toPath()), output,
+                new ProcessorConfig.Builder()
+                        .withWriteBuffers(writeBuffers)
+                        .withWriteBehind(new WriteBehind(durability, maxBufferedBytes, 10, scheduler))
+                        .build());
+    }
+
+    private Bytes open(DefaultPacketProcessor<?> dpp, String path) {
+        dpp.visitOpen(1, path, SshFxpOpen.AceMask.ACE4_WRITE_DATA.set(0),
+                SshFxpOpen.OpenFlagsAccessDisposition.SSH_FXF_OPEN_EXISTING.getCode(), Attrs.EMPTY);
+        ArgumentCaptor<Bytes> handle = ArgumentCaptor.forClass(Bytes.class);
+        verify(output).visitHandle(eq(1), handle.capture());
+        return handle.getValue();
+    }
+
+    private static Bytes data(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return Bytes.hold(ByteBuffer.wrap(bytes));
+    }
+}
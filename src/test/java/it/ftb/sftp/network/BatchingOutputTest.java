@@ -0,0 +1,110 @@
+package it.ftb.sftp.network;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class BatchingOutputTest {
+
+    private final List<ByteBuffer> sent = new ArrayList<>();
+    private final Consumer<ByteBuffer> network = src -> {
+        ByteBuffer copy = ByteBuffer.allocate(src.remaining());
+        copy.put(src).flip();
+        sent.add(copy);
+    };
+
+    @Test
+    public void testPacketsGathered() {
+        BatchingOutput output = new BatchingOutput(network, 8, 6, null, 0);
+        output.accept(ByteBuffer.wrap(new byte[] { 1, 2 }));
+        output.accept(ByteBuffer.wrap(new byte[] { 3, 4, 5 }));
+        assertEquals(0, sent.size());
+        output.accept(ByteBuffer.wrap(new byte[] { 6, 7, 8, 9 }));
+        assertEquals("The batch is sent when full", 1, sent.size());
+        output.accept(ByteBuffer.wrap(new byte[] { 10, 11, 12, 13, 14, 15 }));
+        assertEquals("Large packets are sent on their own, after the batch", 3, sent.size());
+        output.flush();
+        output.flush();
+
+        assertEquals(ByteBuffer.wrap(new byte[] { 1, 2, 3, 4, 5 }), sent.get(0));
+        assertEquals(ByteBuffer.wrap(new byte[] { 6, 7, 8, 9 }), sent.get(1));
+        assertEquals(ByteBuffer.wrap(new byte[] { 10, 11, 12, 13, 14, 15 }), sent.get(2));
+        assertEquals(3, output.getBatches());
+        assertEquals(4, output.getPackets());
+        assertEquals(15, output.getBytes());
+    }
+
+    @Test
+    public void testLatencyBudget() {
+        ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+        BatchingOutput output = new BatchingOutput(network, 8, 6, scheduler, 100);
+        output.accept(ByteBuffer.wrap(new byte[] { 1 }));
+        output.accept(ByteBuffer.wrap(new byte[] { 2 }));
+        ArgumentCaptor<Runnable> timer = ArgumentCaptor.forClass(Runnable.class);
+        verify(scheduler).schedule(timer.capture(), anyLong(), any());
+        timer.getValue().run();
+        assertEquals(1, sent.size());
+
+        output.accept(ByteBuffer.wrap(new byte[] { 3 }));
+        output.flush();
+        verify(scheduler, times(2)).schedule(timer.capture(), anyLong(), any());
+        output.accept(ByteBuffer.wrap(new byte[] { 4 }));
+        timer.getValue().run();
+        assertEquals("A timer does not send the packets of a later batch", 2, sent.size());
+    }
+
+    @Test
+    public void testExpiredBatchSentByExecutor() {
+        ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+        List<Runnable> tasks = new ArrayList<>();
+        BatchingOutput output = new BatchingOutput(network, 8, 6, scheduler, 100, tasks::add);
+        output.accept(ByteBuffer.wrap(new byte[] { 1 }));
+        ArgumentCaptor<Runnable> timer = ArgumentCaptor.forClass(Runnable.class);
+        verify(scheduler).schedule(timer.capture(), anyLong(), any());
+        timer.getValue().run();
+        assertEquals("The timer does not send the batch", 0, sent.size());
+        assertEquals(1, tasks.size());
+        tasks.get(0).run();
+        assertEquals(ByteBuffer.wrap(new byte[] { 1 }), sent.get(0));
+    }
+
+    @Test(timeout = 10000)
+    public void testSentOutsideLock() throws Exception {
+        CountDownLatch sending = new CountDownLatch(1);
+        CountDownLatch blocked = new CountDownLatch(1);
+        BatchingOutput output = new BatchingOutput(src -> {
+            sending.countDown();
+            try {
+                blocked.await();
+            } catch (InterruptedException ex) {
+                throw new IllegalStateException(ex);
+            }
+            network.accept(src);
+        }, 8, 6, null, 0);
+        output.accept(ByteBuffer.wrap(new byte[] { 1, 2 }));
+        Thread sender = new Thread(output::flush);
+        sender.start();
+        sending.await();
+        output.accept(ByteBuffer.wrap(new byte[] { 3 }));
+        assertEquals("A packet is added while a batch is being sent", 3, output.getBytes());
+        blocked.countDown();
+        output.flush();
+        sender.join();
+
+        assertEquals(ByteBuffer.wrap(new byte[] { 1, 2 }), sent.get(0));
+        assertEquals(ByteBuffer.wrap(new byte[] { 3 }), sent.get(1));
+    }
+}
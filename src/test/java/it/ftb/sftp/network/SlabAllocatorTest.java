@@ -0,0 +1,79 @@
+package it.ftb.sftp.network;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SlabAllocatorTest {
+
+    @Test
+    public void testChunksAreRecycled() {
+        SlabAllocator allocator = new SlabAllocator(16, 2, 1);
+        Bytes first = allocator.allocate(10);
+        assertEquals(10, first.getLength());
+        assertTrue(first.asBuffer().isDirect());
+        first.asBuffer().put(0, (byte) 42);
+        first.release();
+
+        Bytes second = allocator.allocate(16);
+        assertEquals(42, second.asBuffer().get(0));
+        second.release();
+        assertEquals(0, allocator.getOutstanding());
+    }
+
+    @Test
+    public void testFallbackToHeap() {
+        SlabAllocator allocator = new SlabAllocator(16, 1, 1);
+        Bytes large = allocator.allocate(17);
+        assertFalse(large.asBuffer().isDirect());
+        Bytes pooled = allocator.allocate(16);
+        Bytes exhausted = allocator.allocate(16);
+        assertTrue(pooled.asBuffer().isDirect());
+        assertFalse(exhausted.asBuffer().isDirect());
+        assertEquals(3, allocator.getOutstanding());
+        large.release();
+        pooled.release();
+        exhausted.release();
+        assertEquals(0, allocator.getOutstanding());
+    }
+
+    @Test
+    public void testChainedChunks() {
+        SlabAllocator allocator = new SlabAllocator(4, 2, 2);
+        Bytes copy = allocator.copyOf(Bytes.hold(ByteBuffer.wrap(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 })));
+        ByteBuffer[] chunks = copy.asBuffers();
+        assertEquals(3, chunks.length);
+        assertTrue(chunks[0].isDirect());
+        assertEquals(ByteBuffer.wrap(new byte[] { 9, 10 }), chunks[2]);
+        assertEquals(ByteBuffer.wrap(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 }), copy.asBuffer());
+        Bytes last = allocator.allocate(4);
+        assertTrue("One chunk left", last.asBuffer().isDirect());
+        assertFalse(allocator.allocate(5).asBuffer().isDirect());
+        copy.release();
+        last.release();
+        assertEquals(4, allocator.allocate(16).asBuffers().length);
+    }
+
+    @Test
+    public void testReferenceCounting() {
+        SlabAllocator allocator = new SlabAllocator(16, 1, 1);
+        Bytes copy = allocator.copyOf(Bytes.hold(ByteBuffer.wrap(new byte[] { 1, 2, 3 })));
+        assertEquals(ByteBuffer.wrap(new byte[] { 1, 2, 3 }), copy.asBuffer());
+        copy.retain();
+        copy.release();
+        assertEquals("Bytes still referenced", 1, allocator.getOutstanding());
+        copy.release();
+        assertEquals(0, allocator.getOutstanding());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testUseAfterRelease() {
+        Bytes bytes = new SlabAllocator(16, 1, 1).allocate(4);
+        bytes.release();
+        bytes.asBuffer();
+    }
+}
@@ -0,0 +1,99 @@
+package it.ftb.sftp.packet;
+
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
+import it.ftb.sftp.BufferDecoder;
+import it.ftb.sftp.network.Bytes;
+import it.ftb.sftp.network.Encoder;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class AttrsTest {
+
+    @Test
+    public void testEncodedAttrsDecoded() {
+        Attrs attrs = new Attrs.Builder(Attrs.Type.SSH_FILEXFER_TYPE_REGULAR, true)
+                .withSize(1234)
+                .withOwnerGroup("owner", "gr\u00f6up")
+                .withPermissions(0644)
+                .withAtime(1500000000L, 5)
+                .withMtime(1500000001L, 6)
+                .build();
+
+        byte[] encoded = encode(attrs::write);
+        assertArrayEquals(encoded, encode(attrs.preEncoded()::write));
+
+        Attrs decoded = Attrs.read(new BufferDecoder(ByteBuffer.wrap(encoded)));
+        assertEquals(attrs.toString(), decoded.toString());
+    }
+
+    @Test
+    public void testReusedBuilderEncodesAsBuiltAttrs() {
+        Attrs attrs = fill(new Attrs.Builder(Attrs.Type.SSH_FILEXFER_TYPE_REGULAR, true)).build();
+        Attrs.Builder record = new Attrs.Builder(Attrs.Type.SSH_FILEXFER_TYPE_DIRECTORY, false)
+                .withAcl("acl")
+                .withMimeType("text/plain")
+                .withCtime(1, 0);
+        fill(record.reset(Attrs.Type.SSH_FILEXFER_TYPE_REGULAR, true));
+
+        assertArrayEquals(encode(attrs::write), encode(record::write));
+    }
+
+    private static Attrs.Builder fill(Attrs.Builder builder) {
+        return builder.withSize(1234)
+                .withOwnerGroup("owner", "gr\u00f6up")
+                .withPermissions(0644)
+                .withAtime(1500000000L, 5)
+                .withMtime(1500000001L, 6);
+    }
+
+    private static byte[] encode(Consumer<Encoder> writer) {
+        ByteArrayDataOutput output = ByteStreams.newDataOutput();
+        Encoder enc = new Encoder() {
+            @Override
+            public Encoder write(byte b) {
+                output.writeByte(b);
+                return this;
+            }
+
+            @Override
+            public Encoder write(int i) {
+                output.writeInt(i);
+                return this;
+            }
+
+            @Override
+            public Encoder write(String s) {
+                byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                output.writeInt(bytes.length);
+                output.write(bytes);
+                return this;
+            }
+
+            @Override
+            public Encoder write(Bytes b) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public Encoder write(long l) {
+                output.writeLong(l);
+                return this;
+            }
+
+            @Override
+            public Encoder write(boolean b) {
+                output.writeBoolean(b);
+                return this;
+            }
+        };
+        writer.accept(enc);
+        return output.toByteArray();
+    }
+}